@@ -36,9 +36,13 @@ import org.matrix.androidsdk.rest.client.PresenceRestClient;
 import org.matrix.androidsdk.rest.client.ProfileRestClient;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.EventContent;
+import org.matrix.androidsdk.rest.model.MatrixError;
 import org.matrix.androidsdk.rest.model.ReceiptData;
 import org.matrix.androidsdk.rest.model.RoomMember;
 import org.matrix.androidsdk.rest.model.RoomResponse;
+import org.matrix.androidsdk.rest.model.SyncV2.InvitedRoomSync;
+import org.matrix.androidsdk.rest.model.SyncV2.PresenceSyncResponse;
+import org.matrix.androidsdk.rest.model.SyncV2.RoomSync;
 import org.matrix.androidsdk.rest.model.SyncV2.SyncResponse;
 import org.matrix.androidsdk.rest.model.User;
 import org.matrix.androidsdk.rest.model.bingrules.BingRule;
@@ -46,13 +50,24 @@ import org.matrix.androidsdk.rest.model.bingrules.BingRuleSet;
 import org.matrix.androidsdk.rest.model.login.Credentials;
 import org.matrix.androidsdk.util.BingRulesManager;
 import org.matrix.androidsdk.util.ContentManager;
+import org.matrix.androidsdk.sync.SyncResponseParser;
 import org.matrix.androidsdk.util.JsonUtils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import android.os.Handler;
 
 /**
@@ -66,8 +81,21 @@ import android.os.Handler;
 public class MXDataHandler implements IMXEventListener {
     private static final String LOG_TAG = "MXData";
 
+    // the max number of parsed sync rooms waiting to be managed
+    private static final int MAX_PENDING_SYNC_ROOMS = 4;
+
+    // the max number of sync responses waiting to be managed
+    // while the next sync request is in progress.
+    private static final int MAX_PENDING_SYNC_RESPONSES = 2;
+
+    // the max number of threads used to manage the joined rooms in parallel
+    private static final int MAX_ROOMS_SYNC_THREADS = 4;
+
     private List<IMXEventListener> mEventListeners = new ArrayList<IMXEventListener>();
 
+    // the listeners which only receive the callbacks related to a room : room id -> listeners
+    private HashMap<String, List<IMXEventListener>> mRoomEventListeners = new HashMap<String, List<IMXEventListener>>();
+
     private IMXStore mStore;
     private Credentials mCredentials;
     private volatile boolean mInitialSyncComplete = false;
@@ -86,6 +114,44 @@ public class MXDataHandler implements IMXEventListener {
     private Handler mSyncHandler;
     private Handler mUiHandler;
 
+    // the sync responses which have been received but not yet managed by the sync thread
+    private final Object mPendingSyncResponsesLock = new Object();
+    private int mPendingSyncResponsesCount = 0;
+
+    // the listeners callbacks waiting to be dispatched on the UI thread
+    private final ArrayList<Runnable> mPendingUiCallbacks = new ArrayList<Runnable>();
+
+    // flush the pending callbacks
+    private final Runnable mUiCallbacksFlusher = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<Runnable> callbacks;
+
+            synchronized (mPendingUiCallbacks) {
+                callbacks = new ArrayList<Runnable>(mPendingUiCallbacks);
+                mPendingUiCallbacks.clear();
+            }
+
+            for (Runnable callback : callbacks) {
+                try {
+                    callback.run();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "mUiCallbacksFlusher failed " + e.getMessage());
+                }
+            }
+        }
+    };
+
+    // true to manage the joined rooms of the initial sync in parallel
+    private volatile boolean mIsParallelRoomsSync = false;
+    private ExecutorService mRoomsSyncExecutor;
+
+    // the output of a room managed by a rooms sync thread
+    private final ThreadLocal<ParallelRoomSyncOutput> mParallelRoomSyncOutput = new ThreadLocal<ParallelRoomSyncOutput>();
+
+    // the live events dispatched since the latest processed chunk
+    private final ArrayList<Event> mLiveEventsBatch = new ArrayList<Event>();
+
     private Boolean mIsActive = true;
 
     /**
@@ -239,6 +305,40 @@ public class MXDataHandler implements IMXEventListener {
         return mBingRulesManager;
     }
 
+    /**
+     * Enable the parallel management of the joined rooms of the initial sync.
+     * The rooms are managed concurrently on a bounded threads pool so the initial sync
+     * scales with the CPU cores. The listeners callbacks are dispatched in the same order
+     * as with the serial management.
+     * The initial sync response is then fully downloaded before being managed.
+     * @param isParallel true to enable it.
+     */
+    public void setParallelRoomsSync(boolean isParallel) {
+        mIsParallelRoomsSync = isParallel;
+    }
+
+    /**
+     * @return the executor used to manage the rooms in parallel.
+     */
+    private synchronized ExecutorService getRoomsSyncExecutor() {
+        if (null == mRoomsSyncExecutor) {
+            int threadsCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_ROOMS_SYNC_THREADS));
+
+            Log.d(LOG_TAG, "getRoomsSyncExecutor : " + threadsCount + " threads");
+
+            mRoomsSyncExecutor = Executors.newFixedThreadPool(threadsCount, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MXDataHandlerRoomsSync" + mCredentials.userId);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+
+        return mRoomsSyncExecutor;
+    }
+
     public void addListener(IMXEventListener listener) {
         if (mIsActive) {
             synchronized (this) {
@@ -262,11 +362,60 @@ public class MXDataHandler implements IMXEventListener {
         }
     }
 
+    /**
+     * Add a listener which only receives the callbacks related to a room.
+     * The room callbacks are routed to the listeners of their room
+     * so their cost does not depend on the number of rooms with listeners.
+     * The callbacks without room (e.g. onInitialSyncComplete) are not provided,
+     * except onPresenceUpdate, onLiveEventsChunkProcessed and onLiveEventsBatch.
+     * @param roomId the room id.
+     * @param listener the listener.
+     */
+    public void addRoomListener(String roomId, IMXEventListener listener) {
+        if (mIsActive && (null != roomId) && (null != listener)) {
+            synchronized (this) {
+                List<IMXEventListener> listeners = mRoomEventListeners.get(roomId);
+
+                if (null == listeners) {
+                    listeners = new ArrayList<IMXEventListener>();
+                    mRoomEventListeners.put(roomId, listeners);
+                }
+
+                // avoid adding twice
+                if (listeners.indexOf(listener) == -1) {
+                    listeners.add(listener);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a room listener.
+     * @param roomId the room id.
+     * @param listener the listener.
+     */
+    public void removeRoomListener(String roomId, IMXEventListener listener) {
+        if (mIsActive && (null != roomId)) {
+            synchronized (this) {
+                List<IMXEventListener> listeners = mRoomEventListeners.get(roomId);
+
+                if (null != listeners) {
+                    listeners.remove(listener);
+
+                    if (listeners.isEmpty()) {
+                        mRoomEventListeners.remove(roomId);
+                    }
+                }
+            }
+        }
+    }
+
     public void clear() {
         synchronized (this) {
             mIsActive = false;
             // remove any listener
             mEventListeners.clear();
+            mRoomEventListeners.clear();
         }
 
         // clear the store
@@ -277,6 +426,18 @@ public class MXDataHandler implements IMXEventListener {
             mSyncHandlerThread.quit();
             mSyncHandlerThread = null;
         }
+
+        synchronized (this) {
+            if (null != mRoomsSyncExecutor) {
+                mRoomsSyncExecutor.shutdownNow();
+                mRoomsSyncExecutor = null;
+            }
+        }
+
+        // unblock the events thread
+        synchronized (mPendingSyncResponsesLock) {
+            mPendingSyncResponsesLock.notifyAll();
+        }
     }
     /**
      * Handle the room data received from a per-room initial sync
@@ -479,7 +640,7 @@ public class MXDataHandler implements IMXEventListener {
                 Log.e(LOG_TAG, "onLiveEventsChunkProcessed failed " + e + " " + e.getStackTrace());
             }
 
-            mUiHandler.post(new Runnable() {
+            dispatchOnUiThread(new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -614,8 +775,8 @@ public class MXDataHandler implements IMXEventListener {
                 if (null != room) {
                     List<String> senders = room.handleReceiptEvent(event);
 
-                    if ((senders.size() > 0) && (mUpdatedRoomIdList.indexOf(event.roomId) < 0)) {
-                        mUpdatedRoomIdList.add(event.roomId);
+                    if (senders.size() > 0) {
+                        addUpdatedRoomId(event.roomId);
                     }
 
                     if (null != senders) {
@@ -664,14 +825,17 @@ public class MXDataHandler implements IMXEventListener {
 
                     boolean hasAccountInfoUpdated = false;
 
-                    if (!TextUtils.equals(eventContent.displayname, myUser.displayname)) {
-                        hasAccountInfoUpdated = true;
-                        myUser.displayname = eventContent.displayname;
-                    }
+                    // the rooms could be managed in parallel
+                    synchronized (myUser) {
+                        if (!TextUtils.equals(eventContent.displayname, myUser.displayname)) {
+                            hasAccountInfoUpdated = true;
+                            myUser.displayname = eventContent.displayname;
+                        }
 
-                    if (!TextUtils.equals(eventContent.avatar_url, myUser.getAvatarUrl())) {
-                        hasAccountInfoUpdated = true;
-                        myUser.setAvatarUrl(eventContent.avatar_url);
+                        if (!TextUtils.equals(eventContent.avatar_url, myUser.getAvatarUrl())) {
+                            hasAccountInfoUpdated = true;
+                            myUser.setAvatarUrl(eventContent.avatar_url);
+                        }
                     }
 
                     if (hasAccountInfoUpdated) {
@@ -908,7 +1072,49 @@ public class MXDataHandler implements IMXEventListener {
     // Sync V2
     //================================================================================
 
+    /**
+     * Wait until the sync thread can accept a new sync response.
+     * The events thread calls it before each sync request so the next request is sent
+     * while the previous responses are managed, but the pending responses count is bounded
+     * when the sync thread is slower than the network.
+     */
+    public void waitForPendingSyncV2Responses() {
+        synchronized (mPendingSyncResponsesLock) {
+            while ((mPendingSyncResponsesCount >= MAX_PENDING_SYNC_RESPONSES) && isActive()) {
+                Log.d(LOG_TAG, "waitForPendingSyncV2Responses : " + mPendingSyncResponsesCount + " pending responses");
+
+                try {
+                    mPendingSyncResponsesLock.wait();
+                } catch (InterruptedException e) {
+                    Log.e(LOG_TAG, "waitForPendingSyncV2Responses interrupted " + e.getMessage());
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * A sync response has been posted to the sync thread.
+     */
+    private void onSyncV2ResponseQueued() {
+        synchronized (mPendingSyncResponsesLock) {
+            mPendingSyncResponsesCount++;
+        }
+    }
+
+    /**
+     * A sync response has been managed by the sync thread.
+     */
+    private void onSyncV2ResponseManaged() {
+        synchronized (mPendingSyncResponsesLock) {
+            mPendingSyncResponsesCount--;
+            mPendingSyncResponsesLock.notifyAll();
+        }
+    }
+
     public void onSyncV2Complete(final SyncResponse syncResponse, final boolean isInitialSync) {
+        onSyncV2ResponseQueued();
+
         // perform the sync in background
         // to avoid UI thread lags.
         mSyncHandler.post(new Runnable() {
@@ -919,8 +1125,116 @@ public class MXDataHandler implements IMXEventListener {
         });
     }
 
+    /**
+     * Provides a listener to manage a sync response while it is parsed.
+     * The parsed rooms are managed in the sync thread as soon as they are decoded.
+     * @param isInitialSync true if the response is triggered by an initial sync.
+     * @return the parser listener.
+     */
+    public SyncResponseParser.Listener getSyncV2ParserListener(final boolean isInitialSync) {
+        // the rooms are managed in parallel when the whole response is known
+        if (isInitialSync && mIsParallelRoomsSync) {
+            return null;
+        }
+
+        final SyncV2ResponseManager manager = new SyncV2ResponseManager(isInitialSync);
+
+        return new SyncResponseParser.Listener() {
+            // limit the parsed rooms count which are waiting to be managed
+            // so the memory use does not depend on the response size.
+            private final Semaphore mPendingRooms = new Semaphore(MAX_PENDING_SYNC_ROOMS);
+
+            /**
+             * Manage a parsed item in the sync thread.
+             * The parser thread is blocked while there are too many pending rooms.
+             * @param runnable the runnable
+             */
+            private void post(final Runnable runnable) {
+                boolean isAcquired = false;
+
+                try {
+                    mPendingRooms.acquire();
+                    isAcquired = true;
+                } catch (InterruptedException e) {
+                    Log.e(LOG_TAG, "getSyncV2ParserListener interrupted " + e.getMessage());
+                    // the item is still managed (the sync token covers it) but without permit
+                    Thread.currentThread().interrupt();
+                }
+
+                final boolean fIsAcquired = isAcquired;
+
+                mSyncHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            runnable.run();
+                        } finally {
+                            // only release the permit which has been acquired, else the bound would grow
+                            if (fIsAcquired) {
+                                mPendingRooms.release();
+                            }
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onLeftRoom(final String roomId, RoomSync roomSync) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        manager.manageLeftRoom(roomId);
+                    }
+                });
+            }
+
+            @Override
+            public void onJoinedRoom(final String roomId, final RoomSync roomSync) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        manager.manageJoinedRoom(roomId, roomSync);
+                    }
+                });
+            }
+
+            @Override
+            public void onInvitedRoom(final String roomId, final InvitedRoomSync invitedRoomSync) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        manager.addInvitedRoom(roomId, invitedRoomSync);
+                    }
+                });
+            }
+
+            @Override
+            public void onPresence(final PresenceSyncResponse presence) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        manager.setPresence(presence);
+                    }
+                });
+            }
+
+            @Override
+            public void onSyncResponseParsed(final String nextBatch) {
+                onSyncV2ResponseQueued();
+
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        manager.onComplete(nextBatch);
+                    }
+                });
+            }
+        };
+    }
+
     private void manageV2Response(final SyncResponse syncResponse, final boolean isInitialSync) {
-        boolean isEmptyResponse = true;
+        SyncV2ResponseManager manager = new SyncV2ResponseManager(isInitialSync);
+        String nextBatch = null;
 
         // sanity check
         if (null != syncResponse) {
@@ -935,81 +1249,259 @@ public class MXDataHandler implements IMXEventListener {
                 if ((null != syncResponse.rooms.leave) && (syncResponse.rooms.leave.size() > 0)) {
                     Log.d(LOG_TAG, "Received " + syncResponse.rooms.leave.size() + " left rooms");
 
-                    Set<String> roomIds = syncResponse.rooms.leave.keySet();
-
-                    for (String roomId : roomIds) {
-                        // RoomSync leftRoomSync = syncResponse.rooms.leave.get(roomId);
-
-                        // Presently we remove the existing room from the rooms list.
-                        // FIXME SYNCV2 Archive/Display the left rooms!
-                        // For that create 'handleArchivedRoomSync' method
-
-                        // Retrieve existing room
-                        // check if the room still exists.
-                        if (null != this.getStore().getRoom(roomId)) {
-                            this.getStore().deleteRoom(roomId);
-                            onLeaveRoom(roomId);
-                        }
+                    for (String roomId : syncResponse.rooms.leave.keySet()) {
+                        manager.manageLeftRoom(roomId);
                     }
-
-                    isEmptyResponse = false;
                 }
 
                 // joined rooms events
                 if ((null != syncResponse.rooms.join) && (syncResponse.rooms.join.size() > 0)) {
                     Log.d(LOG_TAG, "Received " + syncResponse.rooms.join.size() + " joined rooms");
 
-                    Set<String> roomIds = syncResponse.rooms.join.keySet();
-
-                    // Handle first joined rooms
-                    for (String roomId : roomIds) {
-                        getRoom(roomId).handleJoinedRoomSync(syncResponse.rooms.join.get(roomId), isInitialSync);
+                    if (isInitialSync && mIsParallelRoomsSync && (syncResponse.rooms.join.size() > 1)) {
+                        manager.manageJoinedRoomsInParallel(syncResponse.rooms.join);
+                    } else {
+                        for (String roomId : syncResponse.rooms.join.keySet()) {
+                            manager.manageJoinedRoom(roomId, syncResponse.rooms.join.get(roomId));
+                        }
                     }
-
-                    isEmptyResponse = false;
                 }
 
                 // invited room management
                 if ((null != syncResponse.rooms.invite) && (syncResponse.rooms.invite.size() > 0)) {
                     Log.d(LOG_TAG, "Received " + syncResponse.rooms.invite.size() + " invited rooms");
 
-                    Set<String> roomIds = syncResponse.rooms.invite.keySet();
+                    for (String roomId : syncResponse.rooms.invite.keySet()) {
+                        manager.addInvitedRoom(roomId, syncResponse.rooms.invite.get(roomId));
+                    }
+                }
+            }
+
+            manager.setPresence(syncResponse.presence);
+            nextBatch = syncResponse.nextBatch;
+        }
+
+        manager.onComplete(nextBatch);
+    }
+
+    /**
+     * The listeners callbacks and the live events of a room managed by a rooms sync thread.
+     */
+    private static class ParallelRoomSyncOutput {
+        final ArrayList<Runnable> mCallbacks = new ArrayList<Runnable>();
+        final ArrayList<Event> mLiveEvents = new ArrayList<Event>();
+    }
+
+    /**
+     * Manage the content of a sync response.
+     * The rooms can be provided while the response is parsed.
+     * Its methods must be called from the sync thread.
+     */
+    private class SyncV2ResponseManager {
+        private final boolean mIsInitialSync;
+        private boolean mIsEmptyResponse = true;
+
+        // the rooms joined in this response
+        private final HashSet<String> mJoinedRoomIds = new HashSet<String>();
+
+        // the invitations and the presence updates are managed after the joined rooms
+        private final LinkedHashMap<String, InvitedRoomSync> mInvitedRooms = new LinkedHashMap<String, InvitedRoomSync>();
+        private PresenceSyncResponse mPresence;
+
+        SyncV2ResponseManager(boolean isInitialSync) {
+            mIsInitialSync = isInitialSync;
+        }
+
+        /**
+         * Manage a left room.
+         * @param roomId the room id
+         */
+        void manageLeftRoom(String roomId) {
+            mIsEmptyResponse = false;
+
+            // the left rooms are managed before the joined ones when the whole response is known
+            // so a room which has been joined again in this response is kept.
+            if (mJoinedRoomIds.contains(roomId)) {
+                return;
+            }
+
+            // Presently we remove the existing room from the rooms list.
+            // FIXME SYNCV2 Archive/Display the left rooms!
+            // For that create 'handleArchivedRoomSync' method
+
+            // Retrieve existing room
+            // check if the room still exists.
+            if (null != getStore().getRoom(roomId)) {
+                getStore().deleteRoom(roomId);
+                onLeaveRoom(roomId);
+            }
+        }
+
+        /**
+         * Manage a joined room.
+         * @param roomId the room id
+         * @param roomSync the room sync
+         */
+        void manageJoinedRoom(String roomId, RoomSync roomSync) {
+            mIsEmptyResponse = false;
+            mJoinedRoomIds.add(roomId);
+            getRoom(roomId).handleJoinedRoomSync(roomSync, mIsInitialSync);
+        }
+
+        /**
+         * Manage some joined rooms in parallel.
+         * Each room is managed by a rooms sync thread which collects its listeners callbacks,
+         * then the callbacks are dispatched in the rooms order.
+         * @param joinedRooms the joined rooms.
+         */
+        void manageJoinedRoomsInParallel(Map<String, RoomSync> joinedRooms) {
+            ExecutorService executor = getRoomsSyncExecutor();
+            ArrayList<Future<ParallelRoomSyncOutput>> futures = new ArrayList<Future<ParallelRoomSyncOutput>>();
+
+            long startTime = System.currentTimeMillis();
+
+            // MyUser is lazily created : create it before the rooms threads use it
+            getMyUser();
+
+            for (final String roomId : joinedRooms.keySet()) {
+                final RoomSync roomSync = joinedRooms.get(roomId);
+
+                mIsEmptyResponse = false;
+                mJoinedRoomIds.add(roomId);
+
+                // the rooms are created in the sync thread
+                final Room room = getRoom(roomId);
+
+                futures.add(executor.submit(new Callable<ParallelRoomSyncOutput>() {
+                    @Override
+                    public ParallelRoomSyncOutput call() {
+                        ParallelRoomSyncOutput output = new ParallelRoomSyncOutput();
+                        mParallelRoomSyncOutput.set(output);
+
+                        try {
+                            room.handleJoinedRoomSync(roomSync, mIsInitialSync);
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "manageJoinedRoomsInParallel failed in " + roomId + " " + e.getMessage());
+                        } finally {
+                            mParallelRoomSyncOutput.remove();
+                        }
+
+                        return output;
+                    }
+                }));
+            }
 
-                    for (String roomId : roomIds) {
-                        getRoom(roomId).handleInvitedRoomSync(syncResponse.rooms.invite.get(roomId));
+            // merge the rooms outputs in the rooms order
+            for (Future<ParallelRoomSyncOutput> future : futures) {
+                try {
+                    ParallelRoomSyncOutput output = future.get();
+
+                    synchronized (mLiveEventsBatch) {
+                        mLiveEventsBatch.addAll(output.mLiveEvents);
                     }
 
-                    isEmptyResponse = false;
+                    for (Runnable callback : output.mCallbacks) {
+                        dispatchOnUiThread(callback);
+                    }
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "manageJoinedRoomsInParallel : " + e.getMessage());
                 }
             }
 
+            Log.d(LOG_TAG, "manageJoinedRoomsInParallel : " + joinedRooms.size() + " rooms in " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+
+        /**
+         * Add an invited room.
+         * @param roomId the room id
+         * @param invitedRoomSync the invited room sync
+         */
+        void addInvitedRoom(String roomId, InvitedRoomSync invitedRoomSync) {
+            mIsEmptyResponse = false;
+            mInvitedRooms.put(roomId, invitedRoomSync);
+        }
+
+        /**
+         * Set the presence updates.
+         * @param presence the presence updates.
+         */
+        void setPresence(PresenceSyncResponse presence) {
+            mPresence = presence;
+        }
+
+        /**
+         * The whole response has been provided.
+         * @param nextBatch the next batch token.
+         */
+        void onComplete(String nextBatch) {
+            try {
+                manageResponseEnd(nextBatch);
+            } finally {
+                onSyncV2ResponseManaged();
+            }
+        }
+
+        /**
+         * Manage the buffered items and commit the store.
+         * @param nextBatch the next batch token.
+         */
+        private void manageResponseEnd(String nextBatch) {
+            // invited room management
+            for (String roomId : mInvitedRooms.keySet()) {
+                getRoom(roomId).handleInvitedRoomSync(mInvitedRooms.get(roomId));
+            }
+
             // Handle presence of other users
-            if ((null != syncResponse.presence) && (null != syncResponse.presence.events)) {
-                for (Event presenceEvent : syncResponse.presence.events) {
+            if ((null != mPresence) && (null != mPresence.events)) {
+                for (Event presenceEvent : mPresence.events) {
                     handleLiveEvent(presenceEvent);
                 }
             }
 
-            if (!isEmptyResponse) {
-                getStore().setEventStreamToken(syncResponse.nextBatch);
+            if (!mIsEmptyResponse) {
+                getStore().setEventStreamToken(nextBatch);
                 getStore().commit();
             }
-        }
 
-        if (isInitialSync) {
-            onInitialSyncComplete();
-        } else {
-            try {
-                onLiveEventsChunkProcessed();
-            } catch (Exception e) {
-                Log.e(LOG_TAG, "onLiveEventsChunkProcessed failed " + e + " " + e.getStackTrace());
+            if (mIsInitialSync) {
+                onInitialSyncComplete();
+            } else {
+                try {
+                    onLiveEventsChunkProcessed();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "onLiveEventsChunkProcessed failed " + e + " " + e.getStackTrace());
+                }
+
+                try {
+                    // check if an incoming call has been received
+                    mCallsManager.checkPendingIncomingCalls();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "checkPendingIncomingCalls failed " + e + " " + e.getStackTrace());
+                }
             }
+        }
+    }
 
-            try {
-                // check if an incoming call has been received
-                mCallsManager.checkPendingIncomingCalls();
-            } catch (Exception e) {
-                Log.e(LOG_TAG, "checkPendingIncomingCalls failed " + e + " " + e.getStackTrace());
+    /**
+     * Resynchronize the rooms which have been removed from the store because their data was corrupted.
+     */
+    private void resyncCorruptedRooms() {
+        List<String> roomIds = mStore.getCorruptedRoomIds();
+
+        for (final String roomId : roomIds) {
+            Log.d(LOG_TAG, "resyncCorruptedRooms : " + roomId);
+
+            Room room = getRoom(roomId);
+
+            if (null != room) {
+                room.initialSync(new SimpleApiCallback<Void>() {
+                    @Override
+                    public void onMatrixError(MatrixError e) {
+                        // the user is not anymore a member of this room
+                        Log.e(LOG_TAG, "resyncCorruptedRooms : " + roomId + " failed " + e.getLocalizedMessage());
+                        mStore.deleteRoom(roomId);
+                    }
+                });
             }
         }
     }
@@ -1018,22 +1510,83 @@ public class MXDataHandler implements IMXEventListener {
      * Refresh the unread summary counters of the updated rooms.
      */
     private void refreshUnreadCounters() {
+        ArrayList<String> roomIds;
+
+        synchronized (mUpdatedRoomIdList) {
+            roomIds = new ArrayList<String>(mUpdatedRoomIdList);
+            mUpdatedRoomIdList.clear();
+        }
+
         // refresh the unread counter
-        for(String roomId : mUpdatedRoomIdList) {
+        for(String roomId : roomIds) {
             Room room = mStore.getRoom(roomId);
 
             if (null != room) {
                 room.refreshUnreadCounter();
             }
         }
+    }
 
-        mUpdatedRoomIdList.clear();
+    /**
+     * Add a room to the rooms list whose unread counter must be refreshed.
+     * @param roomId the room id.
+     */
+    private void addUpdatedRoomId(String roomId) {
+        synchronized (mUpdatedRoomIdList) {
+            mUpdatedRoomIdList.add(roomId);
+        }
     }
 
     //================================================================================
     // Listeners management
     //================================================================================
 
+    /**
+     * Dispatch the listeners callbacks on the UI thread.
+     * The callbacks are queued and the queue is flushed by a single UI thread message
+     * so a sync with thousands of events does not flood the main looper.
+     * The callbacks order is kept.
+     * @param callback the callback.
+     */
+    private void dispatchOnUiThread(Runnable callback) {
+        ParallelRoomSyncOutput output = mParallelRoomSyncOutput.get();
+
+        // the callbacks of a room managed in parallel are dispatched by the sync thread
+        if (null != output) {
+            output.mCallbacks.add(callback);
+            return;
+        }
+
+        boolean isFlushPending;
+
+        synchronized (mPendingUiCallbacks) {
+            isFlushPending = !mPendingUiCallbacks.isEmpty();
+            mPendingUiCallbacks.add(callback);
+        }
+
+        if (!isFlushPending) {
+            mUiHandler.post(mUiCallbacksFlusher);
+        }
+    }
+
+    /**
+     * Dispatch the live events received since the previous chunk with onLiveEventsBatch.
+     */
+    private void dispatchLiveEventsBatch() {
+        final List<Event> events;
+
+        synchronized (mLiveEventsBatch) {
+            if (mLiveEventsBatch.isEmpty()) {
+                return;
+            }
+
+            events = new ArrayList<Event>(mLiveEventsBatch);
+            mLiveEventsBatch.clear();
+        }
+
+        onLiveEventsBatch(events);
+    }
+
     // Proxy IMXEventListener callbacks to everything in mEventListeners
     List<IMXEventListener> getListenersSnapshot() {
         ArrayList<IMXEventListener> eventListeners;
@@ -1045,10 +1598,48 @@ public class MXDataHandler implements IMXEventListener {
         return eventListeners;
     }
 
+    /**
+     * Provides the listeners of a room callback.
+     * @param roomId the room id.
+     * @return the global listeners and the listeners of the room.
+     */
+    List<IMXEventListener> getListenersSnapshot(String roomId) {
+        ArrayList<IMXEventListener> eventListeners;
+
+        synchronized (this) {
+            eventListeners = new ArrayList<IMXEventListener>(mEventListeners);
+
+            List<IMXEventListener> roomListeners = (null != roomId) ? mRoomEventListeners.get(roomId) : null;
+
+            if (null != roomListeners) {
+                eventListeners.addAll(roomListeners);
+            }
+        }
+
+        return eventListeners;
+    }
+
+    /**
+     * @return the global listeners and the listeners of all the rooms.
+     */
+    List<IMXEventListener> getAllListenersSnapshot() {
+        ArrayList<IMXEventListener> eventListeners;
+
+        synchronized (this) {
+            eventListeners = new ArrayList<IMXEventListener>(mEventListeners);
+
+            for (List<IMXEventListener> roomListeners : mRoomEventListeners.values()) {
+                eventListeners.addAll(roomListeners);
+            }
+        }
+
+        return eventListeners;
+    }
+
     public void onStoreReady() {
         final List<IMXEventListener> eventListeners = getListenersSnapshot();
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1065,7 +1656,7 @@ public class MXDataHandler implements IMXEventListener {
     public void onAccountInfoUpdate(final MyUser myUser) {
         final List<IMXEventListener> eventListeners = getListenersSnapshot();
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1080,9 +1671,9 @@ public class MXDataHandler implements IMXEventListener {
 
     @Override
     public void onPresenceUpdate(final Event event, final User user) {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getAllListenersSnapshot();
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1095,20 +1686,28 @@ public class MXDataHandler implements IMXEventListener {
         });
     }
 
-    private ArrayList<String> mUpdatedRoomIdList = new ArrayList<String>();
+    private final LinkedHashSet<String> mUpdatedRoomIdList = new LinkedHashSet<String>();
 
     @Override
     public void onLiveEvent(final Event event, final RoomState roomState) {
         //
         if (!TextUtils.equals(Event.EVENT_TYPE_TYPING, event.type) && !TextUtils.equals(Event.EVENT_TYPE_RECEIPT, event.type) && !TextUtils.equals(Event.EVENT_TYPE_TYPING, event.type)) {
-            if (mUpdatedRoomIdList.indexOf(roomState.roomId) < 0) {
-                mUpdatedRoomIdList.add(roomState.roomId);
+            addUpdatedRoomId(roomState.roomId);
+        }
+
+        ParallelRoomSyncOutput output = mParallelRoomSyncOutput.get();
+
+        if (null != output) {
+            output.mLiveEvents.add(event);
+        } else {
+            synchronized (mLiveEventsBatch) {
+                mLiveEventsBatch.add(event);
             }
         }
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(event.roomId);
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1124,10 +1723,11 @@ public class MXDataHandler implements IMXEventListener {
     @Override
     public void onLiveEventsChunkProcessed() {
         refreshUnreadCounters();
+        dispatchLiveEventsBatch();
 
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getAllListenersSnapshot();
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1141,10 +1741,62 @@ public class MXDataHandler implements IMXEventListener {
     }
 
     @Override
-    public void onBackEvent(final Event event, final RoomState roomState) {
+    public void onLiveEventsBatch(final List<Event> events) {
         final List<IMXEventListener> eventListeners = getListenersSnapshot();
 
-        mUiHandler.post(new Runnable() {
+        // the room listeners only receive the events of their room
+        final HashMap<IMXEventListener, List<Event>> roomEventsByListener = new HashMap<IMXEventListener, List<Event>>();
+
+        synchronized (this) {
+            if (!mRoomEventListeners.isEmpty()) {
+                HashMap<String, List<Event>> eventsByRoomId = new HashMap<String, List<Event>>();
+
+                for (Event event : events) {
+                    if ((null != event.roomId) && mRoomEventListeners.containsKey(event.roomId)) {
+                        List<Event> roomEvents = eventsByRoomId.get(event.roomId);
+
+                        if (null == roomEvents) {
+                            roomEvents = new ArrayList<Event>();
+                            eventsByRoomId.put(event.roomId, roomEvents);
+                        }
+
+                        roomEvents.add(event);
+                    }
+                }
+
+                for (String roomId : eventsByRoomId.keySet()) {
+                    for (IMXEventListener listener : mRoomEventListeners.get(roomId)) {
+                        roomEventsByListener.put(listener, eventsByRoomId.get(roomId));
+                    }
+                }
+            }
+        }
+
+        dispatchOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                for (IMXEventListener listener : eventListeners) {
+                    try {
+                        listener.onLiveEventsBatch(events);
+                    } catch (Exception e) {
+                    }
+                }
+
+                for (IMXEventListener listener : roomEventsByListener.keySet()) {
+                    try {
+                        listener.onLiveEventsBatch(roomEventsByListener.get(listener));
+                    } catch (Exception e) {
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onBackEvent(final Event event, final RoomState roomState) {
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(event.roomId);
+
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1161,7 +1813,7 @@ public class MXDataHandler implements IMXEventListener {
     public void onBingEvent(final Event event, final RoomState roomState, final BingRule bingRule) {
         final List<IMXEventListener> eventListeners = getListenersSnapshot();
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1176,9 +1828,9 @@ public class MXDataHandler implements IMXEventListener {
 
     @Override
     public void onDeleteEvent(final Event event) {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(event.roomId);
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1193,9 +1845,9 @@ public class MXDataHandler implements IMXEventListener {
 
     @Override
     public void onResentEvent(final Event event) {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(event.roomId);
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1210,9 +1862,9 @@ public class MXDataHandler implements IMXEventListener {
 
     @Override
     public void onResendingEvent(final Event event) {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(event.roomId);
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1229,7 +1881,7 @@ public class MXDataHandler implements IMXEventListener {
     public void onBingRulesUpdate() {
         final List<IMXEventListener> eventListeners = getListenersSnapshot();
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1247,10 +1899,12 @@ public class MXDataHandler implements IMXEventListener {
         mInitialSyncComplete = true;
 
         refreshUnreadCounters();
+        resyncCorruptedRooms();
+        dispatchLiveEventsBatch();
 
         final List<IMXEventListener> eventListeners = getListenersSnapshot();
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1267,7 +1921,7 @@ public class MXDataHandler implements IMXEventListener {
     public void onPresencesSyncComplete() {
         final List<IMXEventListener> eventListeners = getListenersSnapshot();
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1281,9 +1935,9 @@ public class MXDataHandler implements IMXEventListener {
     }
 
     public void onNewRoom(final String roomId) {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1297,9 +1951,9 @@ public class MXDataHandler implements IMXEventListener {
     }
 
     public void onJoinRoom(final String roomId) {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1313,9 +1967,9 @@ public class MXDataHandler implements IMXEventListener {
     }
 
     public void onRoomInitialSyncComplete(final String roomId) {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1329,9 +1983,9 @@ public class MXDataHandler implements IMXEventListener {
     }
 
     public void onRoomInternalUpdate(final String roomId) {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1345,9 +1999,9 @@ public class MXDataHandler implements IMXEventListener {
     }
 
     public void onLeaveRoom(final String roomId) {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1361,9 +2015,9 @@ public class MXDataHandler implements IMXEventListener {
     }
 
     public void onReceiptEvent(final String roomId, final List<String> senderIds) {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1377,9 +2031,9 @@ public class MXDataHandler implements IMXEventListener {
     }
 
     public void onRoomTagEvent(final String roomId) {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
@@ -1393,9 +2047,9 @@ public class MXDataHandler implements IMXEventListener {
     }
 
     public void onRoomSyncWithLimitedTimeline(final String roomId) {
-        final List<IMXEventListener> eventListeners = getListenersSnapshot();
+        final List<IMXEventListener> eventListeners = getListenersSnapshot(roomId);
 
-        mUiHandler.post(new Runnable() {
+        dispatchOnUiThread(new Runnable() {
             @Override
             public void run() {
                 for (IMXEventListener listener : eventListeners) {
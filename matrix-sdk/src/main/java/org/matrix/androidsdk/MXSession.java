@@ -50,13 +50,16 @@ import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.MatrixError;
 import org.matrix.androidsdk.rest.model.RoomResponse;
 import org.matrix.androidsdk.rest.model.Search.SearchResponse;
+import org.matrix.androidsdk.rest.model.SyncV2.FilterBody;
 import org.matrix.androidsdk.rest.model.bingrules.BingRule;
 import org.matrix.androidsdk.rest.model.login.Credentials;
 import org.matrix.androidsdk.sync.DefaultEventsThreadListener;
 import org.matrix.androidsdk.sync.EventsThread;
 import org.matrix.androidsdk.sync.EventsThreadListener;
+import org.matrix.androidsdk.sync.SyncPolicy;
 import org.matrix.androidsdk.util.BingRulesManager;
 import org.matrix.androidsdk.util.ContentManager;
+import org.matrix.androidsdk.util.JsonUtils;
 import org.matrix.androidsdk.util.UnsentEventsManager;
 
 import java.util.ArrayList;
@@ -103,6 +106,12 @@ public class MXSession {
 
     private ApiFailureCallback mFailureCallback;
 
+    // the sync filter defined by the application (null to use the default one)
+    private FilterBody mSyncFilter = null;
+
+    // the sync timeouts and retry delays, kept when the event stream is restarted
+    private final SyncPolicy mSyncPolicy = new SyncPolicy();
+
     private ContentManager mContentManager;
 
     public MXCallsManager mCallsManager;
@@ -417,16 +426,121 @@ public class MXSession {
 
         mEventsThread = new EventsThread(mEventsRestClient, mEventsRestClientV2, fEventsListener, initialToken);
         mEventsThread.setNetworkConnectivityReceiver(networkConnectivityReceiver);
+        mEventsThread.setSyncPolicy(mSyncPolicy);
 
         if (mFailureCallback != null) {
             mEventsThread.setFailureCallback(mFailureCallback);
         }
 
+        registerSyncFilter();
+
         if (mCredentials.accessToken != null && !mEventsThread.isAlive()) {
             mEventsThread.start();
         }
     }
 
+    /**
+     * Provides the sync policy.
+     * It can be used to tune the sync timeouts and to get the sync requests counters.
+     * @return the sync policy.
+     */
+    public SyncPolicy getSyncPolicy() {
+        return mSyncPolicy;
+    }
+
+    /**
+     * Define the filter applied to the sync requests (e.g. timeline limit, excluded event types, presence).
+     * It must be set before starting the event stream.
+     * The filter is registered on the server and its id is stored to be used by the next sessions.
+     * @param filter the filter, null to use the default one.
+     */
+    public void setSyncFilter(FilterBody filter) {
+        checkIfActive();
+        mSyncFilter = filter;
+    }
+
+    /**
+     * Provide the sync filter to the events thread.
+     * The inline filter is used until it is registered on the server.
+     * The default filter is only applied to the incremental syncs.
+     */
+    private void registerSyncFilter() {
+        // the filters are only supported by the sync V2
+        if ((null == mEventsRestClientV2) || (null == mEventsThread)) {
+            return;
+        }
+
+        final boolean isDefaultFilter = (null == mSyncFilter);
+        final String filter = isDefaultFilter ? EventsThread.DEFAULT_FILTER : JsonUtils.getGson(false).toJson(mSyncFilter);
+        final EventsThread eventsThread = mEventsThread;
+
+        // the server can forget a filter id (e.g. after a reset) : register the filter again
+        eventsThread.setInlineFilter(filter, new EventsThread.SyncFilterListener() {
+            @Override
+            public void onFilterIdRejected(String filterId) {
+                if (isActive() && (eventsThread == mEventsThread) && TextUtils.equals(filterId, mDataHandler.getStore().getSyncFilterId(filter))) {
+                    Log.e(LOG_TAG, "registerSyncFilter : the filter id " + filterId + " has been rejected, register the filter again");
+
+                    mDataHandler.getStore().setSyncFilterId(filter, null);
+                    mDataHandler.getStore().commit();
+
+                    createSyncFilter(filter, isDefaultFilter, eventsThread);
+                }
+            }
+        });
+
+        String filterId = mDataHandler.getStore().getSyncFilterId(filter);
+
+        if (null != filterId) {
+            eventsThread.setFilterOrFilterId(filterId, !isDefaultFilter);
+            return;
+        }
+
+        eventsThread.setFilterOrFilterId(filter, !isDefaultFilter);
+        createSyncFilter(filter, isDefaultFilter, eventsThread);
+    }
+
+    /**
+     * Register a sync filter on the server.
+     * The events thread uses the returned filter id.
+     * @param filter the inline JSON filter.
+     * @param isDefaultFilter true if it is the default filter i.e. it is not applied to the initial sync.
+     * @param eventsThread the events thread.
+     */
+    private void createSyncFilter(final String filter, final boolean isDefaultFilter, final EventsThread eventsThread) {
+        mEventsRestClientV2.createFilter(mCredentials.userId, JsonUtils.getGson(false).fromJson(filter, FilterBody.class), new ApiCallback<String>() {
+            @Override
+            public void onSuccess(String filterId) {
+                Log.d(LOG_TAG, "registerSyncFilter : the filter id is " + filterId);
+
+                if (isActive() && !TextUtils.isEmpty(filterId)) {
+                    mDataHandler.getStore().setSyncFilterId(filter, filterId);
+                    mDataHandler.getStore().commit();
+
+                    // the events thread could have been restarted with another filter
+                    if (eventsThread == mEventsThread) {
+                        eventsThread.setFilterOrFilterId(filterId, !isDefaultFilter);
+                    }
+                }
+            }
+
+            @Override
+            public void onNetworkError(Exception e) {
+                Log.e(LOG_TAG, "registerSyncFilter : onNetworkError " + e.getLocalizedMessage());
+            }
+
+            @Override
+            public void onMatrixError(MatrixError e) {
+                Log.e(LOG_TAG, "registerSyncFilter : onMatrixError " + e.getLocalizedMessage());
+            }
+
+            @Override
+            public void onUnexpectedError(Exception e) {
+                Log.e(LOG_TAG, "registerSyncFilter : onUnexpectedError " + e.getLocalizedMessage());
+            }
+        });
+    }
+
     /**
      * Refresh the access token
      */
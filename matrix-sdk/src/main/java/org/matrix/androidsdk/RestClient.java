@@ -31,6 +31,8 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.HostnameVerifier;
@@ -63,6 +65,11 @@ public class RestClient<T> {
     private static final int CONNECTION_TIMEOUT_MS = 15000;
     private static final int READ_TIMEOUT_MS = 60000;
 
+    // the http clients by homeserver config.
+    // The rest clients and the medias downloads of a session share the same pinned SSL socket factory
+    // so the connections of the pool can be reused (keep-alive, SPDY / HTTP2 multiplexing).
+    private static final Map<HomeserverConnectionConfig, OkHttpClient> sHttpClients = new WeakHashMap<HomeserverConnectionConfig, OkHttpClient>();
+
     protected Credentials mCredentials;
 
     protected T mApi;
@@ -77,21 +84,23 @@ public class RestClient<T> {
      * @param hsConfig The homeserver connection config.
      */
     public RestClient(HomeserverConnectionConfig hsConfig, Class<T> type, String uriPrefix, boolean withNullSerialization) {
+        this(hsConfig, type, uriPrefix, withNullSerialization, RestAdapter.LogLevel.FULL);
+    }
+
+    /**
+     * Constructor with a dedicated log level.
+     * The FULL log level reads the whole response body before converting it
+     * so it must not be used when the responses are streamed.
+     * @param hsConfig The homeserver connection config.
+     * @param logLevel the requests log level.
+     */
+    protected RestClient(HomeserverConnectionConfig hsConfig, Class<T> type, String uriPrefix, boolean withNullSerialization, RestAdapter.LogLevel logLevel) {
         // The JSON -> object mapper
         gson = JsonUtils.getGson(withNullSerialization);
 
         mCredentials = hsConfig.getCredentials();
 
-        OkHttpClient okHttpClient = new OkHttpClient();
-
-        okHttpClient.setConnectTimeout(CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-        okHttpClient.setReadTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-
-        try {
-            okHttpClient.setSslSocketFactory(CertUtil.newPinnedSSLSocketFactory(hsConfig));
-            okHttpClient.setHostnameVerifier(CertUtil.newHostnameVerifier(hsConfig));
-        } catch (Exception e) {
-        }
+        OkHttpClient okHttpClient = getHttpClient(hsConfig);
 
         // Rest adapter for turning API interfaces into actual REST-calling objects
         RestAdapter restAdapter = new RestAdapter.Builder()
@@ -109,11 +118,40 @@ public class RestClient<T> {
                 })
                 .build();
 
-        restAdapter.setLogLevel(RestAdapter.LogLevel.FULL);
+        restAdapter.setLogLevel(logLevel);
 
         mApi = restAdapter.create(type);
     }
 
+    /**
+     * Provides the http client of a homeserver config.
+     * It is created at the first call and then shared.
+     * @param hsConfig The homeserver connection config.
+     * @return the http client.
+     */
+    public static OkHttpClient getHttpClient(HomeserverConnectionConfig hsConfig) {
+        synchronized (sHttpClients) {
+            OkHttpClient okHttpClient = sHttpClients.get(hsConfig);
+
+            if (null == okHttpClient) {
+                okHttpClient = new OkHttpClient();
+
+                okHttpClient.setConnectTimeout(CONNECTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                okHttpClient.setReadTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+                try {
+                    okHttpClient.setSslSocketFactory(CertUtil.newPinnedSSLSocketFactory(hsConfig));
+                    okHttpClient.setHostnameVerifier(CertUtil.newHostnameVerifier(hsConfig));
+                } catch (Exception e) {
+                }
+
+                sHttpClients.put(hsConfig, okHttpClient);
+            }
+
+            return okHttpClient;
+        }
+    }
+
     /**
      * Set the unsentEvents manager.
      * @param unsentEventsManager The unsentEvents manager.
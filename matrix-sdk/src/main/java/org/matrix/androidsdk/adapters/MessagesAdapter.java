@@ -32,6 +32,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
 import android.widget.FrameLayout;
 import android.widget.ImageView;
@@ -76,7 +77,7 @@ import java.util.List;
  * An adapter which can display events. Events are not limited to m.room.message event types, but
  * can include topic changes (m.room.topic) and room member changes (m.room.member).
  */
-public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
+public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> implements AbsListView.RecyclerListener {
 
     public interface MessagesAdapterEventsListener {
         /**
@@ -606,6 +607,32 @@ public abstract class MessagesAdapter extends ArrayAdapter<MessageRow> {
         }
     }
 
+    /**
+     * A row view has been moved to the recycler.
+     * The pending downloads of its images are not anymore expected.
+     * @param view the row view.
+     */
+    @Override
+    public void onMovedToScrapHeap(View view) {
+        cancelBitmapLoads(view);
+    }
+
+    /**
+     * Cancel the pending downloads of the image views of a view tree.
+     * @param view the view.
+     */
+    private void cancelBitmapLoads(View view) {
+        if (view instanceof ImageView) {
+            mMediasCache.cancelBitmapLoad((ImageView) view);
+        } else if (view instanceof ViewGroup) {
+            ViewGroup viewGroup = (ViewGroup) view;
+
+            for (int index = 0; index < viewGroup.getChildCount(); index++) {
+                cancelBitmapLoads(viewGroup.getChildAt(index));
+            }
+        }
+    }
+
     /**
      * Returns an user display name for an user Id.
      * @param userId the user id.
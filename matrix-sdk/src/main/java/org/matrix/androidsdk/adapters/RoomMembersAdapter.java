@@ -276,10 +276,16 @@ public abstract class RoomMembersAdapter extends ArrayAdapter<RoomMember> {
         for (int i = 0; i < getCount(); i++) {
             RoomMember m = getItem(i);
             if (userId.equals(m.getUserId())) {
-                // Copy members
-                m.displayname = member.displayname;
-                m.avatarUrl = member.avatarUrl;
-                m.membership = member.membership;
+                // the displayed members are shared with the room states snapshots :
+                // replace the item by an updated copy instead of updating it in place.
+                RoomMember updatedMember = m.deepCopy();
+                updatedMember.displayname = member.displayname;
+                updatedMember.avatarUrl = member.avatarUrl;
+                updatedMember.membership = member.membership;
+
+                setNotifyOnChange(false);
+                remove(m);
+                insert(updatedMember, i);
                 notifyDataSetChanged();
                 break;
             }
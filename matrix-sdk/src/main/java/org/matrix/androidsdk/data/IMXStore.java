@@ -86,6 +86,13 @@ public interface IMXStore {
      */
     boolean isCorrupted();
 
+    /**
+     * Provides the rooms which have been removed while opening the store because their data was corrupted.
+     * They must be resynchronized with the server. The list is cleared by this call.
+     * @return the rooms ids list.
+     */
+    List<String> getCorruptedRoomIds();
+
     /**
      * Returns to disk usage size in bytes.
      * @return disk usage size
@@ -104,6 +111,20 @@ public interface IMXStore {
      */
     void setEventStreamToken(String token);
 
+    /**
+     * Provides the server-side id of a sync filter.
+     * @param filter the filter (JSON).
+     * @return the filter id, null if this filter has not been registered.
+     */
+    String getSyncFilterId(String filter);
+
+    /**
+     * Store the server-side id of a sync filter.
+     * @param filter the filter (JSON).
+     * @param filterId the filter id.
+     */
+    void setSyncFilterId(String filter, String filterId);
+
     /**
      * Define a MXStore listener.
      * @param listener
@@ -31,15 +31,35 @@ import org.matrix.androidsdk.rest.model.RoomMember;
 import org.matrix.androidsdk.rest.model.TokensChunkResponse;
 import org.matrix.androidsdk.util.ContentUtils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -50,20 +70,30 @@ public class MXFileStore extends MXMemoryStore {
     private static final String LOG_TAG = "MXFileStore";
 
     // some constant values
-    final int MXFILE_VERSION = 1;
+    final int MXFILE_VERSION = 3;
+
+    // the files of the previous versions were written with an ObjectOutputStream
+    // (in the version 1, the rooms members were stored in a HashMap, see RoomState.readObject)
+    // they are converted to the MXFileStoreCodec format when the store is opened.
+    final int MXFILE_LEGACY_VERSION = 1;
 
     // ensure that there is enough messages to fill a tablet screen
     final int MAX_STORED_MESSAGES_COUNT = 50;
 
+    // the maximum number of threads used to load the rooms
+    final int MAX_LOADING_THREADS_COUNT = 4;
+
     final String MXFILE_STORE_FOLDER = "MXFileStore";
     final String MXFILE_STORE_METADATA_FILE_NAME = "MXFileStore";
 
     final String MXFILE_STORE_GZ_ROOMS_MESSAGES_FOLDER = "messages_gz";
+    final String MXFILE_STORE_ROOMS_MESSAGES_LOG_FOLDER = "messages_log";
     final String MXFILE_STORE_ROOMS_TOKENS_FOLDER = "tokens";
     final String MXFILE_STORE_GZ_ROOMS_STATE_FOLDER = "state_gz";
     final String MXFILE_STORE_ROOMS_SUMMARY_FOLDER = "summary";
     final String MXFILE_STORE_ROOMS_RECEIPT_FOLDER = "receipts";
     final String MXFILE_STORE_ROOMS_ACCOUNT_DATA_FOLDER = "accountData";
+    final String MXFILE_STORE_TMP_FOLDER = "tmp";
 
     private Context mContext = null;
 
@@ -79,23 +109,80 @@ public class MXFileStore extends MXMemoryStore {
 
     // List of rooms to save on [MXStore commit]
     // filled with roomId
-    private ArrayList<String> mRoomsToCommitForMessages;
-    private ArrayList<String> mRoomsToCommitForStates;
-    private ArrayList<String> mRoomsToCommitForSummaries;
-    private ArrayList<String> mRoomsToCommitForAccountData;
-    private ArrayList<String> mRoomsToCommitForReceipts;
+    // the sets instances are kept, they are updated with addRoomToCommit
+    private LinkedHashSet<String> mRoomsToCommitForMessages;
+    private LinkedHashSet<String> mRoomsToCommitForStates;
+    private LinkedHashSet<String> mRoomsToCommitForSummaries;
+    private LinkedHashSet<String> mRoomsToCommitForAccountData;
+    private LinkedHashSet<String> mRoomsToCommitForReceipts;
+
+    // live events to append to the rooms messages logs on [MXStore commit]
+    // the rooms listed in mRoomsToCommitForMessages are fully rewritten instead.
+    private HashMap<String, ArrayList<Event>> mRoomsToAppendForMessages;
+
+    // number of events appended to each room messages log since its latest compaction
+    private Map<String, Integer> mRoomsMessagesLogCount;
 
     // Flag to indicate metaData needs to be store
     private boolean mMetaDataHasChanged = false;
 
+    // the rooms which have been removed while loading the store because their files are corrupted
+    private final ArrayList<String> mCorruptedRoomIds = new ArrayList<String>();
+
+    // the updates are not written at each commit.
+    // they are coalesced until the store thread flushes them i.e.
+    // COMMIT_DEBOUNCE_DELAY_MS after the latest commit or COMMIT_MAX_LATENCY_MS after the first pending one.
+    private static final long COMMIT_DEBOUNCE_DELAY_MS = 500;
+    private static final long COMMIT_MAX_LATENCY_MS = 3000;
+
+    /**
+     * The updates to write at the next flush.
+     */
+    private static class PendingCommit {
+        final LinkedHashSet<String> mRoomsMessages = new LinkedHashSet<String>();
+        final HashMap<String, ArrayList<Event>> mRoomsAppendedMessages = new HashMap<String, ArrayList<Event>>();
+        final LinkedHashSet<String> mRoomsStates = new LinkedHashSet<String>();
+        final LinkedHashSet<String> mRoomsSummaries = new LinkedHashSet<String>();
+        final LinkedHashSet<String> mRoomsAccountData = new LinkedHashSet<String>();
+        final LinkedHashSet<String> mRoomsReceipts = new LinkedHashSet<String>();
+        MXFileStoreMetaData mMetadata = null;
+
+        boolean isEmpty() {
+            return mRoomsMessages.isEmpty() && mRoomsAppendedMessages.isEmpty() && mRoomsStates.isEmpty() &&
+                    mRoomsSummaries.isEmpty() && mRoomsAccountData.isEmpty() && mRoomsReceipts.isEmpty() && (null == mMetadata);
+        }
+    }
+
+    private final Object mPendingCommitLock = new Object();
+    private PendingCommit mPendingCommit = new PendingCommit();
+    // the time of the oldest unflushed commit, 0 if there is none
+    private long mPendingCommitStartTs = 0;
+
+    // the event stream token written in the metadata file.
+    // It is only updated when the rooms data of the same flush have been written
+    // so the store can resume from it with an incremental sync after a crash.
+    // It is only used from the store thread.
+    private String mDurableEventStreamToken = null;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!isKilled()) {
+                flushPendingCommit();
+            }
+        }
+    };
+
     // The path of the MXFileStore folders
     private File mStoreFolderFile = null;
     private File mGzStoreRoomsMessagesFolderFile = null;
+    private File mStoreRoomsMessagesLogFolderFile = null;
     private File mStoreRoomsTokensFolderFile = null;
     private File mGzStoreRoomsStateFolderFile = null;
     private File mStoreRoomsSummaryFolderFile = null;
     private File mStoreRoomsMessagesReceiptsFolderFile = null;
     private File mStoreRoomsAccountDataFolderFile = null;
+    private File mStoreTmpFolderFile = null;
 
     // the background thread
     private HandlerThread mHandlerThread = null;
@@ -113,11 +200,13 @@ public class MXFileStore extends MXMemoryStore {
         // MXFileStore/userID/
         // MXFileStore/userID/MXFileStore
         // MXFileStore/userID/Messages/
+        // MXFileStore/userID/MessagesLog/
         // MXFileStore/userID/Tokens/
         // MXFileStore/userID/States/
         // MXFileStore/userID/Summaries/
         // MXFileStore/userID/receipt/<room Id>/receipts
         // MXFileStore/userID/accountData/
+        // MXFileStore/userID/tmp/
 
         // create the dirtree
         mStoreFolderFile = new File(new File(mContext.getApplicationContext().getFilesDir(), MXFILE_STORE_FOLDER), userId);
@@ -131,6 +220,11 @@ public class MXFileStore extends MXMemoryStore {
             mGzStoreRoomsMessagesFolderFile.mkdirs();
         }
 
+        mStoreRoomsMessagesLogFolderFile = new File(mStoreFolderFile, MXFILE_STORE_ROOMS_MESSAGES_LOG_FOLDER);
+        if (!mStoreRoomsMessagesLogFolderFile.exists()) {
+            mStoreRoomsMessagesLogFolderFile.mkdirs();
+        }
+
         mStoreRoomsTokensFolderFile = new File(mStoreFolderFile, MXFILE_STORE_ROOMS_TOKENS_FOLDER);
         if (!mStoreRoomsTokensFolderFile.exists()) {
             mStoreRoomsTokensFolderFile.mkdirs();
@@ -155,6 +249,70 @@ public class MXFileStore extends MXMemoryStore {
         if (!mStoreRoomsAccountDataFolderFile.exists()) {
             mStoreRoomsAccountDataFolderFile.mkdirs();
         }
+
+        mStoreTmpFolderFile = new File(mStoreFolderFile, MXFILE_STORE_TMP_FOLDER);
+        if (!mStoreTmpFolderFile.exists()) {
+            mStoreTmpFolderFile.mkdirs();
+        }
+    }
+
+    //================================================================================
+    // Atomic files writing
+    //================================================================================
+
+    /**
+     * A file output stream which synchronizes its content with the storage device before being closed.
+     */
+    private static class SyncedFileOutputStream extends FileOutputStream {
+        private boolean mIsClosed = false;
+
+        SyncedFileOutputStream(File file) throws FileNotFoundException {
+            super(file);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!mIsClosed) {
+                mIsClosed = true;
+                getFD().sync();
+            }
+
+            super.close();
+        }
+    }
+
+    /**
+     * Provides the temporary file used to write a store file.
+     * The temporary files are in the same file system as the store files so they can be renamed atomically.
+     * @param file the store file
+     * @return the temporary file
+     */
+    private File getTemporaryFile(File file) {
+        return new File(mStoreTmpFolderFile, file.getParentFile().getName() + "_" + file.getName());
+    }
+
+    /**
+     * Start writing a store file.
+     * The data is written in a temporary file until commitFileWrite is called
+     * so a crash while writing never alters the existing file.
+     * @param file the store file
+     * @return the output stream
+     * @throws IOException if the temporary file cannot be created
+     */
+    private FileOutputStream startFileWrite(File file) throws IOException {
+        return new SyncedFileOutputStream(getTemporaryFile(file));
+    }
+
+    /**
+     * Replace a store file by the written temporary file.
+     * The output stream must have been closed.
+     * @param file the store file
+     * @throws IOException if the file cannot be replaced
+     */
+    private void commitFileWrite(File file) throws IOException {
+        if (!getTemporaryFile(file).renameTo(file)) {
+            throw new IOException("commitFileWrite : cannot rename the temporary file of " + file.getName());
+        }
     }
 
     /**
@@ -172,17 +330,19 @@ public class MXFileStore extends MXMemoryStore {
         createDirTree(mCredentials.userId);
 
         // updated data
-        mRoomsToCommitForMessages = new ArrayList<String>();
-        mRoomsToCommitForStates = new ArrayList<String>();
-        mRoomsToCommitForSummaries = new ArrayList<String>();
-        mRoomsToCommitForAccountData = new ArrayList<String>();
-        mRoomsToCommitForReceipts = new ArrayList<String>();
+        mRoomsToCommitForMessages = new LinkedHashSet<String>();
+        mRoomsToCommitForStates = new LinkedHashSet<String>();
+        mRoomsToCommitForSummaries = new LinkedHashSet<String>();
+        mRoomsToCommitForAccountData = new LinkedHashSet<String>();
+        mRoomsToCommitForReceipts = new LinkedHashSet<String>();
+        mRoomsToAppendForMessages = new HashMap<String, ArrayList<Event>>();
+        mRoomsMessagesLogCount = new ConcurrentHashMap<String, Integer>();
 
         // check if the metadata file exists and if it is valid
         loadMetaData();
 
         if ( (null == mMetadata) ||
-                (mMetadata.mVersion != MXFILE_VERSION) ||
+                (mMetadata.mVersion < MXFILE_LEGACY_VERSION) || (mMetadata.mVersion > MXFILE_VERSION) ||
                 !TextUtils.equals(mMetadata.mUserId, mCredentials.userId) ||
                 !TextUtils.equals(mMetadata.mAccessToken, mCredentials.accessToken)) {
             deleteAllData(true);
@@ -200,7 +360,7 @@ public class MXFileStore extends MXMemoryStore {
             mMetadata.mAccessToken = mCredentials.accessToken;
             mMetadata.mVersion = MXFILE_VERSION;
             mMetaDataHasChanged = true;
-            saveMetaData();
+            commit();
 
             mEventStreamToken = null;
 
@@ -210,6 +370,37 @@ public class MXFileStore extends MXMemoryStore {
         }
     }
 
+    /**
+     * Rewrite the legacy files with the MXFileStoreCodec format.
+     * The legacy files have been loaded so every room is saved again.
+     */
+    private void migrateLegacyFiles() {
+        Log.d(LOG_TAG, "migrateLegacyFiles : " + mRoomEvents.size() + " rooms");
+
+        for (String roomId : mRoomEvents.keySet()) {
+            addRoomToCommit(mRoomsToCommitForMessages, roomId);
+        }
+
+        for (String roomId : mRooms.keySet()) {
+            addRoomToCommit(mRoomsToCommitForStates, roomId);
+        }
+
+        for (String roomId : mRoomSummaries.keySet()) {
+            addRoomToCommit(mRoomsToCommitForSummaries, roomId);
+        }
+
+        for (String roomId : mReceiptsByRoomId.keySet()) {
+            addRoomToCommit(mRoomsToCommitForReceipts, roomId);
+        }
+
+        synchronized (mPendingCommitLock) {
+            mMetadata.mVersion = MXFILE_VERSION;
+            mMetaDataHasChanged = true;
+        }
+
+        commit();
+    }
+
     /**
      * Killed the background thread.
      * @param isKilled
@@ -233,26 +424,188 @@ public class MXFileStore extends MXMemoryStore {
         return isKilled;
     }
 
-    /**
-     * Save changes in the store.
-     * If the store uses permanent storage like database or file, it is the optimised time
-     * to commit the last changes.
-     */
-    @Override
     public void commit() {
         // Save data only if metaData exists
-        if ((null != mMetadata) && !isKilled()) {
+        if ((null != mMetadata) && !isKilled() && (null != mFileStoreHandler)) {
             Log.d(LOG_TAG, "++ Commit");
-            saveRoomsMessages();
-            saveRoomStates();
-            saveSummaries();
-            saveRoomsAccountData();
-            saveReceipts();
-            saveMetaData();
+
+            long delay;
+
+            synchronized (mPendingCommitLock) {
+                addPendingCommit();
+
+                long now = System.currentTimeMillis();
+
+                if (0 == mPendingCommitStartTs) {
+                    mPendingCommitStartTs = now;
+                }
+
+                delay = Math.max(0, Math.min(COMMIT_DEBOUNCE_DELAY_MS, mPendingCommitStartTs + COMMIT_MAX_LATENCY_MS - now));
+            }
+
+            // debounce : only the latest commit triggers a flush
+            mFileStoreHandler.removeCallbacks(mFlushRunnable);
+            mFileStoreHandler.postDelayed(mFlushRunnable, delay);
+
             Log.d(LOG_TAG, "-- Commit");
         }
     }
 
+    /**
+     * Add a room to an updated rooms set.
+     * The rooms can be updated from several threads (see MXDataHandler.setParallelRoomsSync)
+     * so the sets are only accessed while holding mPendingCommitLock.
+     * @param rooms the updated rooms set.
+     * @param roomId the room id.
+     * @return true if the room has been added.
+     */
+    private boolean addRoomToCommit(LinkedHashSet<String> rooms, String roomId) {
+        synchronized (mPendingCommitLock) {
+            return rooms.add(roomId);
+        }
+    }
+
+    /**
+     * Move the updated rooms lists to the pending commit.
+     * The caller must hold mPendingCommitLock.
+     */
+    private void addPendingCommit() {
+        PendingCommit pendingCommit = mPendingCommit;
+
+        // the fully rewritten rooms do not need to append their live events
+        for (String roomId : mRoomsToCommitForMessages) {
+            pendingCommit.mRoomsMessages.add(roomId);
+            pendingCommit.mRoomsAppendedMessages.remove(roomId);
+        }
+        mRoomsToCommitForMessages.clear();
+
+        for (String roomId : mRoomsToAppendForMessages.keySet()) {
+            if (!pendingCommit.mRoomsMessages.contains(roomId)) {
+                ArrayList<Event> events = pendingCommit.mRoomsAppendedMessages.get(roomId);
+
+                if (null == events) {
+                    events = new ArrayList<Event>();
+                    pendingCommit.mRoomsAppendedMessages.put(roomId, events);
+                }
+
+                events.addAll(mRoomsToAppendForMessages.get(roomId));
+            }
+        }
+        mRoomsToAppendForMessages.clear();
+
+        pendingCommit.mRoomsStates.addAll(mRoomsToCommitForStates);
+        mRoomsToCommitForStates.clear();
+
+        pendingCommit.mRoomsSummaries.addAll(mRoomsToCommitForSummaries);
+        mRoomsToCommitForSummaries.clear();
+
+        pendingCommit.mRoomsAccountData.addAll(mRoomsToCommitForAccountData);
+        mRoomsToCommitForAccountData.clear();
+
+        pendingCommit.mRoomsReceipts.addAll(mRoomsToCommitForReceipts);
+        mRoomsToCommitForReceipts.clear();
+
+        if (mMetaDataHasChanged) {
+            mMetaDataHasChanged = false;
+            pendingCommit.mMetadata = mMetadata.deepCopy();
+        }
+    }
+
+    /**
+     * Write the pending updates.
+     * It must be called from the store thread.
+     */
+    private void flushPendingCommit() {
+        PendingCommit pendingCommit;
+
+        synchronized (mPendingCommitLock) {
+            pendingCommit = mPendingCommit;
+            mPendingCommit = new PendingCommit();
+            mPendingCommitStartTs = 0;
+        }
+
+        if (pendingCommit.isEmpty()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+
+        // the rooms which cannot be written are flushed again with the next commit
+        // (e.g. the next sync response) instead of retrying in loop when the storage is full.
+        PendingCommit failedCommit = new PendingCommit();
+
+        for (String roomId : pendingCommit.mRoomsAppendedMessages.keySet()) {
+            if (!appendRoomMessages(roomId, pendingCommit.mRoomsAppendedMessages.get(roomId))) {
+                failedCommit.mRoomsMessages.add(roomId);
+            }
+        }
+
+        for (String roomId : pendingCommit.mRoomsMessages) {
+            if (!saveRoomMessages(roomId)) {
+                failedCommit.mRoomsMessages.add(roomId);
+            }
+        }
+
+        for (String roomId : pendingCommit.mRoomsStates) {
+            if (!saveRoomState(roomId)) {
+                failedCommit.mRoomsStates.add(roomId);
+            }
+        }
+
+        for (String roomId : pendingCommit.mRoomsSummaries) {
+            if (!saveRoomSummary(roomId)) {
+                failedCommit.mRoomsSummaries.add(roomId);
+            }
+        }
+
+        for (String roomId : pendingCommit.mRoomsAccountData) {
+            if (!saveRoomAccountData(roomId)) {
+                failedCommit.mRoomsAccountData.add(roomId);
+            }
+        }
+
+        for (String roomId : pendingCommit.mRoomsReceipts) {
+            if (!saveRoomReceipts(roomId)) {
+                failedCommit.mRoomsReceipts.add(roomId);
+            }
+        }
+
+        if (!failedCommit.isEmpty()) {
+            Log.e(LOG_TAG, "flushPendingCommit : some rooms have not been written, keep the event stream token " + mDurableEventStreamToken);
+
+            synchronized (mPendingCommitLock) {
+                mRoomsToCommitForMessages.addAll(failedCommit.mRoomsMessages);
+                mRoomsToCommitForStates.addAll(failedCommit.mRoomsStates);
+                mRoomsToCommitForSummaries.addAll(failedCommit.mRoomsSummaries);
+                mRoomsToCommitForAccountData.addAll(failedCommit.mRoomsAccountData);
+                mRoomsToCommitForReceipts.addAll(failedCommit.mRoomsReceipts);
+
+                // the latest token will be written with the rooms data
+                if (null != pendingCommit.mMetadata) {
+                    mMetaDataHasChanged = true;
+                }
+            }
+
+            // the metadata must not reference the token of the unwritten rooms data
+            if (null != pendingCommit.mMetadata) {
+                pendingCommit.mMetadata.mEventStreamToken = mDurableEventStreamToken;
+            }
+        }
+
+        if (null != pendingCommit.mMetadata) {
+            if (saveMetaData(pendingCommit.mMetadata)) {
+                mDurableEventStreamToken = pendingCommit.mMetadata.mEventStreamToken;
+            }
+        }
+
+        Log.d(LOG_TAG, "flushPendingCommit : " + pendingCommit.mRoomsAppendedMessages.size() + " appended messages lists, "
+                + pendingCommit.mRoomsMessages.size() + " messages lists, "
+                + pendingCommit.mRoomsStates.size() + " states, "
+                + pendingCommit.mRoomsSummaries.size() + " summaries, "
+                + pendingCommit.mRoomsAccountData.size() + " account data, "
+                + pendingCommit.mRoomsReceipts.size() + " receipts in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
     /**
      * Open the store.
      */
@@ -290,60 +643,30 @@ public class MXFileStore extends MXMemoryStore {
                                 String errorDescription = null;
                                 boolean succeed = true;
 
-                                succeed &= loadRoomsMessages();
+                                // the summaries are loaded first to define the rooms loading order
+                                boolean summariesLoaded = loadSummaries();
 
-                                if (!succeed) {
-                                    errorDescription = "loadRoomsMessages fails";
-                                    Log.e(LOG_TAG, errorDescription);
+                                if (!summariesLoaded) {
+                                    // the summaries are rebuilt from the rooms to keep the event stream token
+                                    Log.e(LOG_TAG, "loadSummaries fails");
                                 } else {
-                                    Log.e(LOG_TAG, "loadRoomsMessages succeeds");
-                                }
-
-                                if (succeed) {
-                                    succeed &= loadRoomsState();
-
-                                    if (!succeed) {
-                                        errorDescription = "loadRoomsState fails";
-                                        Log.e(LOG_TAG, errorDescription);
-                                    } else {
-                                        Log.e(LOG_TAG, "loadRoomsState succeeds");
-                                    }
-                                }
-
-                                if (succeed) {
-                                    succeed &= loadSummaries();
-
-                                    if (!succeed) {
-                                        errorDescription = "loadSummaries fails";
-                                        Log.e(LOG_TAG, errorDescription);
-                                    } else {
-                                        Log.e(LOG_TAG, "loadSummaries succeeds");
-                                    }
+                                    Log.e(LOG_TAG, "loadSummaries succeeds");
                                 }
 
-                                if (succeed) {
-                                    succeed &= loadReceipts();
-
-                                    if (!succeed) {
-                                        errorDescription = "loadEventsReceipts fails";
-                                        Log.e(LOG_TAG, errorDescription);
-                                    } else {
-                                        Log.e(LOG_TAG, "loadEventsReceipts succeeds");
-                                    }
-                                }
+                                errorDescription = loadRooms();
+                                succeed = (null == errorDescription);
 
-                                if (succeed) {
-                                    succeed &= loadRoomsAccountData();
+                                if (!succeed) {
+                                    Log.e(LOG_TAG, errorDescription);
+                                } else {
+                                    Log.e(LOG_TAG, "loadRooms succeeds");
 
-                                    if (!succeed) {
-                                        errorDescription = "loadRoomsAccountData fails";
-                                        Log.e(LOG_TAG, errorDescription);
-                                    } else {
-                                        Log.e(LOG_TAG, "loadRoomsAccountData succeeds");
+                                    if (!summariesLoaded) {
+                                        rebuildSummaries();
                                     }
                                 }
 
-                                // do not expect having empty list
+                                // the rooms data cannot be listed
                                 // assume that something is corrupted
                                 if (!succeed) {
 
@@ -356,18 +679,36 @@ public class MXFileStore extends MXMemoryStore {
 
                                     deleteAllData(true);
 
-                                    mRoomsToCommitForMessages = new ArrayList<String>();
-                                    mRoomsToCommitForStates = new ArrayList<String>();
-                                    mRoomsToCommitForSummaries = new ArrayList<String>();
-                                    mRoomsToCommitForReceipts = new ArrayList<String>();
-
-                                    mMetadata = tmpMetadata;
-                                    mMetadata.mEventStreamToken = null;
+                                    // the pending commit references the deleted data
+                                    mFileStoreHandler.removeCallbacks(mFlushRunnable);
+
+                                    synchronized (mPendingCommitLock) {
+                                        mRoomsToCommitForMessages.clear();
+                                        mRoomsToCommitForStates.clear();
+                                        mRoomsToCommitForSummaries.clear();
+                                        mRoomsToCommitForAccountData.clear();
+                                        mRoomsToCommitForReceipts.clear();
+                                        mRoomsToAppendForMessages.clear();
+
+                                        mPendingCommit = new PendingCommit();
+                                        mPendingCommitStartTs = 0;
+
+                                        mMetadata = tmpMetadata;
+                                        mMetadata.mEventStreamToken = null;
+                                        // the files are now written with the current format
+                                        mMetadata.mVersion = MXFILE_VERSION;
+                                        mMetaDataHasChanged = true;
+                                    }
+                                    mRoomsMessagesLogCount = new ConcurrentHashMap<String, Integer>();
 
                                     //  the event stream token is put to zero to ensure ta
                                     mEventStreamToken = null;
                                 }
 
+                                if (succeed && (mMetadata.mVersion < MXFILE_VERSION)) {
+                                    migrateLegacyFiles();
+                                }
+
                                 synchronized (this) {
                                     mIsReady = true;
                                 }
@@ -393,28 +734,54 @@ public class MXFileStore extends MXMemoryStore {
         }
     }
 
-    /**
-     * Close the store.
-     * Any pending operation must be complete in this call.
-     */
-    @Override
     public void close() {
         Log.d(LOG_TAG, "Close the store");
 
         super.close();
+
+        // the pending updates are written before stopping the store thread
+        commit();
         setIsKilled(true);
-        mHandlerThread.quit();
+
+        if (null != mFileStoreHandler) {
+            final HandlerThread handlerThread = mHandlerThread;
+
+            mFileStoreHandler.removeCallbacks(mFlushRunnable);
+            mFileStoreHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    flushPendingCommit();
+                    handlerThread.quit();
+                }
+            });
+        } else {
+            mHandlerThread.quit();
+        }
+
         mHandlerThread = null;
     }
 
-    /**
-     * Clear the store.
-     * Any pending operation must be complete in this call.
-     */
-    @Override
     public void clear() {
         Log.d(LOG_TAG, "Clear the store");
         super.close();
+
+        // the pending updates are useless
+        synchronized (mPendingCommitLock) {
+            mRoomsToCommitForMessages.clear();
+            mRoomsToCommitForStates.clear();
+            mRoomsToCommitForSummaries.clear();
+            mRoomsToCommitForAccountData.clear();
+            mRoomsToCommitForReceipts.clear();
+            mRoomsToAppendForMessages.clear();
+
+            mPendingCommit = new PendingCommit();
+            mPendingCommitStartTs = 0;
+        }
+
+        if (null != mFileStoreHandler) {
+            mFileStoreHandler.removeCallbacks(mFlushRunnable);
+        }
+
         deleteAllData(false);
     }
 
@@ -437,6 +804,7 @@ public class MXFileStore extends MXMemoryStore {
         }
         mMetadata = null;
         mEventStreamToken = null;
+        mDurableEventStreamToken = null;
     }
 
     /**
@@ -512,22 +880,42 @@ public class MXFileStore extends MXMemoryStore {
     @Override
     public void setEventStreamToken(String token) {
         Log.d(LOG_TAG, "Set token to " + token);
-        super.setEventStreamToken(token);
-        mMetaDataHasChanged = true;
+
+        // the metadata is copied by the pending commit while holding this lock
+        synchronized (mPendingCommitLock) {
+            super.setEventStreamToken(token);
+            mMetaDataHasChanged = true;
+        }
+    }
+
+    @Override
+    public void setSyncFilterId(String filter, String filterId) {
+        Log.d(LOG_TAG, "Set the sync filter id to " + filterId);
+
+        synchronized (mPendingCommitLock) {
+            super.setSyncFilterId(filter, filterId);
+            mMetaDataHasChanged = true;
+        }
     }
 
     @Override
     public void setDisplayName(String displayName) {
         Log.d(LOG_TAG, "Set setDisplayName to " + displayName);
-        mMetaDataHasChanged = true;
-        super.setDisplayName(displayName);
+
+        synchronized (mPendingCommitLock) {
+            mMetaDataHasChanged = true;
+            super.setDisplayName(displayName);
+        }
     }
 
     @Override
     public void setAvatarURL(String avatarURL) {
         Log.d(LOG_TAG, "Set setAvatarURL to " + avatarURL);
-        mMetaDataHasChanged = true;
-        super.setAvatarURL(avatarURL);
+
+        synchronized (mPendingCommitLock) {
+            mMetaDataHasChanged = true;
+            super.setAvatarURL(avatarURL);
+        }
     }
 
     /**
@@ -546,7 +934,7 @@ public class MXFileStore extends MXMemoryStore {
         // do not flush the room messages file
         // when the user reads the room history and the events list size reaches its max size.
         if (direction == Room.EventDirection.BACKWARDS) {
-            LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
+            RoomEventsTimeline events = mRoomEvents.get(roomId);
 
             if (null != events) {
                 canStore = (events.size() < MAX_STORED_MESSAGES_COUNT);
@@ -559,8 +947,8 @@ public class MXFileStore extends MXMemoryStore {
 
         super.storeRoomEvents(roomId, eventsResponse, direction);
 
-        if (canStore && (mRoomsToCommitForMessages.indexOf(roomId) < 0)) {
-            mRoomsToCommitForMessages.add(roomId);
+        if (canStore) {
+            addRoomToCommit(mRoomsToCommitForMessages, roomId);
         }
     }
 
@@ -570,10 +958,37 @@ public class MXFileStore extends MXMemoryStore {
      */
     @Override
     public void storeLiveRoomEvent(Event event) {
+        if ((null == event) || (null == event.roomId)) {
+            return;
+        }
+
+        RoomEventsTimeline events = mRoomEvents.get(event.roomId);
+        int countBefore = (null != events) ? events.size() : 0;
+
         super.storeLiveRoomEvent(event);
 
-        if (mRoomsToCommitForMessages.indexOf(event.roomId) < 0) {
-            mRoomsToCommitForMessages.add(event.roomId);
+        events = mRoomEvents.get(event.roomId);
+        int countAfter = (null != events) ? events.size() : 0;
+        boolean isLatestEvent = (event == getLatestEvent(event.roomId));
+
+        // the event has only been added at the end of the history
+        // so it can be appended to the room messages log.
+        // the echo events are not appended because they will be replaced.
+        // an already stored event may have been updated in place (e.g. its sent state)
+        // so the room is fully rewritten.
+        synchronized (mPendingCommitLock) {
+            if ((countAfter == (countBefore + 1)) && isLatestEvent && !event.isDummyEvent() && !mRoomsToCommitForMessages.contains(event.roomId)) {
+                ArrayList<Event> eventsToAppend = mRoomsToAppendForMessages.get(event.roomId);
+
+                if (null == eventsToAppend) {
+                    eventsToAppend = new ArrayList<Event>();
+                    mRoomsToAppendForMessages.put(event.roomId, eventsToAppend);
+                }
+
+                eventsToAppend.add(event);
+            } else {
+                addRoomToCommit(mRoomsToCommitForMessages, event.roomId);
+            }
         }
     }
 
@@ -582,9 +997,7 @@ public class MXFileStore extends MXMemoryStore {
         Boolean isReplaced = super.updateEventContent(roomId, eventId, newContent);
 
         if (isReplaced) {
-            if (mRoomsToCommitForMessages.indexOf(roomId) < 0) {
-                mRoomsToCommitForMessages.add(roomId);
-            }
+            addRoomToCommit(mRoomsToCommitForMessages, roomId);
         }
 
         return isReplaced;
@@ -594,9 +1007,7 @@ public class MXFileStore extends MXMemoryStore {
     public void deleteEvent(Event event) {
         super.deleteEvent(event);
 
-        if (mRoomsToCommitForMessages.indexOf(event.roomId) < 0) {
-            mRoomsToCommitForMessages.add(event.roomId);
-        }
+        addRoomToCommit(mRoomsToCommitForMessages, event.roomId);
     }
 
     /**
@@ -616,6 +1027,8 @@ public class MXFileStore extends MXMemoryStore {
             }
         }
 
+        deleteRoomMessagesLogFile(roomId);
+
         File tokenFile = new File(mStoreRoomsTokensFolderFile, roomId);
         if (tokenFile.exists()) {
             try {
@@ -631,6 +1044,9 @@ public class MXFileStore extends MXMemoryStore {
         Log.d(LOG_TAG, "deleteRoom " + roomId);
 
         super.deleteRoom(roomId);
+        synchronized (mPendingCommitLock) {
+            mRoomsToAppendForMessages.remove(roomId);
+        }
         deleteRoomMessagesFiles(roomId);
         deleteRoomStateFile(roomId);
         deleteRoomSummaryFile(roomId);
@@ -649,22 +1065,16 @@ public class MXFileStore extends MXMemoryStore {
 
         deleteRoomSummaryFile(roomId);
 
-        if (mRoomsToCommitForMessages.indexOf(roomId) < 0) {
-            mRoomsToCommitForMessages.add(roomId);
-        }
+        addRoomToCommit(mRoomsToCommitForMessages, roomId);
 
-        if (mRoomsToCommitForSummaries.indexOf(roomId) < 0) {
-            mRoomsToCommitForSummaries.add(roomId);
-        }
+        addRoomToCommit(mRoomsToCommitForSummaries, roomId);
     }
 
     @Override
     public void storeLiveStateForRoom(String roomId) {
         super.storeLiveStateForRoom(roomId);
 
-        if (mRoomsToCommitForStates.indexOf(roomId) < 0) {
-            mRoomsToCommitForStates.add(roomId);
-        }
+        addRoomToCommit(mRoomsToCommitForStates, roomId);
     }
 
     //================================================================================
@@ -675,9 +1085,8 @@ public class MXFileStore extends MXMemoryStore {
     public void flushSummary(RoomSummary summary) {
         super.flushSummary(summary);
 
-        if (mRoomsToCommitForSummaries.indexOf(summary.getRoomId()) < 0) {
-            mRoomsToCommitForSummaries.add(summary.getRoomId());
-            saveSummaries();
+        if (addRoomToCommit(mRoomsToCommitForSummaries, summary.getRoomId())) {
+            commit();
         }
     }
 
@@ -689,21 +1098,17 @@ public class MXFileStore extends MXMemoryStore {
         Collection<String> roomIds = mRoomSummaries.keySet();
 
         for(String roomId : roomIds) {
-            if (mRoomsToCommitForSummaries.indexOf(roomId) < 0) {
-                mRoomsToCommitForSummaries.add(roomId);
-            }
+            addRoomToCommit(mRoomsToCommitForSummaries, roomId);
         }
 
-        saveSummaries();
+        commit();
     }
 
     @Override
     public RoomSummary storeSummary(String roomId, Event event, RoomState roomState, String selfUserId) {
         RoomSummary summary = super.storeSummary(roomId, event, roomState, selfUserId);
 
-        if (mRoomsToCommitForSummaries.indexOf(roomId) < 0) {
-            mRoomsToCommitForSummaries.add(roomId);
-        }
+        addRoomToCommit(mRoomsToCommitForSummaries, roomId);
 
         return summary;
     }
@@ -712,26 +1117,32 @@ public class MXFileStore extends MXMemoryStore {
     // Room messages management
     //================================================================================
 
-    private void saveRoomMessages(String roomId) {
+    /**
+     * Write the messages list and the token of a room.
+     * @param roomId the room id.
+     * @return true if the operation succeeds.
+     */
+    private boolean saveRoomMessages(String roomId) {
         try {
-            deleteRoomMessagesFiles(roomId);
-
             // messages list
             File messagesListFile = new File(mGzStoreRoomsMessagesFolderFile, roomId);
 
             File tokenFile = new File(mStoreRoomsTokensFolderFile, roomId);
 
-            LinkedHashMap<String, Event> eventsHash = mRoomEvents.get(roomId);
+            RoomEventsTimeline eventsHash = mRoomEvents.get(roomId);
             String token = mRoomTokens.get(roomId);
 
             // the list exists ?
             if ((null != eventsHash) && (null != token)) {
-                FileOutputStream fos = new FileOutputStream(messagesListFile);
+                FileOutputStream fos = startFileWrite(messagesListFile);
                 GZIPOutputStream gz = new GZIPOutputStream(fos);
-                ObjectOutputStream out = new ObjectOutputStream(gz);
+                MXFileStoreCodec.Writer writer = new MXFileStoreCodec.Writer(new BufferedOutputStream(gz));
 
-                LinkedHashMap<String, Event> hashCopy = new LinkedHashMap<String, Event>();
-                ArrayList<Event> eventsList = new ArrayList<Event>(eventsHash.values());
+                ArrayList<Event> eventsList;
+
+                synchronized (mRoomEvents) {
+                    eventsList = eventsHash.values();
+                }
 
                 int startIndex = 0;
 
@@ -769,85 +1180,211 @@ public class MXFileStore extends MXMemoryStore {
 
                 long t0 = System.currentTimeMillis();
 
-                for (int index = startIndex; index < eventsList.size(); index++) {
-                    Event event = eventsList.get(index);
-                    event.prepareSerialization();
-                    hashCopy.put(event.eventId, event);
-                }
+                writer.writeEvents(eventsList.subList(startIndex, eventsList.size()));
+                writer.close();
+                commitFileWrite(messagesListFile);
 
-                out.writeObject(hashCopy);
-                out.close();
+                // the log content is now included in the messages list file
+                deleteRoomMessagesLogFile(roomId);
+                mRoomsMessagesLogCount.put(roomId, 0);
 
-                fos = new FileOutputStream(tokenFile);
-                out = new ObjectOutputStream(fos);
+                fos = startFileWrite(tokenFile);
+                ObjectOutputStream out = new ObjectOutputStream(fos);
                 out.writeObject(token);
                 out.close();
+                commitFileWrite(tokenFile);
 
                 Log.d(LOG_TAG, "saveRoomsMessage (" + roomId + ") : " + eventsList.size() + " messages saved in " +  (System.currentTimeMillis() - t0) + " ms");
+            } else {
+                deleteRoomMessagesFiles(roomId);
             }
         } catch (Exception e) {
             Toast.makeText(mContext, "saveRoomsMessage  " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
             Log.e(LOG_TAG, "saveRoomsMessage failed ");
+            return false;
         }
+
+        return true;
     }
 
     /**
-     * Flush updates rooms messages list files.
+     * Delete the room messages log file.
+     * @param roomId the room id.
      */
-    private void saveRoomsMessages() {
-        // some updated rooms ?
-        if  ((mRoomsToCommitForMessages.size() > 0) && (null != mFileStoreHandler)) {
-            // get the list
-            final ArrayList<String> fRoomsToCommitForMessages = mRoomsToCommitForMessages;
-            mRoomsToCommitForMessages = new ArrayList<String>();
-
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-                    mFileStoreHandler.post(new Runnable() {
-                        public void run() {
-                            if (!isKilled()) {
-                                long start = System.currentTimeMillis();
-
-                                for (String roomId : fRoomsToCommitForMessages) {
-                                    saveRoomMessages(roomId);
-                                }
-
-                                Log.d(LOG_TAG, "saveRoomsMessages : " + fRoomsToCommitForMessages.size() + " rooms in " + (System.currentTimeMillis() - start) + " ms");
-                            }
-                        }
-                    });
-                }
-            };
+    private void deleteRoomMessagesLogFile(String roomId) {
+        File logFile = new File(mStoreRoomsMessagesLogFolderFile, roomId);
 
-            Thread t = new Thread(r);
-            t.start();
+        if (logFile.exists()) {
+            try {
+                logFile.delete();
+            } catch (Exception e) {
+                Log.d(LOG_TAG,"deleteRoomMessagesLogFile failed " + e.getLocalizedMessage());
+            }
         }
+
+        mRoomsMessagesLogCount.remove(roomId);
     }
 
     /**
-     * Load room messages from the filesystem.
+     * Append some live events to the room messages log.
+     * The room messages list file is compacted i.e. fully rewritten
+     * when the log becomes too large or when there is no messages list file.
      * @param roomId the room id.
-     * @return true if succeed.
+     * @param events the events to append.
+     * @return true if the operation succeeds.
      */
-    private boolean loadRoomMessages(final String roomId) {
-        Boolean succeeded = true;
-        Boolean shouldSave = false;
-        LinkedHashMap<String, Event> events = null;
+    private boolean appendRoomMessages(String roomId, ArrayList<Event> events) {
+        // the room has been deleted in the meantime
+        if (null == mRoomEvents.get(roomId)) {
+            return true;
+        }
 
-        try {
-            File messagesListFile = new File(mGzStoreRoomsMessagesFolderFile, roomId);
+        File messagesListFile = new File(mGzStoreRoomsMessagesFolderFile, roomId);
+        File tokenFile = new File(mStoreRoomsTokensFolderFile, roomId);
+        Integer logCount = mRoomsMessagesLogCount.get(roomId);
 
-            if (messagesListFile.exists()) {
-                FileInputStream fis = new FileInputStream(messagesListFile);
-                GZIPInputStream gz = new GZIPInputStream(fis);
-                ObjectInputStream ois = new ObjectInputStream(gz);
-                events = (LinkedHashMap<String, Event>) ois.readObject();
+        if (null == logCount) {
+            logCount = 0;
+        }
 
-                ArrayList<String> eventIds = mRoomEventIds.get(roomId);
+        if (!messagesListFile.exists() || !tokenFile.exists() || ((logCount + events.size()) > MAX_STORED_MESSAGES_COUNT)) {
+            Log.d(LOG_TAG, "appendRoomMessages (" + roomId + ") : compact the messages log");
+            return saveRoomMessages(roomId);
+        }
+
+        try {
+            long t0 = System.currentTimeMillis();
+
+            File logFile = new File(mStoreRoomsMessagesLogFolderFile, roomId);
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(logFile, true));
+
+            // each event is stored as a length prefixed record
+            // so a truncated record (e.g. the application is killed while writing) can be ignored at load time.
+            for (Event event : events) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                MXFileStoreCodec.Writer writer = new MXFileStoreCodec.Writer(bos);
+                writer.writeEvent(event);
+                writer.close();
+
+                byte[] record = bos.toByteArray();
+                out.writeInt(record.length);
+                out.write(record);
+            }
+
+            out.close();
+
+            mRoomsMessagesLogCount.put(roomId, logCount + events.size());
+
+            Log.d(LOG_TAG, "appendRoomMessages (" + roomId + ") : " + events.size() + " messages appended in " + (System.currentTimeMillis() - t0) + " ms");
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "appendRoomMessages failed : " + e.getMessage());
+            // rewrite the whole history to avoid having an inconsistent log
+            return saveRoomMessages(roomId);
+        }
+
+        return true;
+    }
+
+    /**
+     * Load the events appended to the room messages log.
+     * @param roomId the room id.
+     * @param events the events loaded from the messages list file.
+     * @param eventIds the known events ids.
+     */
+    private void loadRoomMessagesLog(String roomId, RoomEventsTimeline events, HashSet<String> eventIds) {
+        File logFile = new File(mStoreRoomsMessagesLogFolderFile, roomId);
+        int count = 0;
+
+        if (logFile.exists()) {
+            DataInputStream in = null;
+
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+
+                while (true) {
+                    byte[] record;
+
+                    try {
+                        record = new byte[in.readInt()];
+                        in.readFully(record);
+                    } catch (EOFException eofe) {
+                        // end of the log or truncated record
+                        break;
+                    }
+
+                    InputStream recordStream = new ByteArrayInputStream(record);
+                    Event event;
+
+                    if (MXFileStoreCodec.isEncoded(recordStream)) {
+                        MXFileStoreCodec.Reader reader = new MXFileStoreCodec.Reader(recordStream);
+                        event = reader.readEvent();
+                        reader.checkChecksum();
+                        reader.close();
+                    } else {
+                        // legacy record
+                        ObjectInputStream ois = new MXFileStoreCodec.LegacyObjectInputStream(recordStream);
+                        event = (Event) ois.readObject();
+                        ois.close();
+
+                        event.finalizeDeserialization();
+                    }
+
+                    if (!events.containsKey(event.eventId)) {
+                        eventIds.add(event.eventId);
+                    }
+
+                    events.put(event);
+                    count++;
+                }
+            } catch (Exception e) {
+                // keep the valid records
+                Log.e(LOG_TAG, "loadRoomMessagesLog failed : " + e.toString());
+            }
+
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                }
+            }
+        }
+
+        mRoomsMessagesLogCount.put(roomId, count);
+    }
+
+    /**
+     * Load room messages from the filesystem.
+     * @param roomId the room id.
+     * @return true if succeed.
+     */
+    private boolean loadRoomMessages(final String roomId) {
+        Boolean succeeded = true;
+        Boolean shouldSave = false;
+        RoomEventsTimeline events = null;
+
+        try {
+            File messagesListFile = new File(mGzStoreRoomsMessagesFolderFile, roomId);
+
+            if (messagesListFile.exists()) {
+                FileInputStream fis = new FileInputStream(messagesListFile);
+                InputStream in = new BufferedInputStream(new GZIPInputStream(fis));
+
+                if (MXFileStoreCodec.isEncoded(in)) {
+                    MXFileStoreCodec.Reader reader = new MXFileStoreCodec.Reader(in);
+                    events = new RoomEventsTimeline(reader.readEvents());
+                    reader.checkChecksum();
+                } else {
+                    // legacy file
+                    ObjectInputStream ois = new MXFileStoreCodec.LegacyObjectInputStream(in);
+                    events = new RoomEventsTimeline(((LinkedHashMap<String, Event>) ois.readObject()).values());
+                }
+
+                in.close();
+
+                HashSet<String> eventIds = mRoomEventIds.get(roomId);
 
                 if (null == eventIds) {
-                    eventIds = new ArrayList<String>();
+                    eventIds = new HashSet<String>();
                     mRoomEventIds.put(roomId, eventIds);
                 }
 
@@ -856,7 +1393,8 @@ public class MXFileStore extends MXMemoryStore {
                     eventIds.add(event.eventId);
                 }
 
-                ois.close();
+                // add the live events received since the latest compaction
+                loadRoomMessagesLog(roomId, events, eventIds);
             }
         } catch (Exception e){
             succeeded = false;
@@ -905,9 +1443,9 @@ public class MXFileStore extends MXMemoryStore {
                 token = (String) ois.readObject();
 
                 // check if the oldest event has a token.
-                LinkedHashMap<String, Event> eventsHash = mRoomEvents.get(roomId);
+                RoomEventsTimeline eventsHash = mRoomEvents.get(roomId);
                 if ((null != eventsHash) && (eventsHash.size() > 0)) {
-                    Event event = eventsHash.values().iterator().next();
+                    Event event = eventsHash.getFirst();
 
                     // the room history could have been reduced to save memory
                     // so, if the oldest messages has a token, use it instead of the stored token.
@@ -940,45 +1478,180 @@ public class MXFileStore extends MXMemoryStore {
     }
 
     /**
-     * Load room messages from the filesystem.
-     * @return  true if the operation succeeds.
+     * Load the data of a room i.e. its messages, token, state and account data.
+     * A room which cannot be loaded is removed from the store (see onRoomCorrupted).
+     * @param roomId the room id.
      */
-    private boolean loadRoomsMessages() {
-        Boolean succeed = true;
+    private void loadRoom(String roomId) {
+        boolean succeed = loadRoomMessages(roomId);
 
-        try {
-            // extract the messages list
-            String[] filenames = mGzStoreRoomsMessagesFolderFile.list();
+        if (succeed && new File(mStoreRoomsTokensFolderFile, roomId).exists()) {
+            succeed = loadRoomToken(roomId);
+        }
 
-            long start = System.currentTimeMillis();
+        if (succeed && new File(mGzStoreRoomsStateFolderFile, roomId).exists()) {
+            succeed = loadRoomState(roomId);
+        }
 
-            for(int index = 0; succeed && (index < filenames.length); index++) {
-                succeed &= loadRoomMessages(filenames[index]);
-            }
+        if (succeed) {
+            succeed = loadRoomAccountData(roomId);
+        }
+
+        if (!succeed) {
+            onRoomCorrupted(roomId);
+        }
+    }
 
-            if (succeed) {
-                Log.d(LOG_TAG, "loadRoomMessages : " + filenames.length + " rooms in " + (System.currentTimeMillis() - start) + " ms");
+    /**
+     * A room file cannot be loaded.
+     * The room is removed from the store and it must be resynchronized with the server (see getCorruptedRoomIds).
+     * The other rooms are kept.
+     * @param roomId the room id.
+     */
+    private void onRoomCorrupted(String roomId) {
+        Log.e(LOG_TAG, "onRoomCorrupted " + roomId);
+
+        deleteRoom(roomId);
+
+        synchronized (mCorruptedRoomIds) {
+            if (mCorruptedRoomIds.indexOf(roomId) < 0) {
+                mCorruptedRoomIds.add(roomId);
             }
+        }
+    }
 
-            // extract the tokens list
-            filenames = mStoreRoomsTokensFolderFile.list();
+    @Override
+    public List<String> getCorruptedRoomIds() {
+        ArrayList<String> roomIds;
+
+        synchronized (mCorruptedRoomIds) {
+            roomIds = new ArrayList<String>(mCorruptedRoomIds);
+            mCorruptedRoomIds.clear();
+        }
+
+        return roomIds;
+    }
 
-            start = System.currentTimeMillis();
+    /**
+     * Load the rooms and the events receipts from the filesystem.
+     * The rooms are loaded in parallel on a bounded threads pool.
+     * The receipts are loaded once the rooms are loaded, so the corrupted rooms are known.
+     * @return the error description, null if the operation succeeds.
+     */
+    private String loadRooms() {
+        String errorDescription = null;
+        long start = System.currentTimeMillis();
 
-            for(int index = 0; succeed && (index < filenames.length); index++) {
-                succeed &= loadRoomToken(filenames[index]);
+        String[] filenames = mGzStoreRoomsMessagesFolderFile.list();
+
+        if (null == filenames) {
+            return "loadRoomsMessages fails";
+        }
+
+        List<String> roomIds = Arrays.asList(filenames);
+
+        // a corrupted room is managed by loadRoom : only an unexpected exception fails the loading.
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+
+        for (final String roomId : roomIds) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    loadRoom(roomId);
+                    return null;
+                }
+            });
+        }
+
+        int threadsCount = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), MAX_LOADING_THREADS_COUNT));
+        ExecutorService executor = Executors.newFixedThreadPool(threadsCount);
+
+        try {
+            List<Future<Void>> results = executor.invokeAll(tasks);
+
+            // report the task exceptions
+            for (Future<Void> result : results) {
+                result.get();
             }
+        } catch (Exception e) {
+            errorDescription = "loadRooms fails : " + e.getMessage();
+        } finally {
+            executor.shutdown();
+        }
 
-            if (succeed) {
-                Log.d(LOG_TAG, "loadRoomToken : " + filenames.length + " rooms in " + (System.currentTimeMillis() - start) + " ms");
+        if (null == errorDescription) {
+            // the receipts are not critical : they are received again with the next receipt events
+            // so the store is not cleared (i.e. no initial sync) when they cannot be loaded.
+            if (!loadReceipts()) {
+                Log.e(LOG_TAG, "loadRooms : the events receipts cannot be loaded");
+                mStoreRoomsMessagesReceiptsFolderFile.mkdirs();
             }
 
-        } catch (Exception e) {
-            succeed = false;
-            Log.e(LOG_TAG, "loadRoomToken failed : " + e.getMessage());
+            // remove the tokens and states files of the unknown rooms
+            deleteUnknownRoomsFiles(mStoreRoomsTokensFolderFile);
+            deleteUnknownRoomsFiles(mGzStoreRoomsStateFolderFile);
+
+            // the room state is not saved in the summary.
+            // it is restored from the room
+            for (RoomSummary summary : mRoomSummaries.values()) {
+                Room room = getRoom(summary.getRoomId());
+
+                if (null != room) {
+                    summary.setLatestRoomState(room.getLiveState());
+                }
+            }
+
+            Log.d(LOG_TAG, "loadRooms : " + roomIds.size() + " rooms with " + threadsCount + " threads in " + (System.currentTimeMillis() - start) + " ms");
         }
 
-        return succeed;
+        return errorDescription;
+    }
+
+    /**
+     * Rebuild the rooms summaries when they cannot be loaded.
+     * The summaries are built from the loaded rooms so the store can resume from its event stream token.
+     * The rooms without any stored event are resynchronized with the server (see getCorruptedRoomIds).
+     */
+    private void rebuildSummaries() {
+        long start = System.currentTimeMillis();
+
+        mStoreRoomsSummaryFolderFile.mkdirs();
+
+        for (Room room : new ArrayList<Room>(mRooms.values())) {
+            String roomId = room.getRoomId();
+
+            if (null == mRoomSummaries.get(roomId)) {
+                Event latestEvent = getLatestEvent(roomId);
+
+                if ((null == latestEvent) || (null == storeSummary(roomId, latestEvent, room.getLiveState(), mCredentials.userId))) {
+                    onRoomCorrupted(roomId);
+                }
+            }
+        }
+
+        commit();
+
+        Log.d(LOG_TAG, "rebuildSummaries : " + mRoomSummaries.size() + " summaries in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Delete the files of a folder which are not related to a known room.
+     * @param folder the folder
+     */
+    private void deleteUnknownRoomsFiles(File folder) {
+        String[] filenames = folder.list();
+
+        if (null != filenames) {
+            for (String roomId : filenames) {
+                if (null == getRoom(roomId)) {
+                    try {
+                        new File(folder, roomId).delete();
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, "deleteUnknownRoomsFiles failed : " + e.getMessage());
+                    }
+                }
+            }
+        }
     }
 
     //================================================================================
@@ -1005,62 +1678,34 @@ public class MXFileStore extends MXMemoryStore {
     /**
      * Save the room state.
      * @param roomId the room id.
+     * @return true if the operation succeeds.
      */
-    private void saveRoomState(String roomId) {
+    private boolean saveRoomState(String roomId) {
         try {
-            deleteRoomStateFile(roomId);
-
             File roomStateFile = new File(mGzStoreRoomsStateFolderFile, roomId);
             Room room = mRooms.get(roomId);
 
             if (null != room) {
                 long start1 = System.currentTimeMillis();
-                FileOutputStream fos = new FileOutputStream(roomStateFile);
+                FileOutputStream fos = startFileWrite(roomStateFile);
                 GZIPOutputStream gz = new GZIPOutputStream(fos);
-                ObjectOutputStream out = new ObjectOutputStream(gz);
+                MXFileStoreCodec.Writer writer = new MXFileStoreCodec.Writer(new BufferedOutputStream(gz));
 
-                out.writeObject(room.getLiveState());
-                out.close();
+                writer.writeRoomState(room.getLiveState());
+                writer.close();
+                commitFileWrite(roomStateFile);
                 Log.d(LOG_TAG, "saveRoomsState " + room.getLiveState().getMembers().size() + " : " + (System.currentTimeMillis() - start1) + " ms");
+            } else {
+                deleteRoomStateFile(roomId);
             }
 
         } catch (Exception e) {
             Toast.makeText(mContext, "saveRoomsState failed " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
             Log.e(LOG_TAG, "saveRoomsState failed : " + e.getMessage());
+            return false;
         }
-    }
-
-    /**
-     * Flush the room state files.
-     */
-    private void saveRoomStates() {
-        if ((mRoomsToCommitForStates.size() > 0) && (null != mFileStoreHandler)) {
-            // get the list
-            final ArrayList<String> fRoomsToCommitForStates = mRoomsToCommitForStates;
-            mRoomsToCommitForStates = new ArrayList<String>();
 
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-                    mFileStoreHandler.post(new Runnable() {
-                        public void run() {
-                            if (!isKilled()) {
-                                long start = System.currentTimeMillis();
-
-                                for (String roomId : fRoomsToCommitForStates) {
-                                    saveRoomState(roomId);
-                                }
-
-                                Log.d(LOG_TAG, "saveRoomsState : " + fRoomsToCommitForStates.size() + " rooms in " + (System.currentTimeMillis() - start) + " ms");
-                            }
-                        }
-                    });
-                }
-            };
-
-            Thread t = new Thread(r);
-            t.start();
-        }
+        return true;
     }
 
     /**
@@ -1085,11 +1730,19 @@ public class MXFileStore extends MXMemoryStore {
                 // new format
                 if (messagesListFile.exists()) {
                     FileInputStream fis = new FileInputStream(messagesListFile);
-                    GZIPInputStream gz = new GZIPInputStream(fis);
-                    ObjectInputStream ois = new ObjectInputStream(gz);
-                    liveState = (RoomState) ois.readObject();
-                    ois.close();
+                    InputStream in = new BufferedInputStream(new GZIPInputStream(fis));
+
+                    if (MXFileStoreCodec.isEncoded(in)) {
+                        MXFileStoreCodec.Reader reader = new MXFileStoreCodec.Reader(in);
+                        liveState = reader.readRoomState();
+                        reader.checkChecksum();
+                    } else {
+                        // legacy file
+                        ObjectInputStream ois = new MXFileStoreCodec.LegacyObjectInputStream(in);
+                        liveState = (RoomState) ois.readObject();
+                    }
 
+                    in.close();
                 }
             } catch (Exception e) {
                 succeed = false;
@@ -1126,34 +1779,6 @@ public class MXFileStore extends MXMemoryStore {
         return succeed;
     }
 
-    /**
-     * Load room state from the file system.
-     * @return true if the operation succeeds.
-     */
-    private boolean loadRoomsState() {
-        Boolean succeed = true;
-
-        try {
-            long start = System.currentTimeMillis();
-
-            String[] filenames = null;
-
-            filenames = mGzStoreRoomsStateFolderFile.list();
-
-            for(int index = 0; succeed && (index < filenames.length); index++) {
-                succeed &= loadRoomState(filenames[index]);
-            }
-
-            Log.d(LOG_TAG, "loadRoomsState " + filenames.length + " rooms in " + (System.currentTimeMillis() - start) + " ms");
-
-        } catch (Exception e) {
-            succeed = false;
-            Log.e(LOG_TAG, "loadRoomsState failed : " + e.getMessage());
-        }
-
-        return succeed;
-    }
-
     //================================================================================
     // AccountData management
     //================================================================================
@@ -1176,52 +1801,31 @@ public class MXFileStore extends MXMemoryStore {
     }
 
     /**
-     * Flush the pending account data.
+     * Save the account data of a room.
+     * @param roomId the room id.
+     * @return true if the operation succeeds.
      */
-    private void saveRoomsAccountData() {
-        if ((mRoomsToCommitForAccountData.size() > 0) && (null != mFileStoreHandler)) {
-            // get the list
-            final ArrayList<String> fRoomsToCommitForAccountData = mRoomsToCommitForAccountData;
-            mRoomsToCommitForAccountData = new ArrayList<String>();
-
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-                    mFileStoreHandler.post(new Runnable() {
-                        public void run() {
-                            if (!isKilled()) {
-                                long start = System.currentTimeMillis();
-
-                                for (String roomId : fRoomsToCommitForAccountData) {
-                                    try {
-                                        deleteRoomAccountDataFile(roomId);
-
-                                        RoomAccountData accountData = mRoomAccountData.get(roomId);
-
-                                        if (null != accountData) {
-                                            File accountDataFile = new File(mStoreRoomsAccountDataFolderFile, roomId);
-                                            FileOutputStream fos = new FileOutputStream(accountDataFile);
-                                            ObjectOutputStream out = new ObjectOutputStream(fos);
-                                            out.writeObject(accountData);
-                                            out.close();
-                                        }
-
-                                    } catch (Exception e) {
-                                        Toast.makeText(mContext, "saveRoomsAccountData failed " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
-                                        Log.e(LOG_TAG, "saveRoomsAccountData failed : " + e.getMessage());
-                                    }
-                                }
-
-                                Log.d(LOG_TAG, "saveSummaries : " + fRoomsToCommitForAccountData.size() + " account data in " + (System.currentTimeMillis() - start) + " ms");
-                            }
-                        }
-                    });
-                }
-            };
+    private boolean saveRoomAccountData(String roomId) {
+        try {
+            RoomAccountData accountData = mRoomAccountData.get(roomId);
 
-            Thread t = new Thread(r);
-            t.start();
+            if (null != accountData) {
+                File accountDataFile = new File(mStoreRoomsAccountDataFolderFile, roomId);
+                FileOutputStream fos = startFileWrite(accountDataFile);
+                ObjectOutputStream out = new ObjectOutputStream(fos);
+                out.writeObject(accountData);
+                out.close();
+                commitFileWrite(accountDataFile);
+            } else {
+                deleteRoomAccountDataFile(roomId);
+            }
+        } catch (Exception e) {
+            Toast.makeText(mContext, "saveRoomsAccountData failed " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+            Log.e(LOG_TAG, "saveRoomsAccountData failed : " + e.getMessage());
+            return false;
         }
+
+        return true;
     }
 
     /***
@@ -1260,35 +1864,6 @@ public class MXFileStore extends MXMemoryStore {
         return succeeded;
     }
 
-    /**
-     * Load room accountData from the filesystem.
-     * @return true if the operation succeeds.
-     */
-    private boolean loadRoomsAccountData() {
-        Boolean succeed = true;
-
-        try {
-            // extract the messages list
-            String[] filenames = mStoreRoomsAccountDataFolderFile.list();
-
-            long start = System.currentTimeMillis();
-
-            for(int index = 0; succeed && (index < filenames.length); index++) {
-                succeed &= loadRoomAccountData(filenames[index]);
-            }
-
-            if (succeed) {
-                Log.d(LOG_TAG, "loadRoomsAccountData : " + filenames.length + " rooms in " + (System.currentTimeMillis() - start) + " ms");
-            }
-
-        } catch (Exception e) {
-            succeed = false;
-            Log.e(LOG_TAG, "loadRoomsAccountData failed : " + e.getMessage());
-        }
-
-        return succeed;
-    }
-
     @Override
     public void storeAccountData(String roomId, RoomAccountData accountData) {
         super.storeAccountData(roomId, accountData);
@@ -1298,9 +1873,7 @@ public class MXFileStore extends MXMemoryStore {
 
             // sanity checks
             if ((room != null) && (null != accountData)) {
-                if (mRoomsToCommitForAccountData.indexOf(roomId) < 0) {
-                    mRoomsToCommitForAccountData.add(roomId);
-                }
+                addRoomToCommit(mRoomsToCommitForAccountData, roomId);
             }
         }
     }
@@ -1328,55 +1901,32 @@ public class MXFileStore extends MXMemoryStore {
     }
 
     /**
-     * Flush the pending summaries.
+     * Save a room summary.
+     * @param roomId the room id.
+     * @return true if the operation succeeds.
      */
-    private void saveSummaries() {
-        if ((mRoomsToCommitForSummaries.size() > 0) && (null != mFileStoreHandler)) {
-            // get the list
-            final ArrayList<String> fRoomsToCommitForSummaries = mRoomsToCommitForSummaries;
-            mRoomsToCommitForSummaries = new ArrayList<String>();
-
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-                    mFileStoreHandler.post(new Runnable() {
-                        public void run() {
-                            if (!isKilled()) {
-                                long start = System.currentTimeMillis();
-
-                                for (String roomId : fRoomsToCommitForSummaries) {
-                                    try {
-                                        deleteRoomSummaryFile(roomId);
-
-                                        File roomSummaryFile = new File(mStoreRoomsSummaryFolderFile, roomId);
-                                        RoomSummary roomSummary = mRoomSummaries.get(roomId);
-
-                                        if (null != roomSummary) {
-                                            roomSummary.getLatestEvent().prepareSerialization();
-
-                                            FileOutputStream fos = new FileOutputStream(roomSummaryFile);
-                                            ObjectOutputStream out = new ObjectOutputStream(fos);
-
-                                            out.writeObject(roomSummary);
-                                            out.close();
-                                        }
-
-                                    } catch (Exception e) {
-                                        Log.e(LOG_TAG, "saveSummaries failed : " + e.getMessage());
-                                        Toast.makeText(mContext, "saveSummaries failed " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
-                                    }
-                                }
+    private boolean saveRoomSummary(String roomId) {
+        try {
+            File roomSummaryFile = new File(mStoreRoomsSummaryFolderFile, roomId);
+            RoomSummary roomSummary = mRoomSummaries.get(roomId);
 
-                                Log.d(LOG_TAG, "saveSummaries : " + fRoomsToCommitForSummaries.size() + " summaries in " + (System.currentTimeMillis() - start) + " ms");
-                            }
-                        }
-                    });
-                }
-            };
+            if (null != roomSummary) {
+                FileOutputStream fos = startFileWrite(roomSummaryFile);
+                MXFileStoreCodec.Writer writer = new MXFileStoreCodec.Writer(new BufferedOutputStream(fos));
 
-            Thread t = new Thread(r);
-            t.start();
+                writer.writeRoomSummary(roomSummary);
+                writer.close();
+                commitFileWrite(roomSummaryFile);
+            } else {
+                deleteRoomSummaryFile(roomId);
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "saveRoomSummary failed : " + e.getMessage());
+            Toast.makeText(mContext, "saveSummaries failed " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+            return false;
         }
+
+        return true;
     }
 
     /**
@@ -1394,27 +1944,30 @@ public class MXFileStore extends MXMemoryStore {
         try {
             File messagesListFile = new File(mStoreRoomsSummaryFolderFile, roomId);
 
-            FileInputStream fis = new FileInputStream(messagesListFile);
-            ObjectInputStream ois = new ObjectInputStream(fis);
+            InputStream in = new BufferedInputStream(new FileInputStream(messagesListFile));
 
-            summary = (RoomSummary) ois.readObject();
-            ois.close();
+            if (MXFileStoreCodec.isEncoded(in)) {
+                MXFileStoreCodec.Reader reader = new MXFileStoreCodec.Reader(in);
+                summary = reader.readRoomSummary();
+                reader.checkChecksum();
+            } else {
+                // legacy file
+                ObjectInputStream ois = new MXFileStoreCodec.LegacyObjectInputStream(in);
+                summary = (RoomSummary) ois.readObject();
+
+                if (null != summary.getLatestEvent()) {
+                    summary.getLatestEvent().finalizeDeserialization();
+                }
+            }
+
+            in.close();
         } catch (Exception e){
             succeed = false;
             Log.e(LOG_TAG, "loadSummary failed : " + e.getMessage());
         }
 
+        // the room state is restored when the rooms are loaded (see loadRooms)
         if (null != summary) {
-            summary.getLatestEvent().finalizeDeserialization();
-
-            Room room = getRoom(summary.getRoomId());
-
-            // the room state is not saved in the summary.
-            // it is restored from the room
-            if (null != room) {
-                summary.setLatestRoomState(room.getLiveState());
-            }
-
             mRoomSummaries.put(roomId, summary);
         }
 
@@ -1433,8 +1986,10 @@ public class MXFileStore extends MXMemoryStore {
 
             long start = System.currentTimeMillis();
 
-            for(int index = 0; succeed && (index < filenames.length); index++) {
-                succeed &= loadSummary(filenames[index]);
+            for(int index = 0; index < filenames.length; index++) {
+                if (!loadSummary(filenames[index])) {
+                    onRoomCorrupted(filenames[index]);
+                }
             }
 
             Log.d(LOG_TAG, "loadSummaries " + filenames.length + " rooms in " + (System.currentTimeMillis() - start) + " ms");
@@ -1459,6 +2014,7 @@ public class MXFileStore extends MXMemoryStore {
 
         // init members
         mEventStreamToken = null;
+        mDurableEventStreamToken = null;
         mMetadata = null;
 
         try {
@@ -1477,6 +2033,7 @@ public class MXFileStore extends MXMemoryStore {
 
                 // extract the latest event stream token
                 mEventStreamToken = mMetadata.mEventStreamToken;
+                mDurableEventStreamToken = mEventStreamToken;
             }
 
         } catch (Exception e) {
@@ -1489,49 +2046,31 @@ public class MXFileStore extends MXMemoryStore {
     }
 
     /**
-     * flush the metadata info from the file system.
+     * Save the metadata.
+     * @param metadata a copy of the metadata.
+     * @return true if the operation succeeds.
      */
-    private void saveMetaData() {
-        if ((mMetaDataHasChanged) && (null != mFileStoreHandler)) {
-            mMetaDataHasChanged = false;
-
-            final MXFileStoreMetaData fMetadata = mMetadata.deepCopy();
-
-            Runnable r = new Runnable() {
-                @Override
-                public void run() {
-                    mFileStoreHandler.post(new Runnable() {
-                        public void run() {
-                            if (!mIsKilled) {
-                                long start = System.currentTimeMillis();
-
-                                try {
-                                    File metaDataFile = new File(mStoreFolderFile, MXFILE_STORE_METADATA_FILE_NAME);
-
-                                    if (metaDataFile.exists()) {
-                                        metaDataFile.delete();
-                                    }
-
-                                    FileOutputStream fos = new FileOutputStream(metaDataFile);
-                                    ObjectOutputStream out = new ObjectOutputStream(fos);
+    private boolean saveMetaData(MXFileStoreMetaData metadata) {
+        boolean succeed = true;
+        long start = System.currentTimeMillis();
 
-                                    out.writeObject(fMetadata);
-                                    out.close();
-                                } catch (Exception e) {
-                                    Toast.makeText(mContext, "saveMetaData failed  " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
-                                    Log.e(LOG_TAG, "saveMetaData failed : " + e.getMessage());
-                                }
+        try {
+            File metaDataFile = new File(mStoreFolderFile, MXFILE_STORE_METADATA_FILE_NAME);
 
-                                Log.d(LOG_TAG, "saveMetaData : " + (System.currentTimeMillis() - start) + " ms");
-                            }
-                        }
-                    });
-                }
-            };
+            FileOutputStream fos = startFileWrite(metaDataFile);
+            ObjectOutputStream out = new ObjectOutputStream(fos);
 
-            Thread t = new Thread(r);
-            t.start();
+            out.writeObject(metadata);
+            out.close();
+            commitFileWrite(metaDataFile);
+        } catch (Exception e) {
+            Toast.makeText(mContext, "saveMetaData failed  " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+            Log.e(LOG_TAG, "saveMetaData failed : " + e.getMessage());
+            succeed = false;
         }
+
+        Log.d(LOG_TAG, "saveMetaData : " + (System.currentTimeMillis() - start) + " ms");
+        return succeed;
     }
 
     //================================================================================
@@ -1549,9 +2088,7 @@ public class MXFileStore extends MXMemoryStore {
         Boolean res = super.storeReceipt(receipt, roomId);
 
         if (res) {
-            if (mRoomsToCommitForReceipts.indexOf(roomId) < 0) {
-                mRoomsToCommitForReceipts.add(roomId);
-            }
+            addRoomToCommit(mRoomsToCommitForReceipts, roomId);
         }
 
         return res;
@@ -1567,11 +2104,19 @@ public class MXFileStore extends MXMemoryStore {
         try {
             File file = new File(mStoreRoomsMessagesReceiptsFolderFile, roomId);
 
-            FileInputStream fis = new FileInputStream(file);
-            ObjectInputStream ois = new ObjectInputStream(fis);
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
 
-            receipts = (Map<String, ReceiptData>) ois.readObject();
-            ois.close();
+            if (MXFileStoreCodec.isEncoded(in)) {
+                MXFileStoreCodec.Reader reader = new MXFileStoreCodec.Reader(in);
+                receipts = reader.readReceipts();
+                reader.checkChecksum();
+            } else {
+                // legacy file
+                ObjectInputStream ois = new MXFileStoreCodec.LegacyObjectInputStream(in);
+                receipts = (Map<String, ReceiptData>) ois.readObject();
+            }
+
+            in.close();
         } catch (Exception e) {
             Log.e(LOG_TAG, "loadReceipts failed : " + e.getMessage());
             return false;
@@ -1579,6 +2124,7 @@ public class MXFileStore extends MXMemoryStore {
 
         if (null != receipts) {
             mReceiptsByRoomId.put(roomId, receipts);
+            invalidateReceiptsIndex(roomId);
         }
 
         return true;
@@ -1586,6 +2132,7 @@ public class MXFileStore extends MXMemoryStore {
 
     /**
      * Load event receipts from the file system.
+     * The receipts of the unknown rooms (e.g. the corrupted ones) are deleted.
      * @return true if the operation succeeds.
      */
     private Boolean loadReceipts() {
@@ -1596,9 +2143,11 @@ public class MXFileStore extends MXMemoryStore {
 
             long start = System.currentTimeMillis();
 
-            for(int index = 0; succeed && (index < filenames.length); index++) {
-
-                succeed &= loadReceipts(filenames[index]);
+            for(int index = 0; index < filenames.length; index++) {
+                // the receipts are not critical : they are received again with the next receipt events
+                if ((null == getRoom(filenames[index])) || !loadReceipts(filenames[index])) {
+                    deleteRoomReceiptsFile(filenames[index]);
+                }
             }
 
             Log.d(LOG_TAG, "loadReceipts " + filenames.length + " rooms in " + (System.currentTimeMillis() - start) + " ms");
@@ -1616,60 +2165,47 @@ public class MXFileStore extends MXMemoryStore {
      * @param roomId the roomId.
      */
     public void saveReceipts(final String roomId) {
-        final Map<String, ReceiptData> receipts = mReceiptsByRoomId.get(roomId);
-
-        Runnable r = new Runnable() {
-            @Override
-            public void run() {
-                mFileStoreHandler.post(new Runnable() {
-                    public void run() {
-                        if (!mIsKilled) {
-
-                            File receiptFile = new File(mStoreRoomsMessagesReceiptsFolderFile, roomId);
+        addRoomToCommit(mRoomsToCommitForReceipts, roomId);
+        commit();
+    }
 
-                            if (receiptFile.exists()) {
-                                receiptFile.delete();
-                            }
+    /**
+     * Write the events receipts of a room.
+     * @param roomId the roomId.
+     * @return true if the operation succeeds.
+     */
+    private boolean saveRoomReceipts(String roomId) {
+        Map<String, ReceiptData> receipts = mReceiptsByRoomId.get(roomId);
+        File receiptFile = new File(mStoreRoomsMessagesReceiptsFolderFile, roomId);
 
-                            if (null != receipts) {
-                                long start = System.currentTimeMillis();
-
-                                try {
-                                    FileOutputStream fos = new FileOutputStream(receiptFile);
-                                    ObjectOutputStream out = new ObjectOutputStream(fos);
-                                    out.writeObject(receipts);
-                                    out.close();
-                                } catch (Exception e) {
-                                    Toast.makeText(mContext, "saveReceipts failed " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
-                                    Log.e(LOG_TAG, "saveReceipts failed : " + e.getMessage());
-                                }
+        if (null == receipts) {
+            deleteRoomReceiptsFile(roomId);
+        } else {
+            long start = System.currentTimeMillis();
 
-                                Log.d(LOG_TAG, "saveReceipts : roomId " + roomId + " eventId : " + (System.currentTimeMillis() - start) + " ms");
-                            }
-                        }
-                    }
-                });
+            try {
+                FileOutputStream fos = startFileWrite(receiptFile);
+                MXFileStoreCodec.Writer writer = new MXFileStoreCodec.Writer(new BufferedOutputStream(fos));
+                writer.writeReceipts(receipts);
+                writer.close();
+                commitFileWrite(receiptFile);
+            } catch (Exception e) {
+                Toast.makeText(mContext, "saveReceipts failed " + e.getLocalizedMessage(), Toast.LENGTH_LONG).show();
+                Log.e(LOG_TAG, "saveReceipts failed : " + e.getMessage());
+                return false;
             }
-        };
 
-        Thread t = new Thread(r);
-        t.start();
+            Log.d(LOG_TAG, "saveReceipts : roomId " + roomId + " eventId : " + (System.currentTimeMillis() - start) + " ms");
+        }
+
+        return true;
     }
 
     /**
      * Save the events receipts.
      */
     public void saveReceipts() {
-
-        synchronized (this) {
-            ArrayList<String> roomsToCommit = mRoomsToCommitForReceipts;
-
-            for (String roomId : roomsToCommit) {
-                saveReceipts(roomId);
-            }
-
-            mRoomsToCommitForReceipts.clear();
-        }
+        commit();
     }
 
     /**
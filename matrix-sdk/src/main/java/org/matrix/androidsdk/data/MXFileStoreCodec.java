@@ -0,0 +1,713 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.MatrixError;
+import org.matrix.androidsdk.rest.model.PowerLevels;
+import org.matrix.androidsdk.rest.model.ReceiptData;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.matrix.androidsdk.rest.model.UnsignedData;
+import org.matrix.androidsdk.util.JsonUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary codec of the MXFileStore files.
+ *
+ * A file starts with a magic number and the format version, followed by the encoded objects.
+ * The identifiers (user ids, room ids, event types...) are interned : each one is written once per file
+ * and then referenced by its index in the strings table.
+ * The JSON contents are written as length-prefixed UTF-8 strings.
+ * The data ends with its CRC32 checksum to detect the corrupted files.
+ */
+public class MXFileStoreCodec {
+    // "MXFS"
+    public static final int MAGIC = 0x4D584653;
+
+    // the current format version
+    public static final int FORMAT_VERSION = 2;
+
+    // the first format version with a checksum
+    private static final int CHECKSUM_FORMAT_VERSION = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // strings tags
+    private static final int STRING_NULL = 0;
+    private static final int STRING_NEW = 1;
+    // the references are encoded as STRING_REF_OFFSET + index
+    private static final int STRING_REF_OFFSET = 2;
+
+    /**
+     * Tells if a stream contains encoded data.
+     * The other files are the legacy ones i.e. serialized with an ObjectOutputStream.
+     * The stream must support mark / reset, it is reset at the end of the check.
+     * @param stream the input stream
+     * @return true if the stream has been written by a MXFileStoreCodec.Writer
+     * @throws IOException if the stream cannot be read
+     */
+    public static boolean isEncoded(InputStream stream) throws IOException {
+        stream.mark(4);
+
+        int magic = 0;
+        int count = 0;
+
+        for (; count < 4; count++) {
+            int b = stream.read();
+
+            if (b < 0) {
+                break;
+            }
+
+            magic = (magic << 8) | b;
+        }
+
+        stream.reset();
+
+        return (4 == count) && (MAGIC == magic);
+    }
+
+    /**
+     * Read the legacy files i.e. the ones written with an ObjectOutputStream.
+     * The classes have no serialVersionUID so any class update changes the computed one.
+     * The local class description is used instead of the stored one when they only differ by this UID.
+     */
+    public static class LegacyObjectInputStream extends ObjectInputStream {
+        /**
+         * Constructor
+         * @param stream the input stream
+         * @throws IOException if the stream header cannot be read
+         */
+        public LegacyObjectInputStream(InputStream stream) throws IOException {
+            super(stream);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+            ObjectStreamClass streamDescriptor = super.readClassDescriptor();
+
+            try {
+                ObjectStreamClass localDescriptor = ObjectStreamClass.lookup(Class.forName(streamDescriptor.getName()));
+
+                if ((null != localDescriptor) &&
+                        (localDescriptor.getSerialVersionUID() != streamDescriptor.getSerialVersionUID()) &&
+                        haveSameLayout(localDescriptor, streamDescriptor)) {
+                    return localDescriptor;
+                }
+            } catch (ClassNotFoundException e) {
+                // let resolveClass report it
+            }
+
+            return streamDescriptor;
+        }
+
+        /**
+         * Tells if two class descriptions have the same serialized fields.
+         * The objects fields types are not compared.
+         * @param descriptor1 the first description
+         * @param descriptor2 the second description
+         * @return true if the fields have the same names and type codes
+         */
+        private static boolean haveSameLayout(ObjectStreamClass descriptor1, ObjectStreamClass descriptor2) {
+            ObjectStreamField[] fields1 = descriptor1.getFields();
+            ObjectStreamField[] fields2 = descriptor2.getFields();
+
+            if (fields1.length != fields2.length) {
+                return false;
+            }
+
+            for (int index = 0; index < fields1.length; index++) {
+                if (!fields1[index].getName().equals(fields2[index].getName()) ||
+                        (fields1[index].getTypeCode() != fields2[index].getTypeCode())) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Encode some store data.
+     */
+    public static class Writer {
+        private final DataOutputStream mStream;
+        private final CheckedOutputStream mCheckedStream;
+
+        // string -> index in the strings table
+        private final HashMap<String, Integer> mStringsTable = new HashMap<String, Integer>();
+
+        /**
+         * Constructor : the file header is written.
+         * @param stream the output stream.
+         * @throws IOException if the header cannot be written
+         */
+        public Writer(OutputStream stream) throws IOException {
+            mCheckedStream = new CheckedOutputStream(stream, new CRC32());
+            mStream = new DataOutputStream(mCheckedStream);
+            mStream.writeInt(MAGIC);
+            mStream.writeByte(FORMAT_VERSION);
+        }
+
+        /**
+         * Write the checksum then flush and close the output stream.
+         * @throws IOException if it fails
+         */
+        public void close() throws IOException {
+            mStream.writeInt((int) mCheckedStream.getChecksum().getValue());
+            mStream.close();
+        }
+
+        private void writeVarInt(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                mStream.writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mStream.writeByte(value);
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            writeVarInt(bytes.length);
+            mStream.write(bytes);
+        }
+
+        /**
+         * Write a string which is not expected to be repeated in the file.
+         * @param text the string (can be null)
+         * @throws IOException if it fails
+         */
+        private void writeText(String text) throws IOException {
+            if (null == text) {
+                mStream.writeBoolean(false);
+            } else {
+                mStream.writeBoolean(true);
+                writeBytes(text.getBytes(UTF8));
+            }
+        }
+
+        /**
+         * Write an identifier, which is interned in the strings table.
+         * @param id the identifier (can be null)
+         * @throws IOException if it fails
+         */
+        private void writeId(String id) throws IOException {
+            if (null == id) {
+                writeVarInt(STRING_NULL);
+                return;
+            }
+
+            Integer index = mStringsTable.get(id);
+
+            if (null != index) {
+                writeVarInt(STRING_REF_OFFSET + index);
+            } else {
+                mStringsTable.put(id, mStringsTable.size());
+                writeVarInt(STRING_NEW);
+                writeBytes(id.getBytes(UTF8));
+            }
+        }
+
+        private void writeJson(JsonElement element) throws IOException {
+            writeText((null == element) ? null : element.toString());
+        }
+
+        private void writeNullableLong(Long value) throws IOException {
+            mStream.writeBoolean(null != value);
+
+            if (null != value) {
+                mStream.writeLong(value);
+            }
+        }
+
+        /**
+         * Write an event.
+         * @param event the event
+         * @throws IOException if it fails
+         */
+        public void writeEvent(Event event) throws IOException {
+            writeId(event.type);
+            writeJson(event.content);
+            writeJson(event.getPrevContentAsJsonObject());
+            writeText(event.eventId);
+            writeId(event.roomId);
+            writeId(event.userId);
+            writeId(event.sender);
+            mStream.writeLong(event.originServerTs);
+            writeNullableLong(event.age);
+            writeId(event.stateKey);
+            writeJson((null == event.unsigned) ? null : JsonUtils.getGson(false).toJsonTree(event.unsigned));
+            writeText(event.redacts);
+
+            List<Event> inviteRoomState = event.invite_room_state;
+            mStream.writeBoolean(null != inviteRoomState);
+
+            if (null != inviteRoomState) {
+                writeEvents(inviteRoomState);
+            }
+
+            writeText((null == event.unsentException) ? null : event.unsentException.getMessage());
+
+            MatrixError matrixError = event.unsentMatrixError;
+            mStream.writeBoolean(null != matrixError);
+
+            if (null != matrixError) {
+                writeId(matrixError.errcode);
+                writeText(matrixError.error);
+                writeNullableLong((null == matrixError.retry_after_ms) ? null : Long.valueOf(matrixError.retry_after_ms));
+            }
+
+            mStream.writeByte((null == event.mSentState) ? Event.SentState.SENT.ordinal() : event.mSentState.ordinal());
+            writeText(event.mToken);
+            mStream.writeBoolean((null != event.mIsInternalPaginationToken) && event.mIsInternalPaginationToken);
+            writeId(event.getMatrixId());
+        }
+
+        /**
+         * Write an events list.
+         * @param events the events
+         * @throws IOException if it fails
+         */
+        public void writeEvents(Collection<Event> events) throws IOException {
+            writeVarInt(events.size());
+
+            for (Event event : events) {
+                writeEvent(event);
+            }
+        }
+
+        /**
+         * Write a room member.
+         * @param member the member
+         * @throws IOException if it fails
+         */
+        private void writeRoomMember(RoomMember member) throws IOException {
+            writeId(member.getUserId());
+            writeText(member.displayname);
+            writeText(member.avatarUrl);
+            writeId(member.membership);
+            mStream.writeLong(member.getOriginServerTs());
+            writeId(member.getInviterId());
+        }
+
+        /**
+         * Write a room state.
+         * @param roomState the room state
+         * @throws IOException if it fails
+         */
+        public void writeRoomState(RoomState roomState) throws IOException {
+            writeId(roomState.roomId);
+
+            PowerLevels powerLevels = roomState.getPowerLevels();
+            writeJson((null == powerLevels) ? null : JsonUtils.getGson(false).toJsonTree(powerLevels));
+
+            List<String> aliases = roomState.aliases;
+            mStream.writeBoolean(null != aliases);
+
+            if (null != aliases) {
+                writeVarInt(aliases.size());
+
+                for (String alias : aliases) {
+                    writeText(alias);
+                }
+            }
+
+            writeText(roomState.alias);
+            writeText(roomState.name);
+            writeText(roomState.topic);
+            writeText(roomState.url);
+            writeId(roomState.creator);
+            writeId(roomState.join_rule);
+            writeId(roomState.history_visibility);
+            writeText(roomState.roomAliasName);
+            writeId(roomState.visibility);
+            writeText(roomState.getToken());
+
+            Collection<RoomMember> members = roomState.getMembers();
+            writeVarInt(members.size());
+
+            for (RoomMember member : members) {
+                writeRoomMember(member);
+            }
+        }
+
+        /**
+         * Write a room summary.
+         * The room state is not saved.
+         * @param summary the summary
+         * @throws IOException if it fails
+         */
+        public void writeRoomSummary(RoomSummary summary) throws IOException {
+            writeId(summary.getRoomId());
+            writeText(summary.getRawName());
+            writeText(summary.getRoomTopic());
+
+            Event latestEvent = summary.getLatestEvent();
+            mStream.writeBoolean(null != latestEvent);
+
+            if (null != latestEvent) {
+                writeEvent(latestEvent);
+            }
+
+            writeText(summary.getReadReceiptToken());
+            mStream.writeLong(summary.getReadReceiptTs());
+            writeVarInt(summary.getUnreadEventsCount());
+            writeId(summary.getInviterUserId());
+            mStream.writeBoolean(summary.getIsInvitedFlag());
+            writeText(summary.getInviterName());
+            writeId(summary.getMatrixId());
+            mStream.writeBoolean(summary.getIsHighlightedFlag());
+        }
+
+        /**
+         * Write the receipts of a room.
+         * @param receiptsByUserId the receipts indexed by user id.
+         * @throws IOException if it fails
+         */
+        public void writeReceipts(Map<String, ReceiptData> receiptsByUserId) throws IOException {
+            // copy the list to avoid having update while looping
+            ArrayList<ReceiptData> receipts = new ArrayList<ReceiptData>(receiptsByUserId.values());
+            writeVarInt(receipts.size());
+
+            for (ReceiptData receipt : receipts) {
+                writeId(receipt.userId);
+                writeText(receipt.eventId);
+                mStream.writeLong(receipt.originServerTs);
+            }
+        }
+    }
+
+    /**
+     * Decode some store data.
+     */
+    public static class Reader {
+        private final DataInputStream mStream;
+        private final CheckedInputStream mCheckedStream;
+        private final int mVersion;
+
+        // the strings table
+        private final ArrayList<String> mStringsTable = new ArrayList<String>();
+
+        private final JsonParser mJsonParser = new JsonParser();
+
+        /**
+         * Constructor : the file header is checked.
+         * @param stream the input stream.
+         * @throws IOException if the stream is not a supported encoded one.
+         */
+        public Reader(InputStream stream) throws IOException {
+            mCheckedStream = new CheckedInputStream(stream, new CRC32());
+            mStream = new DataInputStream(mCheckedStream);
+
+            if (MAGIC != mStream.readInt()) {
+                throw new IOException("Invalid MXFileStoreCodec header");
+            }
+
+            mVersion = mStream.readUnsignedByte();
+
+            if (mVersion > FORMAT_VERSION) {
+                throw new IOException("Unsupported MXFileStoreCodec version " + mVersion);
+            }
+        }
+
+        /**
+         * Check the checksum of the read data.
+         * It must be called once the data has been read.
+         * @throws IOException if the data is corrupted.
+         */
+        public void checkChecksum() throws IOException {
+            if (mVersion >= CHECKSUM_FORMAT_VERSION) {
+                int checksum = (int) mCheckedStream.getChecksum().getValue();
+
+                if (checksum != mStream.readInt()) {
+                    throw new IOException("Invalid MXFileStoreCodec checksum");
+                }
+            }
+        }
+
+        /**
+         * Close the input stream.
+         * @throws IOException if it fails
+         */
+        public void close() throws IOException {
+            mStream.close();
+        }
+
+        private int readVarInt() throws IOException {
+            int value = 0;
+            int shift = 0;
+            int b;
+
+            do {
+                if (shift > 28) {
+                    throw new IOException("Invalid var int");
+                }
+
+                b = mStream.readUnsignedByte();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            return value;
+        }
+
+        private String readBytesAsString() throws IOException {
+            byte[] bytes = new byte[readVarInt()];
+            mStream.readFully(bytes);
+            return new String(bytes, UTF8);
+        }
+
+        private String readText() throws IOException {
+            return mStream.readBoolean() ? readBytesAsString() : null;
+        }
+
+        private String readId() throws IOException {
+            int tag = readVarInt();
+
+            if (STRING_NULL == tag) {
+                return null;
+            } else if (STRING_NEW == tag) {
+                String id = readBytesAsString();
+                mStringsTable.add(id);
+                return id;
+            }
+
+            int index = tag - STRING_REF_OFFSET;
+
+            if (index >= mStringsTable.size()) {
+                throw new IOException("Invalid string reference " + index);
+            }
+
+            return mStringsTable.get(index);
+        }
+
+        private JsonElement readJson() throws IOException {
+            String json = readText();
+            return (null == json) ? null : mJsonParser.parse(json);
+        }
+
+        private Long readNullableLong() throws IOException {
+            return mStream.readBoolean() ? mStream.readLong() : null;
+        }
+
+        /**
+         * Read an event.
+         * @return the event
+         * @throws IOException if it fails
+         */
+        public Event readEvent() throws IOException {
+            Event event = new Event();
+
+            event.type = readId();
+            event.content = readJson();
+            event.prev_content = readJson();
+            event.eventId = readText();
+            event.roomId = readId();
+            event.userId = readId();
+            event.sender = readId();
+            event.originServerTs = mStream.readLong();
+            event.age = readNullableLong();
+            event.stateKey = readId();
+
+            JsonElement unsigned = readJson();
+            if (null != unsigned) {
+                event.unsigned = JsonUtils.getGson(false).fromJson(unsigned, UnsignedData.class);
+            }
+
+            event.redacts = readText();
+
+            if (mStream.readBoolean()) {
+                event.invite_room_state = readEvents();
+            }
+
+            String unsentExceptionMessage = readText();
+            if (null != unsentExceptionMessage) {
+                event.unsentException = new Exception(unsentExceptionMessage);
+            }
+
+            if (mStream.readBoolean()) {
+                MatrixError matrixError = new MatrixError();
+                matrixError.errcode = readId();
+                matrixError.error = readText();
+
+                Long retryAfterMs = readNullableLong();
+                matrixError.retry_after_ms = (null == retryAfterMs) ? null : Integer.valueOf(retryAfterMs.intValue());
+
+                event.unsentMatrixError = matrixError;
+            }
+
+            int sentState = mStream.readUnsignedByte();
+            Event.SentState[] sentStates = Event.SentState.values();
+            event.mSentState = (sentState < sentStates.length) ? sentStates[sentState] : Event.SentState.SENT;
+
+            event.mToken = readText();
+            event.mIsInternalPaginationToken = mStream.readBoolean();
+            event.setMatrixId(readId());
+
+            return event;
+        }
+
+        /**
+         * Read an events list.
+         * @return the events
+         * @throws IOException if it fails
+         */
+        public ArrayList<Event> readEvents() throws IOException {
+            int count = readVarInt();
+            ArrayList<Event> events = new ArrayList<Event>(count);
+
+            for (int index = 0; index < count; index++) {
+                events.add(readEvent());
+            }
+
+            return events;
+        }
+
+        /**
+         * Read a room member.
+         * @return the member
+         * @throws IOException if it fails
+         */
+        private RoomMember readRoomMember() throws IOException {
+            RoomMember member = new RoomMember();
+
+            member.setUserId(readId());
+            member.displayname = readText();
+            member.avatarUrl = readText();
+            member.membership = readId();
+            member.setOriginServerTs(mStream.readLong());
+            member.setInviterId(readId());
+
+            return member;
+        }
+
+        /**
+         * Read a room state.
+         * @return the room state
+         * @throws IOException if it fails
+         */
+        public RoomState readRoomState() throws IOException {
+            RoomState roomState = new RoomState();
+
+            roomState.roomId = readId();
+
+            JsonElement powerLevels = readJson();
+            if (null != powerLevels) {
+                roomState.setPowerLevels(JsonUtils.getGson(false).fromJson(powerLevels, PowerLevels.class));
+            }
+
+            if (mStream.readBoolean()) {
+                int count = readVarInt();
+                ArrayList<String> aliases = new ArrayList<String>(count);
+
+                for (int index = 0; index < count; index++) {
+                    aliases.add(readText());
+                }
+
+                roomState.aliases = aliases;
+            }
+
+            roomState.alias = readText();
+            roomState.name = readText();
+            roomState.topic = readText();
+            roomState.url = readText();
+            roomState.creator = readId();
+            roomState.join_rule = readId();
+            roomState.history_visibility = readId();
+            roomState.roomAliasName = readText();
+            roomState.visibility = readId();
+            roomState.setToken(readText());
+
+            int count = readVarInt();
+
+            for (int index = 0; index < count; index++) {
+                RoomMember member = readRoomMember();
+                roomState.setMember(member.getUserId(), member);
+            }
+
+            return roomState;
+        }
+
+        /**
+         * Read a room summary.
+         * @return the room summary
+         * @throws IOException if it fails
+         */
+        public RoomSummary readRoomSummary() throws IOException {
+            RoomSummary summary = new RoomSummary();
+
+            summary.setRoomId(readId());
+            summary.setName(readText());
+            summary.setTopic(readText());
+
+            if (mStream.readBoolean()) {
+                summary.setLatestEvent(readEvent());
+            }
+
+            String readReceiptToken = readText();
+            long readReceiptTs = mStream.readLong();
+            summary.restoreReadReceiptToken(readReceiptToken, readReceiptTs);
+            summary.setUnreadEventsCount(readVarInt());
+            summary.setInviterUserId(readId());
+            summary.setIsInvitedFlag(mStream.readBoolean());
+            summary.setInviterName(readText());
+            summary.setMatrixId(readId());
+            summary.setHighlighted(mStream.readBoolean());
+
+            return summary;
+        }
+
+        /**
+         * Read the receipts of a room.
+         * @return the receipts indexed by user id.
+         * @throws IOException if it fails
+         */
+        public Map<String, ReceiptData> readReceipts() throws IOException {
+            int count = readVarInt();
+            HashMap<String, ReceiptData> receiptsByUserId = new HashMap<String, ReceiptData>();
+
+            for (int index = 0; index < count; index++) {
+                String userId = readId();
+                String eventId = readText();
+                long ts = mStream.readLong();
+
+                receiptsByUserId.put(userId, new ReceiptData(userId, eventId, ts));
+            }
+
+            return receiptsByUserId;
+        }
+    }
+}
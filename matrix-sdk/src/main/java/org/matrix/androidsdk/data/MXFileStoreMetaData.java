@@ -17,6 +17,9 @@
 package org.matrix.androidsdk.data;
 
 public class MXFileStoreMetaData implements java.io.Serializable {
+    // keep the serialized metadata readable when some fields are added
+    private static final long serialVersionUID = -7977808955211696363L;
+
     // The obtained user id.
     public String mUserId = null;
 
@@ -35,6 +38,10 @@ public class MXFileStoreMetaData implements java.io.Serializable {
     public String mUserDisplayName = null;
     public String mUserAvatarUrl = null;
 
+    // the registered sync filter (JSON) and its server-side id.
+    public String mSyncFilter = null;
+    public String mSyncFilterId = null;
+
     public MXFileStoreMetaData deepCopy() {
         MXFileStoreMetaData copy = new MXFileStoreMetaData();
 
@@ -49,6 +56,8 @@ public class MXFileStoreMetaData implements java.io.Serializable {
         }
 
         copy.mUserAvatarUrl = mUserAvatarUrl;
+        copy.mSyncFilter = mSyncFilter;
+        copy.mSyncFilterId = mSyncFilterId;
 
         return copy;
     }
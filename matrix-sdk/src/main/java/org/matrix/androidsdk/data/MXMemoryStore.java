@@ -35,8 +35,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -51,10 +50,10 @@ public class MXMemoryStore implements IMXStore {
 
     protected Map<String, Room> mRooms;
     protected Map<String, User> mUsers;
-    // room id -> map of (event_id -> event) events for this room (linked so insertion order is preserved)
-    protected Map<String, LinkedHashMap<String, Event>> mRoomEvents;
-    // room id -> list of event Ids
-    protected Map<String, ArrayList<String>> mRoomEventIds;
+    // room id -> events timeline of this room (from the oldest to the latest event)
+    protected Map<String, RoomEventsTimeline> mRoomEvents;
+    // room id -> set of event Ids
+    protected Map<String, HashSet<String>> mRoomEventIds;
 
     protected Map<String, String> mRoomTokens;
 
@@ -64,6 +63,27 @@ public class MXMemoryStore implements IMXStore {
     // dict of dict of MXReceiptData indexed by userId
     protected Map<String, Map<String, ReceiptData>> mReceiptsByRoomId;
 
+    // room id -> (event id -> receipts on this event)
+    // the room index is built from mReceiptsByRoomId when it is required.
+    protected Map<String, Map<String, List<ReceiptData>>> mReceiptsByEventIdByRoomId;
+
+    /**
+     * The unread events count of a room after a read receipt event.
+     */
+    private static class UnreadEventsCounter {
+        final String mReadReceiptEventId;
+        int mCount;
+
+        UnreadEventsCounter(String readReceiptEventId, int count) {
+            mReadReceiptEventId = readReceiptEventId;
+            mCount = count;
+        }
+    }
+
+    // room id -> unread events counter
+    // it is updated with the live events and computed again when the read receipt is moved.
+    protected Map<String, UnreadEventsCounter> mUnreadEventsCounters;
+
     //
     protected HashMap<String, Event> mTemporaryEventsList = new HashMap<String, Event>();
 
@@ -78,12 +98,14 @@ public class MXMemoryStore implements IMXStore {
     protected void initCommon(){
         mRooms = new ConcurrentHashMap<String, Room>();
         mUsers = new ConcurrentHashMap<String, User>();
-        mRoomEvents = new ConcurrentHashMap<String, LinkedHashMap<String, Event>>();
-        mRoomEventIds = new ConcurrentHashMap<String, ArrayList<String>>();
+        mRoomEvents = new ConcurrentHashMap<String, RoomEventsTimeline>();
+        mRoomEventIds = new ConcurrentHashMap<String, HashSet<String>>();
         mRoomTokens = new ConcurrentHashMap<String, String>();
         mRoomSummaries = new ConcurrentHashMap<String, RoomSummary>();
         mReceiptsByRoomId = new ConcurrentHashMap<String, Map<String, ReceiptData>>();
+        mReceiptsByEventIdByRoomId = new HashMap<String, Map<String, List<ReceiptData>>>();
         mRoomAccountData = new ConcurrentHashMap<String, RoomAccountData>();
+        mUnreadEventsCounters = new ConcurrentHashMap<String, UnreadEventsCounter>();
         mEventStreamToken = null;
     }
 
@@ -161,6 +183,15 @@ public class MXMemoryStore implements IMXStore {
         return false;
     }
 
+    /**
+     * Provides the rooms which have been removed while opening the store because their data was corrupted.
+     * @return the rooms ids list.
+     */
+    @Override
+    public List<String> getCorruptedRoomIds() {
+        return new ArrayList<String>();
+    }
+
     /**
      * Returns to disk usage size in bytes.
      * @return disk usage size
@@ -189,6 +220,23 @@ public class MXMemoryStore implements IMXStore {
         mEventStreamToken = token;
     }
 
+    @Override
+    public String getSyncFilterId(String filter) {
+        if ((null != mMetadata) && TextUtils.equals(mMetadata.mSyncFilter, filter)) {
+            return mMetadata.mSyncFilterId;
+        }
+
+        return null;
+    }
+
+    @Override
+    public void setSyncFilterId(String filter, String filterId) {
+        if (null != mMetadata) {
+            mMetadata.mSyncFilter = filter;
+            mMetadata.mSyncFilterId = filterId;
+        }
+    }
+
     /**
      * Define a MXStore listener.
      * @param listener
@@ -310,13 +358,10 @@ public class MXMemoryStore implements IMXStore {
 
         if (null != roomId) {
             synchronized (mRoomEvents) {
-                LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
+                RoomEventsTimeline events = mRoomEvents.get(roomId);
 
                 if (events != null) {
-                    Iterator<Event> it = events.values().iterator();
-                    if (it.hasNext()) {
-                        event = it.next();
-                    }
+                    event = events.getFirst();
                 }
             }
         }
@@ -334,19 +379,10 @@ public class MXMemoryStore implements IMXStore {
 
         if (null != roomId) {
             synchronized (mRoomEvents) {
-                LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
+                RoomEventsTimeline events = mRoomEvents.get(roomId);
 
                 if (events != null) {
-                    Iterator<Event> it = events.values().iterator();
-                    if (it.hasNext()) {
-                        Event lastEvent = null;
-
-                        while (it.hasNext()) {
-                            lastEvent = it.next();
-                        }
-
-                        event = lastEvent;
-                    }
+                    event = events.getLast();
                 }
             }
         }
@@ -360,7 +396,51 @@ public class MXMemoryStore implements IMXStore {
      * @return the events count after this event if
      */
     public int eventsCountAfter(String roomId, String eventId) {
-        return eventsAfter(roomId, eventId,  mCredentials.userId, null).size();
+        if (null == roomId) {
+            return 0;
+        }
+
+        synchronized (mRoomEvents) {
+            UnreadEventsCounter counter = mUnreadEventsCounters.get(roomId);
+
+            // the read receipt has been moved
+            if ((null == counter) || !TextUtils.equals(counter.mReadReceiptEventId, eventId)) {
+                Event latestEvent = getLatestEvent(roomId);
+                int count = 0;
+
+                // nothing to count when the latest event is read
+                if ((null == latestEvent) || !TextUtils.equals(latestEvent.eventId, eventId)) {
+                    count = eventsAfter(roomId, eventId, mCredentials.userId, null).size();
+                }
+
+                counter = new UnreadEventsCounter(eventId, count);
+                mUnreadEventsCounters.put(roomId, counter);
+            }
+
+            return counter.mCount;
+        }
+    }
+
+    /**
+     * Update the unread events counter of a room when a live event is added at the end of its timeline.
+     * @param event the live event.
+     */
+    private void onLiveEventAppended(Event event) {
+        UnreadEventsCounter counter = mUnreadEventsCounters.get(event.roomId);
+
+        if ((null != counter) && !TextUtils.equals(event.getSender(), mCredentials.userId)) {
+            counter.mCount++;
+        }
+    }
+
+    /**
+     * The unread events counter of a room will be computed again.
+     * @param roomId the room id.
+     */
+    protected void invalidateUnreadEventsCounter(String roomId) {
+        if (null != roomId) {
+            mUnreadEventsCounters.remove(roomId);
+        }
     }
 
     @Override
@@ -369,11 +449,11 @@ public class MXMemoryStore implements IMXStore {
             synchronized (mRoomEvents) {
                 // check if the message is already defined
                 if (!doesEventExist(event.eventId, event.roomId)) {
-                    LinkedHashMap<String, Event> events = mRoomEvents.get(event.roomId);
+                    RoomEventsTimeline events = mRoomEvents.get(event.roomId);
 
                     // create the list it does not exist
                     if (null == events) {
-                        events = new LinkedHashMap<String, Event>();
+                        events = new RoomEventsTimeline();
                         mRoomEvents.put(event.roomId, events);
                     } else if (!event.isDummyEvent() && (mTemporaryEventsList.size() > 0)) {
                         // remove any waiting echo event
@@ -390,15 +470,18 @@ public class MXMemoryStore implements IMXStore {
                         if (null != dummyKey) {
                             events.remove(dummyKey);
                             mTemporaryEventsList.remove(dummyKey);
+                            // the read receipt could be the removed echo
+                            invalidateUnreadEventsCounter(event.roomId);
                         }
                     }
 
                     // If we don't have any information on this room - a pagination token, namely - we don't store the event but instead
                     // wait for the first pagination request to set things right
-                    events.put(event.eventId, event);
+                    events.put(event);
+                    onLiveEventAppended(event);
 
                     // add to the list of known events
-                    ArrayList<String> eventIds = mRoomEventIds.get(event.roomId);
+                    HashSet<String> eventIds = mRoomEventIds.get(event.roomId);
                     eventIds.add(event.eventId);
 
                     if (event.isDummyEvent()) {
@@ -414,14 +497,14 @@ public class MXMemoryStore implements IMXStore {
         Boolean res = false;
 
         if (!TextUtils.isEmpty(eventId) && !TextUtils.isEmpty(roomId)) {
-            ArrayList<String> eventIds = mRoomEventIds.get(roomId);
+            HashSet<String> eventIds = mRoomEventIds.get(roomId);
 
             if (null == eventIds) {
-                eventIds = new ArrayList<String>();
+                eventIds = new HashSet<String>();
                 mRoomEventIds.put(roomId, eventIds);
             }
 
-            res = eventIds.indexOf(eventId) >= 0;
+            res = eventIds.contains(eventId);
         }
 
         return res;
@@ -431,9 +514,10 @@ public class MXMemoryStore implements IMXStore {
     public void deleteEvent(Event event) {
         if ((null != event) && (null != event.roomId)) {
             synchronized (mRoomEvents) {
-                LinkedHashMap<String, Event> events = mRoomEvents.get(event.roomId);
+                RoomEventsTimeline events = mRoomEvents.get(event.roomId);
                 if ((events != null) && (event.eventId != null)) {
                     events.remove(event.eventId);
+                    invalidateUnreadEventsCounter(event.roomId);
                 }
             }
         }
@@ -461,6 +545,8 @@ public class MXMemoryStore implements IMXStore {
                 mRoomSummaries.remove(roomId);
                 mRoomAccountData.remove(roomId);
                 mReceiptsByRoomId.remove(roomId);
+                invalidateReceiptsIndex(roomId);
+                mUnreadEventsCounters.remove(roomId);
             }
         }
     }
@@ -476,11 +562,11 @@ public class MXMemoryStore implements IMXStore {
             synchronized (mRoomEvents) {
 
                 if (keepUnsent) {
-                    LinkedHashMap<String, Event> eventMap = mRoomEvents.get(roomId);
+                    RoomEventsTimeline eventMap = mRoomEvents.get(roomId);
 
                     if (null != eventMap) {
-                        ArrayList<String> eventIds = mRoomEventIds.get(roomId);
-                        ArrayList<Event> events = new ArrayList<Event>(eventMap.values());
+                        HashSet<String> eventIds = mRoomEventIds.get(roomId);
+                        ArrayList<Event> events = eventMap.values();
 
                         for (Event event : events) {
                             if (event.mSentState == Event.SentState.SENT) {
@@ -503,6 +589,7 @@ public class MXMemoryStore implements IMXStore {
                 }
 
                 mRoomSummaries.remove(roomId);
+                invalidateUnreadEventsCounter(roomId);
             }
         }
     }
@@ -511,48 +598,39 @@ public class MXMemoryStore implements IMXStore {
     public void storeRoomEvents(String roomId, TokensChunkResponse<Event> eventsResponse, Room.EventDirection direction) {
         if (null != roomId) {
             synchronized (mRoomEvents) {
-                LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
+                RoomEventsTimeline events = mRoomEvents.get(roomId);
                 if (events == null) {
-                    events = new LinkedHashMap<String, Event>();
+                    events = new RoomEventsTimeline();
                     mRoomEvents.put(roomId, events);
                 }
 
+                // the read receipt event could be part of the new events
+                invalidateUnreadEventsCounter(roomId);
+
                 if (direction == Room.EventDirection.FORWARDS) {
                     mRoomTokens.put(roomId, eventsResponse.start);
 
                     for (Event event : eventsResponse.chunk) {
-                        events.put(event.eventId, event);
+                        events.put(event);
                     }
 
                 } else { // BACKWARD
-                    Collection<Event> eventsList = events.values();
-
                     // no stored events
                     if (events.size() == 0) {
                         // insert the catchup events in reverse order
                         for (int index = eventsResponse.chunk.size() - 1; index >= 0; index--) {
                             Event backEvent = eventsResponse.chunk.get(index);
-                            events.put(backEvent.eventId, backEvent);
+                            events.put(backEvent);
                         }
 
                         // define a token
                         mRoomTokens.put(roomId, eventsResponse.start);
                     } else {
-                        LinkedHashMap<String, Event> events2 = new LinkedHashMap<String, Event>();
-
-                        // insert the catchup events in reverse order
-                        for (int index = eventsResponse.chunk.size() - 1; index >= 0; index--) {
-                            Event backEvent = eventsResponse.chunk.get(index);
-                            events2.put(backEvent.eventId, backEvent);
-                        }
-
-                        // add the previous added Events
-                        for (Event event : eventsList) {
-                            events2.put(event.eventId, event);
+                        // the chunk is ordered from the latest to the oldest event
+                        // so each event is inserted before the previous one.
+                        for (Event backEvent : eventsResponse.chunk) {
+                            events.prepend(backEvent);
                         }
-
-                        // store the new list
-                        mRoomEvents.put(roomId, events2);
                     }
                 }
             }
@@ -573,7 +651,7 @@ public class MXMemoryStore implements IMXStore {
     @Override
     public boolean updateEventContent(String roomId, String eventId, JsonObject newContent) {
         if (null != roomId) {
-            LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
+            RoomEventsTimeline events = mRoomEvents.get(roomId);
             if (events != null) {
                 Event eventToUpdate;
 
@@ -651,14 +729,16 @@ public class MXMemoryStore implements IMXStore {
             return null;
         }
 
-        LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
+        RoomEventsTimeline events = mRoomEvents.get(roomId);
 
         // unknown room ?
         if (null == events) {
             return null;
         }
 
-        return new ArrayList<Event>(events.values());
+        synchronized (mRoomEvents) {
+            return events.values();
+        }
     }
 
     @Override
@@ -666,7 +746,7 @@ public class MXMemoryStore implements IMXStore {
         // For now, we return everything we have for the original null token request
         // For older requests (providing a token), returning null for now
         if (null != roomId) {
-            LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
+            RoomEventsTimeline events = mRoomEvents.get(roomId);
             if ((events == null) || (events.size() == 0)) {
                 return null;
             }
@@ -676,39 +756,26 @@ public class MXMemoryStore implements IMXStore {
                return null;
             }
 
-            // check if the token is known in the sublist
-            ArrayList<Event> eventsList = new ArrayList<>(events.values());
             ArrayList<Event> subEventsList = new ArrayList<>();
-
-            // search from the latest to the oldest events
-            Collections.reverse(eventsList);
-
             TokensChunkResponse<Event> response = new TokensChunkResponse<Event>();
 
-            // start the latest event and there is enough events to provide to the caller ?
-            if ((null == fromToken) && (eventsList.size() <= limit)) {
-                subEventsList = eventsList;
-            } else {
-                int index = 0;
+            synchronized (mRoomEvents) {
+                // the events are returned from the latest to the oldest one
+                int position = events.size() - 1;
 
                 if (null != fromToken) {
-                    // search if token is one of the stored events
-                    for (; (index < eventsList.size()) && (!TextUtils.equals(fromToken,eventsList.get(index).mToken)); index++)
-                        ;
-
-                    index++;
+                    // start before the event with this token
+                    // -2 if the token is unknown
+                    position = events.indexOfToken(fromToken) - 1;
                 }
 
-                // found it ?
-                if (index < eventsList.size()) {
-                    for(;index < eventsList.size(); index++) {
-                        Event event = eventsList.get(index);
-                        subEventsList.add(event);
+                for (; position >= 0; position--) {
+                    Event event = events.get(position);
+                    subEventsList.add(event);
 
-                        // loop until to find an event with a token
-                        if ((subEventsList.size() >= limit) &&  (event.mToken != null)) {
-                            break;
-                        }
+                    // loop until to find an event with a token
+                    if ((subEventsList.size() >= limit) && (event.mToken != null)) {
+                        break;
                     }
                 }
             }
@@ -762,14 +829,12 @@ public class MXMemoryStore implements IMXStore {
         ArrayList<Event> unsentRoomEvents = new ArrayList<Event>();
 
         synchronized (mRoomEvents) {
-            LinkedHashMap<String, Event> events = mRoomEvents.get(roomId);
+            RoomEventsTimeline events = mRoomEvents.get(roomId);
 
             // contain some events
             if ((null != events) && (events.size() > 0)) {
-                ArrayList<Event> eventsList = new ArrayList(events.values());
-
                 for (int index = events.size() - 1; index >= 0; index--) {
-                    Event event = eventsList.get(index);
+                    Event event = events.get(index);
 
                     if (event.mSentState == Event.SentState.WAITING_RETRY) {
                         unsentRoomEvents.add(event);
@@ -800,18 +865,14 @@ public class MXMemoryStore implements IMXStore {
         if (mReceiptsByRoomId.containsKey(roomId)) {
             String myUserID = mCredentials.userId;
 
-            Map<String, ReceiptData> receiptsByUserId = mReceiptsByRoomId.get(roomId);
-
-            // copy the user id list to avoid having update while looping
-            ArrayList<String> userIds = new ArrayList<String>(receiptsByUserId.keySet());
+            synchronized (mReceiptsByEventIdByRoomId) {
+                List<ReceiptData> eventReceipts = getReceiptsIndex(roomId).get(eventId);
 
-            for(String userId : userIds) {
-
-                if (receiptsByUserId.containsKey(userId) && (!excludeSelf || !TextUtils.equals(myUserID, userId))) {
-                    ReceiptData receipt = receiptsByUserId.get(userId);
-
-                    if (TextUtils.equals(receipt.eventId, eventId)) {
-                        receipts.add(receipt);
+                if (null != eventReceipts) {
+                    for (ReceiptData receipt : eventReceipts) {
+                        if (!excludeSelf || !TextUtils.equals(myUserID, receipt.userId)) {
+                            receipts.add(receipt);
+                        }
                     }
                 }
             }
@@ -831,28 +892,105 @@ public class MXMemoryStore implements IMXStore {
      * @return true if the receipt has been stored
      */
     public boolean storeReceipt(ReceiptData receipt, String roomId) {
-        Map<String, ReceiptData> receiptsByUserId = null;
+        // the receipts map and its index are updated together :
+        // getEventReceipts could build the index from a receipts map which already contains this receipt.
+        synchronized (mReceiptsByEventIdByRoomId) {
+            Map<String, ReceiptData> receiptsByUserId = null;
+
+            if (!mReceiptsByRoomId.containsKey(roomId)) {
+                receiptsByUserId = new HashMap<String, ReceiptData>();
+                mReceiptsByRoomId.put(roomId, receiptsByUserId);
+            } else {
+                receiptsByUserId = mReceiptsByRoomId.get(roomId);
+            }
 
-        if (!mReceiptsByRoomId.containsKey(roomId)) {
-            receiptsByUserId = new HashMap<String, ReceiptData>();
-            mReceiptsByRoomId.put(roomId, receiptsByUserId);
-        } else {
-            receiptsByUserId = mReceiptsByRoomId.get(roomId);
+            ReceiptData curReceipt = null;
+
+            if (receiptsByUserId.containsKey(receipt.userId)) {
+                curReceipt = receiptsByUserId.get(receipt.userId);
+            }
+
+            // not yet defined or a new event
+            if ((null == curReceipt) || (!TextUtils.equals(receipt.eventId,curReceipt.eventId) && (receipt.originServerTs > curReceipt.originServerTs))) {
+                receiptsByUserId.put(receipt.userId, receipt);
+
+                Map<String, List<ReceiptData>> receiptsByEventId = mReceiptsByEventIdByRoomId.get(roomId);
+
+                // else it will be built with this receipt
+                if (null != receiptsByEventId) {
+                    if (null != curReceipt) {
+                        List<ReceiptData> eventReceipts = receiptsByEventId.get(curReceipt.eventId);
+
+                        if (null != eventReceipts) {
+                            eventReceipts.remove(curReceipt);
+
+                            if (eventReceipts.size() == 0) {
+                                receiptsByEventId.remove(curReceipt.eventId);
+                            }
+                        }
+                    }
+
+                    addToReceiptsIndex(receiptsByEventId, receipt);
+                }
+
+                return true;
+            }
         }
 
-        ReceiptData curReceipt = null;
+        return false;
+    }
+
+    /**
+     * Provides the receipts of a room indexed by event id.
+     * It must be called in a synchronized (mReceiptsByEventIdByRoomId) block.
+     * @param roomId the room id
+     * @return the receipts index
+     */
+    private Map<String, List<ReceiptData>> getReceiptsIndex(String roomId) {
+        Map<String, List<ReceiptData>> receiptsByEventId = mReceiptsByEventIdByRoomId.get(roomId);
 
-        if (receiptsByUserId.containsKey(receipt.userId)) {
-            curReceipt = receiptsByUserId.get(receipt.userId);
+        if (null == receiptsByEventId) {
+            receiptsByEventId = new HashMap<String, List<ReceiptData>>();
+
+            Map<String, ReceiptData> receiptsByUserId = mReceiptsByRoomId.get(roomId);
+
+            if (null != receiptsByUserId) {
+                // copy the receipts list to avoid having update while looping
+                for (ReceiptData receipt : new ArrayList<ReceiptData>(receiptsByUserId.values())) {
+                    addToReceiptsIndex(receiptsByEventId, receipt);
+                }
+            }
+
+            mReceiptsByEventIdByRoomId.put(roomId, receiptsByEventId);
         }
 
-        // not yet defined or a new event
-        if ((null == curReceipt) || (!TextUtils.equals(receipt.eventId,curReceipt.eventId) && (receipt.originServerTs > curReceipt.originServerTs))) {
-            receiptsByUserId.put(receipt.userId, receipt);
-            return true;
+        return receiptsByEventId;
+    }
+
+    /**
+     * Add a receipt to a receipts index.
+     * @param receiptsByEventId the receipts index
+     * @param receipt the receipt
+     */
+    private void addToReceiptsIndex(Map<String, List<ReceiptData>> receiptsByEventId, ReceiptData receipt) {
+        List<ReceiptData> eventReceipts = receiptsByEventId.get(receipt.eventId);
+
+        if (null == eventReceipts) {
+            eventReceipts = new ArrayList<ReceiptData>();
+            receiptsByEventId.put(receipt.eventId, eventReceipts);
         }
 
-        return false;
+        eventReceipts.add(receipt);
+    }
+
+    /**
+     * The receipts index of a room will be built again from its receipts.
+     * @param roomId the room id
+     */
+    protected void invalidateReceiptsIndex(String roomId) {
+        synchronized (mReceiptsByEventIdByRoomId) {
+            mReceiptsByEventIdByRoomId.remove(roomId);
+        }
     }
 
     /**
@@ -873,27 +1011,18 @@ public class MXMemoryStore implements IMXStore {
         // sanity check
         if ((null != roomId) && (null != eventId)) {
             synchronized (mRoomEvents) {
-                LinkedHashMap<String, Event> roomEvents = mRoomEvents.get(roomId);
+                RoomEventsTimeline roomEvents = mRoomEvents.get(roomId);
 
                 if (roomEvents != null) {
-                    List<Event> linkedEvents = new ArrayList<Event>(roomEvents.values());
+                    // an unknown event id : all the stored events are after it
+                    for (int i = roomEvents.indexOf(eventId) + 1; i < roomEvents.size(); i++) {
+                        Event event = roomEvents.get(i);
 
-                    // Check messages from the most recent
-                    for (int i = linkedEvents.size() - 1; i >= 0 ; i--) {
-                        Event event = linkedEvents.get(i);
-
-                        if (!TextUtils.equals(event.eventId, eventId)) {
-                            // Keep events matching filters
-                            if ((null == allowedTypes || (allowedTypes.indexOf(event.type) >= 0)) && !TextUtils.equals(event.getSender(), excludedUserId)) {
-                                events.add(event);
-                            }
-                        } else {
-                            // We are done
-                            break;
+                        // Keep events matching filters
+                        if ((null == allowedTypes || (allowedTypes.indexOf(event.type) >= 0)) && !TextUtils.equals(event.getSender(), excludedUserId)) {
+                            events.add(event);
                         }
                     }
-
-                    Collections.reverse(events);
                 }
             }
         }
@@ -283,8 +283,9 @@ public class Room {
      * @param eventListener the event listener to add
      */
     public void addEventListener(final IMXEventListener eventListener) {
-        // Create a global listener that we'll add to the data handler
-        IMXEventListener globalListener = new MXEventListener() {
+        // Create a room listener that we'll add to the data handler
+        // the data handler only routes the callbacks of this room to it.
+        IMXEventListener roomListener = new MXEventListener() {
             @Override
             public void onPresenceUpdate(Event event, User user) {
                 // Only pass event through if the user is a member of the room
@@ -344,6 +345,28 @@ public class Room {
                 }
             }
 
+            @Override
+            public void onLiveEventsBatch(List<Event> events) {
+                // Filter out events for other rooms
+                if (mIsReady) {
+                    ArrayList<Event> roomEvents = new ArrayList<Event>();
+
+                    for (Event event : events) {
+                        if (TextUtils.equals(mRoomId, event.roomId)) {
+                            roomEvents.add(event);
+                        }
+                    }
+
+                    if (roomEvents.size() > 0) {
+                        try {
+                            eventListener.onLiveEventsBatch(roomEvents);
+                        } catch (Exception e) {
+                            Log.e(LOG_TAG, "onLiveEventsBatch exception " + e.getMessage());
+                        }
+                    }
+                }
+            }
+
             @Override
             public void onBackEvent(Event event, RoomState roomState) {
                 // Filter out events for other rooms
@@ -489,8 +512,8 @@ public class Room {
                 }
             }
         };
-        mEventListeners.put(eventListener, globalListener);
-        mDataHandler.addListener(globalListener);
+        mEventListeners.put(eventListener, roomListener);
+        mDataHandler.addRoomListener(mRoomId, roomListener);
     }
 
     /**
@@ -498,7 +521,7 @@ public class Room {
      * @param eventListener the event listener to remove
      */
     public void removeEventListener(IMXEventListener eventListener) {
-        mDataHandler.removeListener(mEventListeners.get(eventListener));
+        mDataHandler.removeRoomListener(mRoomId, mEventListeners.get(eventListener));
         mEventListeners.remove(eventListener);
     }
 
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data;
+
+import android.text.TextUtils;
+
+import org.matrix.androidsdk.rest.model.Event;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * The stored events of a room, from the oldest to the latest one.
+ * The events are kept in an array with some free slots at both ends
+ * so the live events are appended and the back paginated ones are prepended in constant time.
+ * The events ids and the pagination tokens are indexed to retrieve an event position without scanning the timeline.
+ * The indexes store a position key which does not change when some events are inserted at both ends :
+ * the position of an event is its key + mKeyOffset.
+ */
+class RoomEventsTimeline {
+    private static final int MIN_CAPACITY = 16;
+
+    private Event[] mEvents = new Event[MIN_CAPACITY];
+    // the array index of the oldest event
+    private int mHead = MIN_CAPACITY / 2;
+    private int mSize = 0;
+    private int mKeyOffset = 0;
+
+    // event id -> position key
+    private final HashMap<String, Integer> mEventIdIndex = new HashMap<String, Integer>();
+    // pagination token -> position key
+    private final HashMap<String, Integer> mTokenIndex = new HashMap<String, Integer>();
+
+    RoomEventsTimeline() {
+    }
+
+    /**
+     * Create a timeline from an ordered events collection.
+     * @param events the events from the oldest to the latest one.
+     */
+    RoomEventsTimeline(Collection<Event> events) {
+        if (null != events) {
+            ensureCapacity(events.size(), events.size());
+
+            for (Event event : events) {
+                put(event);
+            }
+        }
+    }
+
+    /**
+     * @return the events count.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Provides the event at a position.
+     * @param position the position (0 is the oldest event).
+     * @return the event
+     */
+    public Event get(int position) {
+        if ((position < 0) || (position >= mSize)) {
+            throw new IndexOutOfBoundsException("position " + position + " size " + mSize);
+        }
+
+        return mEvents[mHead + position];
+    }
+
+    /**
+     * @return the oldest event, null if the timeline is empty.
+     */
+    public Event getFirst() {
+        return (mSize > 0) ? mEvents[mHead] : null;
+    }
+
+    /**
+     * @return the latest event, null if the timeline is empty.
+     */
+    public Event getLast() {
+        return (mSize > 0) ? mEvents[mHead + mSize - 1] : null;
+    }
+
+    /**
+     * Find an event by its id.
+     * @param eventId the event id.
+     * @return the event, null if it is not found.
+     */
+    public Event get(String eventId) {
+        int position = indexOf(eventId);
+        return (position >= 0) ? mEvents[mHead + position] : null;
+    }
+
+    /**
+     * Tells if an event is stored.
+     * @param eventId the event id.
+     * @return true if the event is stored.
+     */
+    public boolean containsKey(String eventId) {
+        return indexOf(eventId) >= 0;
+    }
+
+    /**
+     * Provides the position of an event.
+     * @param eventId the event id.
+     * @return the event position, -1 if it is not found.
+     */
+    public int indexOf(String eventId) {
+        if (null == eventId) {
+            return -1;
+        }
+
+        Integer key = mEventIdIndex.get(eventId);
+        return (null != key) ? (key + mKeyOffset) : -1;
+    }
+
+    /**
+     * Provides the position of the latest event with a pagination token.
+     * The token can be set to an event after its insertion so the index is completed by a scan
+     * when the token is unknown.
+     * @param token the pagination token
+     * @return the event position, -1 if it is not found.
+     */
+    public int indexOfToken(String token) {
+        if (null == token) {
+            return -1;
+        }
+
+        Integer key = mTokenIndex.get(token);
+
+        if (null != key) {
+            int position = key + mKeyOffset;
+
+            // the event token could have been updated
+            if ((position >= 0) && (position < mSize) && TextUtils.equals(token, mEvents[mHead + position].mToken)) {
+                return position;
+            }
+
+            mTokenIndex.remove(token);
+        }
+
+        for (int position = mSize - 1; position >= 0; position--) {
+            Event event = mEvents[mHead + position];
+
+            if (TextUtils.equals(token, event.mToken)) {
+                mTokenIndex.put(token, position - mKeyOffset);
+                return position;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Add an event at the end of the timeline.
+     * An already stored event is replaced at its position.
+     * @param event the event
+     */
+    public void put(Event event) {
+        int position = indexOf(event.eventId);
+
+        if (position >= 0) {
+            mEvents[mHead + position] = event;
+            indexToken(event, position);
+            return;
+        }
+
+        ensureCapacity(0, 1);
+
+        position = mSize;
+        mEvents[mHead + position] = event;
+        mSize++;
+
+        index(event, position);
+    }
+
+    /**
+     * Add an event at the beginning of the timeline.
+     * An already stored event is not updated.
+     * @param event the event
+     */
+    public void prepend(Event event) {
+        if (containsKey(event.eventId)) {
+            return;
+        }
+
+        ensureCapacity(1, 0);
+
+        mHead--;
+        mSize++;
+        // the stored events are shifted by one position
+        mKeyOffset++;
+
+        mEvents[mHead] = event;
+        index(event, 0);
+    }
+
+    /**
+     * Remove an event.
+     * The shortest side of the timeline is shifted to fill the gap.
+     * @param eventId the event id.
+     * @return the removed event, null if it is not found.
+     */
+    public Event remove(String eventId) {
+        int position = indexOf(eventId);
+
+        if (position < 0) {
+            return null;
+        }
+
+        Event event = mEvents[mHead + position];
+        unindex(event);
+
+        if (position < (mSize / 2)) {
+            // shift the oldest events to the right
+            System.arraycopy(mEvents, mHead, mEvents, mHead + 1, position);
+            mEvents[mHead] = null;
+            mHead++;
+            mKeyOffset--;
+
+            // these events keep their position
+            for (int i = 0; i < position; i++) {
+                reindex(mEvents[mHead + i], i);
+            }
+        } else {
+            // shift the latest events to the left
+            System.arraycopy(mEvents, mHead + position + 1, mEvents, mHead + position, mSize - position - 1);
+            mEvents[mHead + mSize - 1] = null;
+
+            for (int i = position; i < (mSize - 1); i++) {
+                reindex(mEvents[mHead + i], i);
+            }
+        }
+
+        mSize--;
+        return event;
+    }
+
+    /**
+     * @return a copy of the events list, from the oldest to the latest one.
+     */
+    public ArrayList<Event> values() {
+        ArrayList<Event> res = new ArrayList<Event>(mSize);
+
+        for (int i = 0; i < mSize; i++) {
+            res.add(mEvents[mHead + i]);
+        }
+
+        return res;
+    }
+
+    /**
+     * Provides a sub list of the timeline.
+     * @param from the first position (included).
+     * @param to the last position (excluded).
+     * @return the events.
+     */
+    public ArrayList<Event> subList(int from, int to) {
+        ArrayList<Event> res = new ArrayList<Event>(Math.max(0, to - from));
+
+        for (int i = from; i < to; i++) {
+            res.add(mEvents[mHead + i]);
+        }
+
+        return res;
+    }
+
+    /**
+     * Update the indexes of an event.
+     * @param event the event
+     * @param position its position
+     */
+    private void index(Event event, int position) {
+        if (null != event.eventId) {
+            mEventIdIndex.put(event.eventId, position - mKeyOffset);
+        }
+
+        indexToken(event, position);
+    }
+
+    /**
+     * Update the token index of an event.
+     * @param event the event
+     * @param position its position
+     */
+    private void indexToken(Event event, int position) {
+        if (null != event.mToken) {
+            mTokenIndex.put(event.mToken, position - mKeyOffset);
+        }
+    }
+
+    /**
+     * Update the indexes of a moved event.
+     * @param event the event
+     * @param position its new position
+     */
+    private void reindex(Event event, int position) {
+        if (null != event.eventId) {
+            mEventIdIndex.put(event.eventId, position - mKeyOffset);
+        }
+
+        if ((null != event.mToken) && mTokenIndex.containsKey(event.mToken)) {
+            mTokenIndex.put(event.mToken, position - mKeyOffset);
+        }
+    }
+
+    /**
+     * Remove an event from the indexes.
+     * @param event the event
+     */
+    private void unindex(Event event) {
+        if (null != event.eventId) {
+            mEventIdIndex.remove(event.eventId);
+        }
+
+        if (null != event.mToken) {
+            mTokenIndex.remove(event.mToken);
+        }
+    }
+
+    /**
+     * Ensure that there are enough free slots at both ends of the array.
+     * @param before the free slots count before the oldest event.
+     * @param after the free slots count after the latest event.
+     */
+    private void ensureCapacity(int before, int after) {
+        int freeAfter = mEvents.length - mHead - mSize;
+
+        if ((mHead >= before) && (freeAfter >= after)) {
+            return;
+        }
+
+        int capacity = Math.max(MIN_CAPACITY, 2 * (mSize + before + after));
+        Event[] events = new Event[capacity];
+
+        // center the events to keep free slots at both ends
+        int head = before + (capacity - mSize - before - after) / 2;
+        System.arraycopy(mEvents, mHead, events, head, mSize);
+
+        mEvents = events;
+        mHead = head;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.data;
+
+import org.matrix.androidsdk.rest.model.RoomMember;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The members table of a room state.
+ * The members are dispatched in a two levels tree of buckets (32 x 32) indexed by the user id hash.
+ * A snapshot shares the whole tree with its source so it is done in constant time :
+ * the first update of a shared bucket only copies this bucket and its parent table.
+ * The stored RoomMember objects must not be updated once they are inserted.
+ */
+class RoomMembersTable implements java.io.Serializable {
+    private static final long serialVersionUID = 2302085412745287436L;
+
+    private static final int TABLE_BITS = 5;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+
+    /**
+     * A leaf of the tree.
+     */
+    private static class Bucket implements java.io.Serializable {
+        private static final long serialVersionUID = -4405123286577359141L;
+
+        // the table which can update this bucket in place
+        transient Object mOwner;
+        final HashMap<String, RoomMember> mMembers;
+
+        Bucket(Object owner, HashMap<String, RoomMember> members) {
+            mOwner = owner;
+            mMembers = members;
+        }
+    }
+
+    /**
+     * An intermediate node of the tree.
+     */
+    private static class Node implements java.io.Serializable {
+        private static final long serialVersionUID = 6839410270354821163L;
+
+        // the table which can update this node in place
+        transient Object mOwner;
+        final Bucket[] mBuckets;
+
+        Node(Object owner, Bucket[] buckets) {
+            mOwner = owner;
+            mBuckets = buckets;
+        }
+    }
+
+    private Node[] mNodes = new Node[TABLE_SIZE];
+    private int mSize = 0;
+
+    // the nodes / buckets created by this table can be updated in place
+    // the owner is renewed at each snapshot so the shared ones are copied before being updated.
+    private transient Object mOwner = new Object();
+
+    /**
+     * @return the ownership token of this table.
+     */
+    private Object getOwner() {
+        // the transient fields are not restored after deserialization
+        if (null == mOwner) {
+            mOwner = new Object();
+        }
+
+        return mOwner;
+    }
+
+    /**
+     * Spread the hash bits to use both tree levels.
+     * @param userId the user id
+     * @return the hash
+     */
+    private static int hash(String userId) {
+        int h = userId.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * @return a table sharing its content with this one.
+     */
+    public RoomMembersTable snapshot() {
+        RoomMembersTable copy = new RoomMembersTable();
+        copy.mNodes = mNodes.clone();
+        copy.mSize = mSize;
+
+        // both tables must copy the shared nodes before updating them
+        mOwner = new Object();
+
+        return copy;
+    }
+
+    /**
+     * @return the members count.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Retrieve a member.
+     * @param userId the user id.
+     * @return the member, null if it is not found.
+     */
+    public RoomMember get(String userId) {
+        if (null == userId) {
+            return null;
+        }
+
+        int h = hash(userId);
+        Node node = mNodes[h & TABLE_MASK];
+
+        if (null != node) {
+            Bucket bucket = node.mBuckets[(h >>> TABLE_BITS) & TABLE_MASK];
+
+            if (null != bucket) {
+                return bucket.mMembers.get(userId);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Provides an updatable bucket for an user id.
+     * The shared nodes / buckets are copied.
+     * @param h the user id hash.
+     * @return the bucket
+     */
+    private Bucket getUpdatableBucket(int h) {
+        Object owner = getOwner();
+        int nodeIndex = h & TABLE_MASK;
+        int bucketIndex = (h >>> TABLE_BITS) & TABLE_MASK;
+
+        Node node = mNodes[nodeIndex];
+
+        if (null == node) {
+            node = new Node(owner, new Bucket[TABLE_SIZE]);
+            mNodes[nodeIndex] = node;
+        } else if (node.mOwner != owner) {
+            node = new Node(owner, node.mBuckets.clone());
+            mNodes[nodeIndex] = node;
+        }
+
+        Bucket bucket = node.mBuckets[bucketIndex];
+
+        if (null == bucket) {
+            bucket = new Bucket(owner, new HashMap<String, RoomMember>());
+            node.mBuckets[bucketIndex] = bucket;
+        } else if (bucket.mOwner != owner) {
+            bucket = new Bucket(owner, new HashMap<String, RoomMember>(bucket.mMembers));
+            node.mBuckets[bucketIndex] = bucket;
+        }
+
+        return bucket;
+    }
+
+    /**
+     * Add or replace a member.
+     * @param userId the user id.
+     * @param member the member.
+     */
+    public void put(String userId, RoomMember member) {
+        Bucket bucket = getUpdatableBucket(hash(userId));
+
+        if (null == bucket.mMembers.put(userId, member)) {
+            mSize++;
+        }
+    }
+
+    /**
+     * Remove a member.
+     * @param userId the user id.
+     */
+    public void remove(String userId) {
+        // nothing to copy if the member is unknown
+        if (null == get(userId)) {
+            return;
+        }
+
+        Bucket bucket = getUpdatableBucket(hash(userId));
+
+        if (null != bucket.mMembers.remove(userId)) {
+            mSize--;
+        }
+    }
+
+    /**
+     * @return the members list.
+     */
+    public ArrayList<RoomMember> values() {
+        ArrayList<RoomMember> res = new ArrayList<RoomMember>(mSize);
+
+        for (Node node : mNodes) {
+            if (null != node) {
+                for (Bucket bucket : node.mBuckets) {
+                    if (null != bucket) {
+                        res.addAll(bucket.mMembers.values());
+                    }
+                }
+            }
+        }
+
+        return res;
+    }
+}
@@ -30,10 +30,11 @@ import org.matrix.androidsdk.rest.model.RoomMember;
 import org.matrix.androidsdk.rest.model.User;
 import org.matrix.androidsdk.util.JsonUtils;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -91,7 +92,8 @@ public class RoomState implements java.io.Serializable {
     private String token;
 
     // the room members
-    private Map<String, RoomMember> mMembers = new HashMap<String, RoomMember>();
+    // the table is shared with the snapshots (see deepCopy) so a RoomMember must never be updated in place.
+    private RoomMembersTable mMembers = new RoomMembersTable();
 
     // the unitary tests crash when MXDataHandler type is set.
     private transient Object mDataHandler = null;
@@ -114,7 +116,7 @@ public class RoomState implements java.io.Serializable {
 
         synchronized (this) {
             // make a copy to avoid concurrency modifications
-            res = new ArrayList<>(mMembers.values());
+            res = mMembers.values();
         }
 
         return res;
@@ -193,6 +195,8 @@ public class RoomState implements java.io.Serializable {
 
     /**
      * Make a deep copy of this room state object.
+     * The members table is shared with the copy until one of them is updated,
+     * so the copy cost does not depend on the members count.
      * @return the copy
      */
     public RoomState deepCopy() {
@@ -213,16 +217,51 @@ public class RoomState implements java.io.Serializable {
         copy.mDataHandler = mDataHandler;
 
         synchronized (this) {
-            Iterator it = mMembers.entrySet().iterator();
-            while (it.hasNext()) {
-                Map.Entry<String, RoomMember> pair = (Map.Entry<String, RoomMember>) it.next();
-                copy.setMember(pair.getKey(), pair.getValue().deepCopy());
-            }
+            copy.mMembers = mMembers.snapshot();
         }
 
         return copy;
     }
 
+    /**
+     * Java deserialization.
+     * It is only used to migrate the legacy MXFileStore files.
+     * The members of the oldest ones were stored in a HashMap : they are converted to a RoomMembersTable.
+     * @param in the input stream
+     * @throws IOException if the stream cannot be read
+     * @throws ClassNotFoundException if a class cannot be found
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+
+        roomId = (String) fields.get("roomId", null);
+        powerLevels = (PowerLevels) fields.get("powerLevels", null);
+        aliases = (List<String>) fields.get("aliases", null);
+        alias = (String) fields.get("alias", null);
+        name = (String) fields.get("name", null);
+        topic = (String) fields.get("topic", null);
+        url = (String) fields.get("url", null);
+        creator = (String) fields.get("creator", null);
+        join_rule = (String) fields.get("join_rule", null);
+        history_visibility = (String) fields.get("history_visibility", null);
+        roomAliasName = (String) fields.get("roomAliasName", null);
+        visibility = (String) fields.get("visibility", null);
+        token = (String) fields.get("token", null);
+
+        Object members = fields.get("mMembers", null);
+
+        if (members instanceof RoomMembersTable) {
+            mMembers = (RoomMembersTable) members;
+        } else {
+            mMembers = new RoomMembersTable();
+
+            if (members instanceof Map) {
+                for (Map.Entry<String, RoomMember> entry : ((Map<String, RoomMember>) members).entrySet()) {
+                    mMembers.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
 
     /**
      * @return the room alias
@@ -267,8 +306,9 @@ public class RoomState implements java.io.Serializable {
             }
             // compute a name
             else if (mMembers.size() > 0) {
-                Iterator it = mMembers.entrySet().iterator();
-                Map.Entry<String, RoomMember> otherUserPair = null;
+                // the members are indexed by their user ids
+                Iterator<RoomMember> it = mMembers.values().iterator();
+                RoomMember otherMember = null;
 
                 if ((mMembers.size() >= 3) && (selfUserId != null)) {
                     // this is a group chat and should have the names of participants
@@ -278,20 +318,16 @@ public class RoomState implements java.io.Serializable {
                     displayName = "";
 
                     while (it.hasNext()) {
-                        Map.Entry<String, RoomMember> pair = (Map.Entry<String, RoomMember>) it.next();
+                        RoomMember member = it.next();
 
-                        if (!selfUserId.equals(pair.getKey())) {
-                            otherUserPair = pair;
+                        if (!selfUserId.equals(member.getUserId())) {
+                            otherMember = member;
 
                             if (count > 0) {
                                 displayName += ", ";
                             }
 
-                            if (otherUserPair.getValue().getName() != null) {
-                                displayName += getMemberName(otherUserPair.getValue().getUserId()); // The member name
-                            } else {
-                                displayName += getMemberName(otherUserPair.getKey()); // The user id
-                            }
+                            displayName += getMemberName(otherMember.getUserId());
                             count++;
                         }
                     }
@@ -303,20 +339,16 @@ public class RoomState implements java.io.Serializable {
                     // A One2One private room can default to being called like the other guy
                     if (selfUserId != null) {
                         while (it.hasNext()) {
-                            Map.Entry<String, RoomMember> pair = (Map.Entry<String, RoomMember>) it.next();
-                            if (!selfUserId.equals(pair.getKey())) {
-                                otherUserPair = pair;
+                            RoomMember member = it.next();
+                            if (!selfUserId.equals(member.getUserId())) {
+                                otherMember = member;
                                 break;
                             }
                         }
                     }
 
-                    if (otherUserPair != null) {
-                        if (otherUserPair.getValue().getName() != null) {
-                            displayName = getMemberName(otherUserPair.getValue().getUserId()); // The member name
-                        } else {
-                            displayName = getMemberName(otherUserPair.getKey()); // The user id
-                        }
+                    if (otherMember != null) {
+                        displayName = getMemberName(otherMember.getUserId());
                     }
                 }
             }
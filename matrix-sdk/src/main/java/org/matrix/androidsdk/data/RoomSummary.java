@@ -330,4 +330,49 @@ public class RoomSummary implements java.io.Serializable {
     public int getUnreadEventsCount() {
         return mUnreadEventsCount;
     }
+
+    //================================================================================
+    // MXFileStoreCodec accessors
+    //================================================================================
+
+    /**
+     * @return the stored name, without the invitation management.
+     */
+    String getRawName() {
+        return mName;
+    }
+
+    long getReadReceiptTs() {
+        return mReadReceiptTs;
+    }
+
+    /**
+     * Restore a saved read receipt without any ts check.
+     * @param token the read receipt token
+     * @param ts the read receipt ts
+     */
+    void restoreReadReceiptToken(String token, long ts) {
+        mReadReceiptToken = token;
+        mReadReceiptTs = ts;
+    }
+
+    boolean getIsInvitedFlag() {
+        return (null != mIsInvited) && mIsInvited;
+    }
+
+    void setIsInvitedFlag(boolean isInvited) {
+        mIsInvited = isInvited;
+    }
+
+    String getInviterName() {
+        return mInviterName;
+    }
+
+    void setInviterName(String inviterName) {
+        mInviterName = inviterName;
+    }
+
+    boolean getIsHighlightedFlag() {
+        return mIsHighlighted;
+    }
 }
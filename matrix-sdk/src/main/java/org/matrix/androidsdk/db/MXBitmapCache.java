@@ -0,0 +1,332 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.db;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * In-memory bitmaps cache.
+ * The bitmaps are stored in two tiers so the large images do not evict the avatars and the thumbnails :
+ * <ul>
+ * <li>the thumbnails tier contains the bitmaps whose both sides are smaller than THUMBNAIL_MAX_SIDE.</li>
+ * <li>the images tier contains the other ones.</li>
+ * </ul>
+ * The bitmaps are keyed by their downloadable url which includes the thumbnail size.
+ * When the bitmaps reuse is enabled, the evicted bitmaps are kept to be used as BitmapFactory.Options.inBitmap.
+ */
+public class MXBitmapCache {
+    private static final String LOG_TAG = "MXBitmapCache";
+
+    // the bitmaps whose both sides are smaller than this value are stored in the thumbnails tier
+    public static final int THUMBNAIL_MAX_SIDE = 256;
+
+    // the default tiers sizes are a part of the application heap
+    private static final int DEFAULT_THUMBNAILS_CACHE_MAX_SIZE = 4 * 1024 * 1024;
+    private static final int DEFAULT_IMAGES_CACHE_MAX_SIZE = 8 * 1024 * 1024;
+
+    // a bitmap larger than a part of its tier is not cached : it would evict the other ones.
+    private static final int MAX_ENTRY_SIZE_RATIO = 4;
+
+    private LruCache<String, Bitmap> mThumbnailsCache;
+    private LruCache<String, Bitmap> mImagesCache;
+
+    // the evicted bitmaps which can be reused to decode the next ones.
+    private final ArrayList<SoftReference<Bitmap>> mReusableBitmaps = new ArrayList<SoftReference<Bitmap>>();
+    private boolean mIsBitmapsReuseEnabled = false;
+
+    // counters
+    private int mThumbnailsHitsCount = 0;
+    private int mImagesHitsCount = 0;
+    private int mMissesCount = 0;
+    private int mThumbnailsEvictionsCount = 0;
+    private int mImagesEvictionsCount = 0;
+    private int mReusedBitmapsCount = 0;
+
+    public MXBitmapCache() {
+        int maxMemory = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory());
+
+        setMaxSizes(Math.min(DEFAULT_THUMBNAILS_CACHE_MAX_SIZE, maxMemory / 16), Math.min(DEFAULT_IMAGES_CACHE_MAX_SIZE, maxMemory / 16));
+    }
+
+    /**
+     * Update the tiers sizes.
+     * The cached bitmaps are released.
+     * @param thumbnailsCacheMaxSize the thumbnails tier size in bytes.
+     * @param imagesCacheMaxSize the images tier size in bytes.
+     */
+    public synchronized void setMaxSizes(int thumbnailsCacheMaxSize, int imagesCacheMaxSize) {
+        Log.d(LOG_TAG, "setMaxSizes : thumbnails " + thumbnailsCacheMaxSize + " images " + imagesCacheMaxSize);
+
+        if (null != mThumbnailsCache) {
+            mThumbnailsCache.evictAll();
+            mImagesCache.evictAll();
+        }
+
+        mThumbnailsCache = new Tier(Math.max(1, thumbnailsCacheMaxSize), true);
+        mImagesCache = new Tier(Math.max(1, imagesCacheMaxSize), false);
+    }
+
+    /**
+     * Enable the bitmaps reuse.
+     * The evicted bitmaps are recycled to decode the next ones, so the application must not
+     * display a bitmap after it has been evicted (e.g. by keeping it in an ImageView out of screen).
+     * @param isEnabled true to enable the reuse.
+     */
+    public synchronized void setBitmapsReuseEnabled(boolean isEnabled) {
+        mIsBitmapsReuseEnabled = isEnabled;
+
+        if (!isEnabled) {
+            mReusableBitmaps.clear();
+        }
+    }
+
+    /**
+     * @return true if the bitmaps reuse is enabled.
+     */
+    public synchronized boolean isBitmapsReuseEnabled() {
+        return mIsBitmapsReuseEnabled;
+    }
+
+    /**
+     * Provides a cached bitmap.
+     * @param key the bitmap key.
+     * @return the bitmap, null if it is not cached.
+     */
+    public synchronized Bitmap get(String key) {
+        Bitmap bitmap = mThumbnailsCache.get(key);
+
+        if (null != bitmap) {
+            mThumbnailsHitsCount++;
+            return bitmap;
+        }
+
+        bitmap = mImagesCache.get(key);
+
+        if (null != bitmap) {
+            mImagesHitsCount++;
+        } else {
+            mMissesCount++;
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Cache a bitmap in the tier matching its size.
+     * @param key the bitmap key.
+     * @param bitmap the bitmap.
+     */
+    public synchronized void put(String key, Bitmap bitmap) {
+        if ((null == key) || (null == bitmap)) {
+            return;
+        }
+
+        boolean isThumbnail = (bitmap.getWidth() <= THUMBNAIL_MAX_SIDE) && (bitmap.getHeight() <= THUMBNAIL_MAX_SIDE);
+        LruCache<String, Bitmap> tier = isThumbnail ? mThumbnailsCache : mImagesCache;
+
+        if (sizeOf(bitmap) > (tier.maxSize() / MAX_ENTRY_SIZE_RATIO)) {
+            Log.d(LOG_TAG, "put : the bitmap " + bitmap.getWidth() + "x" + bitmap.getHeight() + " is too large to be cached");
+            return;
+        }
+
+        tier.put(key, bitmap);
+    }
+
+    /**
+     * Release the cached bitmaps.
+     */
+    public synchronized void clear() {
+        mThumbnailsCache.evictAll();
+        mImagesCache.evictAll();
+        mReusableBitmaps.clear();
+    }
+
+    /**
+     * Prepare the decoding options to reuse an evicted bitmap.
+     * The bounds of the decoded bitmap (outWidth, outHeight, inSampleSize) must have been set.
+     * @param options the decoding options.
+     */
+    public synchronized void addInBitmapOptions(BitmapFactory.Options options) {
+        if (!mIsBitmapsReuseEnabled) {
+            return;
+        }
+
+        // the decoded bitmap can be reused later
+        options.inMutable = true;
+
+        Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
+
+        while (iterator.hasNext()) {
+            Bitmap candidate = iterator.next().get();
+
+            if ((null == candidate) || candidate.isRecycled() || !candidate.isMutable()) {
+                iterator.remove();
+            } else if (canUseForInBitmap(candidate, options)) {
+                iterator.remove();
+                options.inBitmap = candidate;
+                mReusedBitmapsCount++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Tells if a bitmap can be reused to decode another one.
+     * Before KitKat, the bitmaps must have the same size and they must not be sub-sampled.
+     * @param candidate the evicted bitmap.
+     * @param options the decoding options.
+     * @return true if the candidate can be reused.
+     */
+    private static boolean canUseForInBitmap(Bitmap candidate, BitmapFactory.Options options) {
+        int sampleSize = Math.max(1, options.inSampleSize);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            long byteCount = (long) (options.outWidth / sampleSize) * (options.outHeight / sampleSize) * getBytesPerPixel(candidate.getConfig());
+            return byteCount <= candidate.getAllocationByteCount();
+        }
+
+        return (1 == sampleSize) && (candidate.getWidth() == options.outWidth) && (candidate.getHeight() == options.outHeight);
+    }
+
+    /**
+     * @param config the bitmap config.
+     * @return the bytes count per pixel.
+     */
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if ((null == config) || (Bitmap.Config.ARGB_8888 == config)) {
+            return 4;
+        } else if (Bitmap.Config.ALPHA_8 == config) {
+            return 1;
+        }
+
+        // RGB_565 and the deprecated ARGB_4444
+        return 2;
+    }
+
+    /**
+     * @param bitmap the bitmap.
+     * @return the bitmap size in bytes.
+     */
+    private static int sizeOf(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * A cache tier.
+     */
+    private class Tier extends LruCache<String, Bitmap> {
+        private final boolean mIsThumbnailsTier;
+
+        Tier(int maxSize, boolean isThumbnailsTier) {
+            super(maxSize);
+            mIsThumbnailsTier = isThumbnailsTier;
+        }
+
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return MXBitmapCache.sizeOf(bitmap);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+            if (evicted) {
+                synchronized (MXBitmapCache.this) {
+                    if (mIsThumbnailsTier) {
+                        mThumbnailsEvictionsCount++;
+                    } else {
+                        mImagesEvictionsCount++;
+                    }
+
+                    if (mIsBitmapsReuseEnabled && oldValue.isMutable() && !oldValue.isRecycled()) {
+                        mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the thumbnails tier hits count.
+     */
+    public synchronized int getThumbnailsHitsCount() {
+        return mThumbnailsHitsCount;
+    }
+
+    /**
+     * @return the images tier hits count.
+     */
+    public synchronized int getImagesHitsCount() {
+        return mImagesHitsCount;
+    }
+
+    /**
+     * @return the count of requested bitmaps which were not cached.
+     */
+    public synchronized int getMissesCount() {
+        return mMissesCount;
+    }
+
+    /**
+     * @return the thumbnails tier evictions count.
+     */
+    public synchronized int getThumbnailsEvictionsCount() {
+        return mThumbnailsEvictionsCount;
+    }
+
+    /**
+     * @return the images tier evictions count.
+     */
+    public synchronized int getImagesEvictionsCount() {
+        return mImagesEvictionsCount;
+    }
+
+    /**
+     * @return the count of decoded bitmaps which have reused an evicted one.
+     */
+    public synchronized int getReusedBitmapsCount() {
+        return mReusedBitmapsCount;
+    }
+
+    /**
+     * @return the thumbnails tier size in bytes.
+     */
+    public synchronized int getThumbnailsCacheSize() {
+        return mThumbnailsCache.size();
+    }
+
+    /**
+     * @return the images tier size in bytes.
+     */
+    public synchronized int getImagesCacheSize() {
+        return mImagesCache.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "thumbnails " + mThumbnailsCache.size() + "/" + mThumbnailsCache.maxSize() + " bytes hits " + mThumbnailsHitsCount + " evictions " + mThumbnailsEvictionsCount
+                + " images " + mImagesCache.size() + "/" + mImagesCache.maxSize() + " bytes hits " + mImagesHitsCount + " evictions " + mImagesEvictionsCount
+                + " misses " + mMissesCount + " reused " + mReusedBitmapsCount;
+    }
+}
@@ -0,0 +1,833 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.db;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Disk index of a medias cache folder.
+ * <ul>
+ * <li>The index lists the folder files (relative path, size, last access time) in their access order,
+ * so the cache size is known without walking the folder and the least recently used files are evicted first
+ * when the cache exceeds its quota.</li>
+ * <li>Only the downloaded medias are evicted : the local files (e.g. the unsent medias) are counted but kept.</li>
+ * <li>The updates are appended to a journal file stored in the folder. It is compacted when it becomes too long.</li>
+ * <li>When the journal is missing or corrupted, the index is rebuilt by scanning the folder
+ * (the files modification times are used as access times).</li>
+ * <li>The updates, the journal writes and the evictions are done by a background thread shared by the indexes,
+ * so the callers (e.g. the UI thread when a cached bitmap is read) are never blocked by the disk accesses.
+ * The getters wait until the pending updates are applied.</li>
+ * </ul>
+ * There is one index per folder : they are shared by the sessions with {@link #getIndex(File, long)}.
+ */
+class MXMediaDiskCacheIndex {
+    private static final String LOG_TAG = "MXMediaDiskCacheIndex";
+
+    static final String JOURNAL_FILE_NAME = ".mxindex";
+    private static final String JOURNAL_TMP_FILE_NAME = ".mxindex.tmp";
+    private static final String JOURNAL_HEADER = "MXMediaDiskCacheIndex 1";
+
+    private static final String RECORD_ADD = "A";
+    private static final String RECORD_READ = "R";
+    private static final String RECORD_DELETE = "D";
+
+    // the journal is compacted when it contains more records than this value and twice the entries count
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 2000;
+
+    // the read records are not flushed at each access : losing a few ones only alters the eviction order
+    private static final int MAX_UNFLUSHED_READ_RECORDS = 50;
+
+    // the download temporary files older than this delay are orphans (killed application)
+    private static final long ORPHAN_TMP_FILE_DELAY_MS = 60 * 60 * 1000;
+
+    // the registered indexes
+    private static final ArrayList<MXMediaDiskCacheIndex> mIndexes = new ArrayList<MXMediaDiskCacheIndex>();
+
+    // the updates are applied in their request order by a single thread
+    private static final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, LOG_TAG);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    /**
+     * An indexed file.
+     */
+    private static class Entry {
+        long mSize;
+        long mLastAccess;
+        // false for the local files which must not be evicted
+        boolean mIsEvictable;
+
+        Entry(long size, long lastAccess, boolean isEvictable) {
+            mSize = size;
+            mLastAccess = lastAccess;
+            mIsEvictable = isEvictable;
+        }
+    }
+
+    private final File mDirectory;
+    private final String mDirectoryPath;
+
+    // the entries by relative path, the least recently used first
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+    private boolean mIsLoaded = false;
+    private long mSize = 0;
+    private volatile long mMaxSize;
+
+    private BufferedWriter mJournalWriter = null;
+    private int mRecordsCount = 0;
+    private int mUnflushedReadRecordsCount = 0;
+    private int mEvictionsCount = 0;
+
+    /**
+     * Constructor
+     * @param directory the indexed folder.
+     * @param maxSize the quota in bytes.
+     */
+    MXMediaDiskCacheIndex(File directory, long maxSize) {
+        mDirectory = directory;
+        mDirectoryPath = directory.getAbsolutePath() + File.separator;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Provides the index of a folder, creates it if it does not exist.
+     * The index is loaded in background.
+     * @param directory the indexed folder.
+     * @param defaultMaxSize the quota in bytes used when the index is created.
+     * @return the index.
+     */
+    static MXMediaDiskCacheIndex getIndex(File directory, long defaultMaxSize) {
+        MXMediaDiskCacheIndex index = null;
+
+        synchronized (mIndexes) {
+            for (MXMediaDiskCacheIndex anIndex : mIndexes) {
+                if (anIndex.mDirectory.equals(directory)) {
+                    return anIndex;
+                }
+            }
+
+            index = new MXMediaDiskCacheIndex(directory, defaultMaxSize);
+            mIndexes.add(index);
+        }
+
+        final MXMediaDiskCacheIndex fIndex = index;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (fIndex) {
+                    fIndex.load();
+                }
+            }
+        });
+
+        return index;
+    }
+
+    /**
+     * Provides the registered index of a folder.
+     * @param directory the folder.
+     * @return the index, null if it does not exist.
+     */
+    static MXMediaDiskCacheIndex findIndex(File directory) {
+        synchronized (mIndexes) {
+            for (MXMediaDiskCacheIndex index : mIndexes) {
+                if (index.mDirectory.equals(directory)) {
+                    return index;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Provides the registered index which contains a file.
+     * @param file the file.
+     * @return the index, null if the file is not in an indexed folder.
+     */
+    private static MXMediaDiskCacheIndex indexForFile(File file) {
+        if (null != file) {
+            String path = file.getAbsolutePath();
+
+            synchronized (mIndexes) {
+                for (MXMediaDiskCacheIndex index : mIndexes) {
+                    if (path.startsWith(index.mDirectoryPath)) {
+                        return index;
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * A file has been written in an indexed folder.
+     * @param file the file.
+     * @param isEvictable true if the file can be evicted i.e. it can be downloaded again.
+     */
+    static void onFileAdded(File file, boolean isEvictable) {
+        MXMediaDiskCacheIndex index = indexForFile(file);
+
+        if (null != index) {
+            index.add(file, isEvictable);
+        }
+    }
+
+    /**
+     * A file of an indexed folder has been read.
+     * @param file the file.
+     */
+    static void onFileRead(File file) {
+        MXMediaDiskCacheIndex index = indexForFile(file);
+
+        if (null != index) {
+            index.touch(file);
+        }
+    }
+
+    /**
+     * A file of an indexed folder has been deleted or moved.
+     * @param file the file.
+     */
+    static void onFileRemoved(File file) {
+        MXMediaDiskCacheIndex index = indexForFile(file);
+
+        if (null != index) {
+            index.remove(file);
+        }
+    }
+
+    /**
+     * @param file the file.
+     * @return the index key of a file.
+     */
+    private String keyForFile(File file) {
+        String path = file.getAbsolutePath();
+
+        if (!path.startsWith(mDirectoryPath)) {
+            return null;
+        }
+
+        return path.substring(mDirectoryPath.length()).replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Tells if a file must be indexed.
+     * @param name the file name.
+     * @return true if the file is neither the journal nor a download temporary file.
+     */
+    private static boolean isIndexable(String name) {
+        return !name.startsWith(JOURNAL_FILE_NAME) && !name.endsWith(".tmp");
+    }
+
+    /**
+     * Add or update a file.
+     * The least recently used files are evicted in background if the quota is exceeded.
+     * @param file the file.
+     * @param isEvictable true if the file can be evicted.
+     */
+    void add(final File file, final boolean isEvictable) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                addFile(file, isEvictable);
+            }
+        });
+    }
+
+    /**
+     * Update the last access time of a file in background.
+     * @param file the file.
+     */
+    void touch(final File file) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                touchFile(file);
+            }
+        });
+    }
+
+    /**
+     * Remove a file from the index in background. The file is not deleted.
+     * @param file the file.
+     */
+    void remove(final File file) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                removeFile(file);
+            }
+        });
+    }
+
+    /**
+     * Delete the folder content and reset the index.
+     * The method returns when it is done.
+     */
+    void clear() {
+        runAndWait(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                clearFiles();
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * Update the quota. The files are evicted in background.
+     * @param maxSize the quota in bytes.
+     */
+    void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (MXMediaDiskCacheIndex.this) {
+                    load();
+                    trimToSize(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the quota in bytes.
+     */
+    long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Provides the indexed files size in bytes.
+     * The method waits until the index is loaded and the pending updates are applied.
+     * @return the size in bytes.
+     */
+    long getSize() {
+        return runAndWait(new Callable<Long>() {
+            @Override
+            public Long call() throws Exception {
+                synchronized (MXMediaDiskCacheIndex.this) {
+                    load();
+                    return mSize;
+                }
+            }
+        }, 0L);
+    }
+
+    /**
+     * Provides the indexed files count.
+     * The method waits until the index is loaded and the pending updates are applied.
+     * @return the files count.
+     */
+    int getFilesCount() {
+        return runAndWait(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                synchronized (MXMediaDiskCacheIndex.this) {
+                    load();
+                    return mEntries.size();
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * Provides the evicted files count since the application launch.
+     * The method waits until the pending updates are applied.
+     * @return the evicted files count.
+     */
+    int getEvictionsCount() {
+        return runAndWait(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                synchronized (MXMediaDiskCacheIndex.this) {
+                    return mEvictionsCount;
+                }
+            }
+        }, 0);
+    }
+
+    /**
+     * Run a task in the index thread and wait for its result.
+     * @param callable the task.
+     * @param defaultValue the value to return if the task fails.
+     * @return the task result.
+     */
+    private static <T> T runAndWait(Callable<T> callable, T defaultValue) {
+        try {
+            return mExecutor.submit(callable).get();
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "runAndWait : interrupted");
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "runAndWait : failed " + e.getMessage());
+        }
+
+        return defaultValue;
+    }
+
+    /**
+     * Add or update a file.
+     * The least recently used files are evicted if the quota is exceeded.
+     * @param file the file.
+     * @param isEvictable true if the file can be evicted.
+     */
+    private synchronized void addFile(File file, boolean isEvictable) {
+        String key = keyForFile(file);
+
+        if ((null == key) || !isIndexable(file.getName())) {
+            return;
+        }
+
+        load();
+
+        Entry entry = mEntries.remove(key);
+
+        if (null != entry) {
+            mSize -= entry.mSize;
+        }
+
+        entry = new Entry(file.length(), System.currentTimeMillis(), isEvictable);
+        mEntries.put(key, entry);
+        mSize += entry.mSize;
+
+        writeRecord(RECORD_ADD + " " + entry.mSize + " " + entry.mLastAccess + " " + (entry.mIsEvictable ? 1 : 0) + " " + key, true);
+
+        trimToSize(key);
+    }
+
+    /**
+     * Update the last access time of a file.
+     * @param file the file.
+     */
+    private synchronized void touchFile(File file) {
+        String key = keyForFile(file);
+
+        if (null == key) {
+            return;
+        }
+
+        load();
+
+        Entry entry = mEntries.get(key);
+
+        if (null != entry) {
+            entry.mLastAccess = System.currentTimeMillis();
+            writeRecord(RECORD_READ + " " + entry.mLastAccess + " " + key, false);
+        } else if (file.exists() && isIndexable(file.getName())) {
+            // written by another way
+            addFile(file, file.getName().startsWith(MXMediaWorkerTask.DOWNLOADED_FILE_PREFIX));
+        }
+    }
+
+    /**
+     * Remove a file from the index. The file is not deleted.
+     * @param file the file.
+     */
+    private synchronized void removeFile(File file) {
+        String key = keyForFile(file);
+
+        if (null == key) {
+            return;
+        }
+
+        load();
+
+        Entry entry = mEntries.remove(key);
+
+        if (null != entry) {
+            mSize -= entry.mSize;
+            writeRecord(RECORD_DELETE + " " + key, true);
+        }
+    }
+
+    /**
+     * Delete the folder content and reset the index.
+     */
+    private synchronized void clearFiles() {
+        closeJournal();
+        deleteDirectoryContent(mDirectory);
+
+        mEntries.clear();
+        mSize = 0;
+        mRecordsCount = 0;
+        mIsLoaded = true;
+
+        rewriteJournal();
+    }
+
+    /**
+     * Evict the least recently used files until the cache size fits the quota.
+     * @param keptKey the key of a file which must not be evicted (e.g. the added one), null if none.
+     */
+    private void trimToSize(String keptKey) {
+        if (mSize <= mMaxSize) {
+            return;
+        }
+
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+
+        while ((mSize > mMaxSize) && iterator.hasNext()) {
+            Map.Entry<String, Entry> mapEntry = iterator.next();
+            String key = mapEntry.getKey();
+            Entry entry = mapEntry.getValue();
+
+            if (entry.mIsEvictable && !key.equals(keptKey)) {
+                File file = new File(mDirectory, key);
+
+                if (!file.delete() && file.exists()) {
+                    Log.e(LOG_TAG, "trimToSize : cannot delete " + key);
+                    continue;
+                }
+
+                iterator.remove();
+                mSize -= entry.mSize;
+                mEvictionsCount++;
+
+                writeRecord(RECORD_DELETE + " " + key, false);
+            }
+        }
+
+        flushJournal();
+
+        Log.d(LOG_TAG, "trimToSize : " + mDirectory.getName() + " " + mSize + "/" + mMaxSize + " bytes, " + mEntries.size() + " files");
+    }
+
+    /**
+     * Load the index from the journal, rebuild it if the journal cannot be read.
+     */
+    private void load() {
+        if (mIsLoaded) {
+            return;
+        }
+
+        mIsLoaded = true;
+        long startTime = System.currentTimeMillis();
+
+        if (!readJournal()) {
+            mEntries.clear();
+            mSize = 0;
+            scanDirectory();
+            rewriteJournal();
+        } else if ((mRecordsCount > MIN_RECORDS_BEFORE_COMPACTION) && (mRecordsCount > 2 * mEntries.size())) {
+            rewriteJournal();
+        }
+
+        Log.d(LOG_TAG, "load : " + mDirectory.getName() + " " + mEntries.size() + " files " + mSize + " bytes in " + (System.currentTimeMillis() - startTime) + " ms");
+
+        trimToSize(null);
+    }
+
+    /**
+     * Read the journal.
+     * @return false if the journal does not exist or is corrupted.
+     */
+    private boolean readJournal() {
+        File journalFile = new File(mDirectory, JOURNAL_FILE_NAME);
+
+        if (!journalFile.exists()) {
+            return false;
+        }
+
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+
+            if (!JOURNAL_HEADER.equals(reader.readLine())) {
+                Log.e(LOG_TAG, "readJournal : invalid header in " + journalFile);
+                return false;
+            }
+
+            String line;
+            mRecordsCount = 0;
+
+            while (null != (line = reader.readLine())) {
+                readRecord(line);
+                mRecordsCount++;
+            }
+
+            return true;
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "readJournal : " + journalFile + " is corrupted " + e.getMessage());
+        } finally {
+            if (null != reader) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "readJournal : close failed " + e.getMessage());
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Apply a journal record.
+     * @param line the record.
+     */
+    private void readRecord(String line) {
+        String[] fields;
+        Entry entry;
+
+        if (line.startsWith(RECORD_ADD + " ")) {
+            fields = line.split(" ", 5);
+            entry = mEntries.remove(fields[4]);
+
+            if (null != entry) {
+                mSize -= entry.mSize;
+            }
+
+            entry = new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), "1".equals(fields[3]));
+            mEntries.put(fields[4], entry);
+            mSize += entry.mSize;
+        } else if (line.startsWith(RECORD_READ + " ")) {
+            fields = line.split(" ", 3);
+            entry = mEntries.get(fields[2]);
+
+            if (null != entry) {
+                entry.mLastAccess = Long.parseLong(fields[1]);
+            }
+        } else if (line.startsWith(RECORD_DELETE + " ")) {
+            entry = mEntries.remove(line.substring(2));
+
+            if (null != entry) {
+                mSize -= entry.mSize;
+            }
+        } else {
+            throw new IllegalArgumentException("unexpected record " + line);
+        }
+    }
+
+    /**
+     * Rebuild the index from the folder content.
+     * The files are sorted by modification time to approximate their access order.
+     */
+    private void scanDirectory() {
+        ArrayList<File> files = new ArrayList<File>();
+        listFiles(mDirectory, files);
+
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                long time1 = file1.lastModified();
+                long time2 = file2.lastModified();
+                return (time1 < time2) ? -1 : ((time1 == time2) ? 0 : 1);
+            }
+        });
+
+        for (File file : files) {
+            Entry entry = new Entry(file.length(), file.lastModified(), file.getName().startsWith(MXMediaWorkerTask.DOWNLOADED_FILE_PREFIX));
+            mEntries.put(keyForFile(file), entry);
+            mSize += entry.mSize;
+        }
+
+        Log.d(LOG_TAG, "scanDirectory : " + mDirectory + " " + files.size() + " files");
+    }
+
+    /**
+     * Recursive method to list the indexable files of a folder.
+     * The orphan download temporary files are deleted.
+     * @param directory the folder.
+     * @param files the files list to fill.
+     */
+    private static void listFiles(File directory, ArrayList<File> files) {
+        File[] children = directory.listFiles();
+
+        if (null != children) {
+            for (File file : children) {
+                if (file.isDirectory()) {
+                    listFiles(file, files);
+                } else if (isIndexable(file.getName())) {
+                    files.add(file);
+                } else if (file.getName().endsWith(".tmp") && (file.lastModified() < (System.currentTimeMillis() - ORPHAN_TMP_FILE_DELAY_MS))) {
+                    Log.d(LOG_TAG, "listFiles : delete the orphan file " + file.getName());
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Recursive method to delete a folder content.
+     * @param directory the folder.
+     */
+    private static void deleteDirectoryContent(File directory) {
+        File[] children = directory.listFiles();
+
+        if (null != children) {
+            for (File file : children) {
+                if (file.isDirectory()) {
+                    deleteDirectoryContent(file);
+                }
+
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Write the current entries in a new journal, which replaces the former one.
+     */
+    private void rewriteJournal() {
+        closeJournal();
+
+        if (!mDirectory.exists()) {
+            mDirectory.mkdirs();
+        }
+
+        File tmpFile = new File(mDirectory, JOURNAL_TMP_FILE_NAME);
+        BufferedWriter writer = null;
+
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+            writer.write(JOURNAL_HEADER);
+            writer.newLine();
+
+            for (Map.Entry<String, Entry> mapEntry : mEntries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                writer.write(RECORD_ADD + " " + entry.mSize + " " + entry.mLastAccess + " " + (entry.mIsEvictable ? 1 : 0) + " " + mapEntry.getKey());
+                writer.newLine();
+            }
+
+            writer.close();
+            writer = null;
+
+            if (!tmpFile.renameTo(new File(mDirectory, JOURNAL_FILE_NAME))) {
+                Log.e(LOG_TAG, "rewriteJournal : cannot rename " + tmpFile);
+            }
+
+            mRecordsCount = mEntries.size();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "rewriteJournal : failed " + e.getMessage());
+        } finally {
+            if (null != writer) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "rewriteJournal : close failed " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Append a record to the journal.
+     * @param record the record.
+     * @param flush true to flush the journal.
+     */
+    private void writeRecord(String record, boolean flush) {
+        try {
+            if (null == mJournalWriter) {
+                if (!mDirectory.exists()) {
+                    mDirectory.mkdirs();
+                }
+
+                File journalFile = new File(mDirectory, JOURNAL_FILE_NAME);
+
+                // the folder has been deleted
+                if (!journalFile.exists()) {
+                    rewriteJournal();
+                }
+
+                mJournalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(journalFile, true), "UTF-8"));
+            }
+
+            mJournalWriter.write(record);
+            mJournalWriter.newLine();
+            mRecordsCount++;
+
+            if (flush || (++mUnflushedReadRecordsCount >= MAX_UNFLUSHED_READ_RECORDS)) {
+                flushJournal();
+            }
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "writeRecord : failed " + e.getMessage());
+            closeJournal();
+        }
+
+        if ((mRecordsCount > MIN_RECORDS_BEFORE_COMPACTION) && (mRecordsCount > 2 * mEntries.size())) {
+            rewriteJournal();
+        }
+    }
+
+    /**
+     * Flush the pending records.
+     */
+    private void flushJournal() {
+        if (null != mJournalWriter) {
+            try {
+                mJournalWriter.flush();
+                mUnflushedReadRecordsCount = 0;
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "flushJournal : failed " + e.getMessage());
+                closeJournal();
+            }
+        }
+    }
+
+    /**
+     * Close the journal writer.
+     */
+    private void closeJournal() {
+        if (null != mJournalWriter) {
+            try {
+                mJournalWriter.close();
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "closeJournal : failed " + e.getMessage());
+            }
+
+            mJournalWriter = null;
+            mUnflushedReadRecordsCount = 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mDirectory.getName() + " " + mSize + "/" + mMaxSize + " bytes " + mEntries.size() + " files evictions " + mEvictionsCount;
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.db;
+
+import android.util.Log;
+import android.widget.ImageView;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Schedule the medias downloads.
+ * <ul>
+ * <li>The avatars and the other medias are downloaded in separate lanes,
+ * so the avatars are not stuck behind the large medias. Each lane has its own running downloads slots.</li>
+ * <li>In a lane, the tasks are sorted by priority. Then the visible ones i.e. with an ImageView which still
+ * displays their media are started first, the most recently requested first (the user is scrolling).
+ * The other ones are started in their request order.</li>
+ * <li>The pending tasks whose ImageViews now display other medias (i.e. recycled) are cancelled.</li>
+ * <li>The lanes are bounded : when a lane is full, its lowest priority image download is dropped.
+ * The downloads which are not bound to an ImageView (e.g. MXMediasCache.downloadMedia) are never dropped
+ * because their callers wait for their completion.</li>
+ * </ul>
+ * The methods must be called from the UI thread (AsyncTask.executeOnExecutor).
+ */
+class MXMediaDownloadQueue {
+    private static final String LOG_TAG = "MXMediaDownloadQueue";
+
+    // the lanes
+    static final int LANE_AVATARS = 0;
+    static final int LANE_MEDIAS = 1;
+
+    // the running downloads count by lane.
+    // the downloads are done with the shared http client so a few ones are enough to use the bandwidth
+    private static final int[] MAX_RUNNING_DOWNLOADS = {2, 3};
+    static final int MAX_PENDING_DOWNLOADS = 100;
+
+    // the thumbnails are small and they are usually displayed in the messages list
+    static final int PRIORITY_MEDIA = 0;
+    static final int PRIORITY_THUMBNAIL = 1;
+
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(MAX_RUNNING_DOWNLOADS[LANE_AVATARS] + MAX_RUNNING_DOWNLOADS[LANE_MEDIAS], new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "MXMediaDownload");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    // the pending tasks by lane
+    private final ArrayList<ArrayList<MXMediaWorkerTask>> mPendingTasks = new ArrayList<ArrayList<MXMediaWorkerTask>>();
+    private final ArrayList<MXMediaWorkerTask> mRunningTasks = new ArrayList<MXMediaWorkerTask>();
+
+    // the requests sequence number
+    private long mRequestsCount = 0;
+
+    MXMediaDownloadQueue() {
+        mPendingTasks.add(new ArrayList<MXMediaWorkerTask>());
+        mPendingTasks.add(new ArrayList<MXMediaWorkerTask>());
+    }
+
+    /**
+     * Add a download task.
+     * @param task the task.
+     */
+    public synchronized void add(MXMediaWorkerTask task) {
+        ArrayList<MXMediaWorkerTask> pendingTasks = mPendingTasks.get(task.getLane());
+
+        task.setRequestSequence(++mRequestsCount);
+        pendingTasks.add(task);
+
+        if (pendingTasks.size() > MAX_PENDING_DOWNLOADS) {
+            removeDetachedTasks(pendingTasks);
+        }
+
+        if (pendingTasks.size() > MAX_PENDING_DOWNLOADS) {
+            MXMediaWorkerTask droppedTask = null;
+
+            // only the image downloads can be dropped, they are requested again when their ImageViews are refreshed
+            for (MXMediaWorkerTask pendingTask : pendingTasks) {
+                if (pendingTask.isRequestedByImageViews() && ((null == droppedTask) || (compare(pendingTask, droppedTask) > 0))) {
+                    droppedTask = pendingTask;
+                }
+            }
+
+            if (null != droppedTask) {
+                pendingTasks.remove(droppedTask);
+                Log.d(LOG_TAG, "add : the queue is full, drop " + droppedTask.getUrl());
+                droppedTask.onDropped();
+            }
+        }
+
+        launchTasks();
+    }
+
+    /**
+     * A pending task has been requested again (e.g. by another ImageView).
+     * It becomes the most recent request.
+     * @param task the task.
+     */
+    public synchronized void onTaskRequested(MXMediaWorkerTask task) {
+        if (mPendingTasks.get(task.getLane()).contains(task)) {
+            task.setRequestSequence(++mRequestsCount);
+        }
+    }
+
+    /**
+     * An ImageView does not need its pending download anymore (e.g. its list row has been recycled).
+     * The pending tasks which have no more ImageView to refresh are cancelled.
+     * The running ones are completed to be cached.
+     * @param imageView the image view.
+     */
+    public synchronized void cancel(ImageView imageView) {
+        for (ArrayList<MXMediaWorkerTask> pendingTasks : mPendingTasks) {
+            for (MXMediaWorkerTask task : pendingTasks) {
+                task.removeImageView(imageView);
+            }
+
+            removeDetachedTasks(pendingTasks);
+        }
+    }
+
+    /**
+     * A task is done or cancelled.
+     * @param task the task.
+     */
+    public synchronized void onTaskDone(MXMediaWorkerTask task) {
+        mRunningTasks.remove(task);
+        launchTasks();
+    }
+
+    /**
+     * Compare two pending tasks.
+     * @param task1 the first task.
+     * @param task2 the second task.
+     * @return a negative value if task1 must be started before task2.
+     */
+    private static int compare(MXMediaWorkerTask task1, MXMediaWorkerTask task2) {
+        if (task1.getPriority() != task2.getPriority()) {
+            return (task1.getPriority() > task2.getPriority()) ? -1 : 1;
+        }
+
+        boolean isVisible1 = task1.isVisible();
+        boolean isVisible2 = task2.isVisible();
+
+        if (isVisible1 != isVisible2) {
+            return isVisible1 ? -1 : 1;
+        }
+
+        // the most recent visible requests first, the other ones in their request order
+        int order = (task1.getRequestSequence() < task2.getRequestSequence()) ? -1 : ((task1.getRequestSequence() == task2.getRequestSequence()) ? 0 : 1);
+
+        return isVisible1 ? -order : order;
+    }
+
+    /**
+     * Cancel the pending tasks which were requested by some ImageViews which now display other medias.
+     * @param pendingTasks the pending tasks of a lane.
+     */
+    private void removeDetachedTasks(ArrayList<MXMediaWorkerTask> pendingTasks) {
+        Iterator<MXMediaWorkerTask> iterator = pendingTasks.iterator();
+
+        while (iterator.hasNext()) {
+            MXMediaWorkerTask task = iterator.next();
+
+            if (task.isDetached()) {
+                Log.d(LOG_TAG, "removeDetachedTasks : cancel " + task.getUrl());
+                iterator.remove();
+                task.onDropped();
+            }
+        }
+    }
+
+    /**
+     * @param lane the lane.
+     * @return the running downloads count of a lane.
+     */
+    private int getRunningTasksCount(int lane) {
+        int count = 0;
+
+        for (MXMediaWorkerTask task : mRunningTasks) {
+            if (task.getLane() == lane) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Launch the pending tasks while there are some free slots.
+     */
+    private void launchTasks() {
+        for (int lane = 0; lane < mPendingTasks.size(); lane++) {
+            ArrayList<MXMediaWorkerTask> pendingTasks = mPendingTasks.get(lane);
+
+            removeDetachedTasks(pendingTasks);
+
+            while ((getRunningTasksCount(lane) < MAX_RUNNING_DOWNLOADS[lane]) && (pendingTasks.size() > 0)) {
+                MXMediaWorkerTask task = pendingTasks.get(0);
+
+                for (MXMediaWorkerTask pendingTask : pendingTasks) {
+                    if (compare(pendingTask, task) < 0) {
+                        task = pendingTask;
+                    }
+                }
+
+                pendingTasks.remove(task);
+
+                try {
+                    task.executeOnExecutor(mExecutor, (Integer[]) null);
+                    mRunningTasks.add(task);
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "launchTasks : cannot start " + task.getUrl() + " " + e.getMessage());
+                    task.onDropped();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the pending downloads count.
+     */
+    public synchronized int getPendingTasksCount() {
+        int count = 0;
+
+        for (ArrayList<MXMediaWorkerTask> pendingTasks : mPendingTasks) {
+            count += pendingTasks.size();
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the running downloads count.
+     */
+    public synchronized int getRunningTasksCount() {
+        return mRunningTasks.size();
+    }
+}
@@ -22,20 +22,24 @@ import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.AsyncTask;
-import android.support.v4.util.LruCache;
 import android.text.TextUtils;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 import android.widget.ImageView;
 
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.OkUrlFactory;
+
 import org.matrix.androidsdk.HomeserverConnectionConfig;
-import org.matrix.androidsdk.ssl.CertUtil;
+import org.matrix.androidsdk.RestClient;
 import org.matrix.androidsdk.util.ImageUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.WeakReference;
 import java.net.URL;
@@ -43,9 +47,9 @@ import java.net.URLConnection;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Set;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.concurrent.TimeUnit;
 
 class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
 
@@ -54,7 +58,14 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
     private static HashMap<String, MXMediaWorkerTask> mPendingDownloadByUrl = new HashMap<String, MXMediaWorkerTask>();
     private static ArrayList<String> mFileNotFoundUrlsList = new ArrayList<String>();
 
-    private static LruCache<String, Bitmap> sMemoryCache = null;
+    private static MXBitmapCache sBitmapsCache = null;
+    private static MXMediaDownloadQueue sDownloadQueue = null;
+
+    // add a timeout to avoid infinite loading display.
+    private static final int READ_TIMEOUT_MS = 10 * 1000;
+
+    // the downloaded medias file names prefix
+    static final String DOWNLOADED_FILE_PREFIX = "file_";
 
     private ArrayList<MXMediasCache.DownloadCallback> mCallbacks = new ArrayList<MXMediasCache.DownloadCallback>();
     private final ArrayList<WeakReference<ImageView>> mImageViewReferences;
@@ -63,32 +74,103 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
     private Context mApplicationContext;
     private File mDirectoryFile = null;
     private int mRotation = 0;
+    private int mWidth = -1;
+    private int mHeight = -1;
     private int mProgress = 0;
+    private int mPriority = MXMediaDownloadQueue.PRIORITY_MEDIA;
+    private int mLane = MXMediaDownloadQueue.LANE_MEDIAS;
+    private long mRequestSequence = 0;
+    // true when the download has been requested to refresh some image views
+    private boolean mIsRequestedByImageViews = false;
     private final HomeserverConnectionConfig mHsConfig;
 
     public static void clearBitmapsCache() {
-        // sMemoryCache can be null if no bitmap have been downloaded.
-        if (null != sMemoryCache) {
-            sMemoryCache.evictAll();
+        getBitmapsCache().clear();
+    }
+
+    /**
+     * @return the in-memory bitmaps cache.
+     */
+    public static synchronized MXBitmapCache getBitmapsCache() {
+        if (null == sBitmapsCache) {
+            sBitmapsCache = new MXBitmapCache();
+            Log.d(LOG_TAG, "getBitmapsCache : " + sBitmapsCache);
+        }
+
+        return sBitmapsCache;
+    }
+
+    /**
+     * @return the medias downloads queue.
+     */
+    static synchronized MXMediaDownloadQueue getDownloadQueue() {
+        if (null == sDownloadQueue) {
+            sDownloadQueue = new MXMediaDownloadQueue();
         }
+
+        return sDownloadQueue;
     }
 
     public String getUrl() {
         return mUrl;
     }
 
+    /**
+     * @return the download priority.
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Update the download priority.
+     * It must be set before adding the task to the downloads queue.
+     * @param priority the priority.
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * @return the downloads queue lane.
+     */
+    int getLane() {
+        return mLane;
+    }
+
+    /**
+     * Update the downloads queue lane.
+     * It must be set before adding the task to the downloads queue.
+     * @param lane the lane.
+     */
+    void setLane(int lane) {
+        mLane = lane;
+    }
+
+    /**
+     * @return the sequence number of the latest request.
+     */
+    long getRequestSequence() {
+        return mRequestSequence;
+    }
+
+    /**
+     * @param requestSequence the sequence number of the latest request.
+     */
+    void setRequestSequence(long requestSequence) {
+        mRequestSequence = requestSequence;
+    }
+
     /**
      * Check if there is a pending download for the url.
      * @param url The url to check the existence
      * @return the dedicated BitmapWorkerTask if it exists.
      */
     public static MXMediaWorkerTask mediaWorkerTaskForUrl(String url) {
-        if ((url != null) &&  mPendingDownloadByUrl.containsKey(url)) {
-            MXMediaWorkerTask task;
+        if (url != null) {
             synchronized(mPendingDownloadByUrl) {
-                task = mPendingDownloadByUrl.get(url);
+                return mPendingDownloadByUrl.get(url);
             }
-            return task;
         } else {
             return null;
         }
@@ -128,7 +210,7 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
      * @return the cache filename
      */
     public static String buildFileName(String Url, String mimeType) {
-        String name = "file_" + MXMediaWorkerTask.uniqueId(Url);
+        String name = DOWNLOADED_FILE_PREFIX + MXMediaWorkerTask.uniqueId(Url);
 
         if (null == mimeType) {
             mimeType = "image/jpeg";
@@ -159,32 +241,38 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
      * @return the cached bitmap or null it does not exist
      */
     public static Bitmap bitmapForURL(Context context, File baseFile, String url, int rotation, String mimeType) {
+        return bitmapForURL(context, baseFile, url, -1, -1, rotation, mimeType);
+    }
+
+    /**
+     * Search a cached bitmap from an url.
+     * The bitmap is decoded with the lowest resolution which fills width x height
+     * (the screen size when they are not provided).
+     * rotationAngle is set to Integer.MAX_VALUE when undefined : the EXIF metadata must be checked.
+     *
+     * @param baseFile the base file
+     * @param url the media url
+     * @param width the expected bitmap width, -1 if it is not defined.
+     * @param height the expected bitmap height, -1 if it is not defined.
+     * @param rotation the bitmap rotation
+     * @param mimeType the mime type
+     * @return the cached bitmap or null it does not exist
+     */
+    public static Bitmap bitmapForURL(Context context, File baseFile, String url, int width, int height, int rotation, String mimeType) {
         Bitmap bitmap = null;
 
         // sanity check
         if (null != url) {
 
-            if (null == sMemoryCache) {
-                int lruSize = Math.min(2 * 1024 * 1024, (int)Runtime.getRuntime().maxMemory() / 8);
-
-                Log.d(LOG_TAG, "bitmapForURL  lruSize : " + lruSize);
-
-                sMemoryCache = new LruCache<String, Bitmap>(lruSize){
-                    @Override
-                    protected int sizeOf(String key, Bitmap bitmap) {
-                        return bitmap.getRowBytes() * bitmap.getHeight(); // size in bytes
-                    }
-                };
-            }
+            MXBitmapCache bitmapsCache = getBitmapsCache();
+            String key = bitmapKey(url, width, height);
 
             // the image is downloading in background
             if (null != mediaWorkerTaskForUrl(url)) {
                 return null;
             }
 
-            synchronized (sMemoryCache) {
-                bitmap = sMemoryCache.get(url);
-            }
+            bitmap = bitmapsCache.get(key);
 
             if (null == bitmap) {
                 // if some medias are not found
@@ -229,58 +317,41 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
                         return null;
                     }
 
-                    FileInputStream fis = new FileInputStream (file);
+                    MXMediaDiskCacheIndex.onFileRead(file);
 
                     // read the metadata
                     if (Integer.MAX_VALUE == rotation) {
                         rotation = ImageUtils.getRotationAngleForBitmap(context,  Uri.fromFile(file));
                     }
 
-                    if (null != fis) {
-                        BitmapFactory.Options options = new BitmapFactory.Options();
-                        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                    // the requested size is defined after the rotation
+                    if ((90 == Math.abs(rotation) % 180) && (width > 0) && (height > 0)) {
+                        int swap = width;
+                        width = height;
+                        height = swap;
+                    }
 
-                        try {
-                            bitmap = BitmapFactory.decodeStream(fis, null, options);
-                        } catch (OutOfMemoryError error) {
-                            System.gc();
-                            Log.e(LOG_TAG, "bitmapForURL() : Out of memory 1 " + error);
-                        }
+                    bitmap = decodeFile(context, file, width, height, bitmapsCache);
 
-                        //  try again
-                        if (null == bitmap) {
+                    if (null != bitmap) {
+                        // the rotation is applied to the downsampled bitmap
+                        if (0 != rotation) {
                             try {
-                                bitmap = BitmapFactory.decodeStream(fis, null, options);
-                            } catch (OutOfMemoryError error) {
-                                Log.e(LOG_TAG, "bitmapForURL() Out of memory 2" + error);
+                                android.graphics.Matrix bitmapMatrix = new android.graphics.Matrix();
+                                bitmapMatrix.postRotate(rotation);
+
+                                Bitmap transformedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), bitmapMatrix, false);
+                                bitmap.recycle();
+                                bitmap =  transformedBitmap;
+                            } catch (OutOfMemoryError ex) {
+                                Log.e(LOG_TAG, "bitmapForURL() : cannot rotate the bitmap " + ex);
                             }
                         }
 
-                        if (null != bitmap) {
-                            synchronized (sMemoryCache) {
-                                if (0 != rotation) {
-                                    try {
-                                        android.graphics.Matrix bitmapMatrix = new android.graphics.Matrix();
-                                        bitmapMatrix.postRotate(rotation);
-
-                                        Bitmap transformedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), bitmapMatrix, false);
-                                        bitmap.recycle();
-                                        bitmap =  transformedBitmap;
-                                    } catch (OutOfMemoryError ex) {
-                                    }
-                                }
-
-                                // cache only small images
-                                // caching large images does not make sense
-                                // it would replace small ones.
-                                // let assume that the application must be faster when showing the chat history.
-                                if ((bitmap.getWidth() < 1000) && (bitmap.getHeight() < 1000)) {
-                                    sMemoryCache.put(url, bitmap);
-                                }
-                            }
-                        }
-
-                        fis.close();
+                        // the thumbnails and the large images are cached in two tiers
+                        // so the large images do not replace the small ones.
+                        // let assume that the application must be faster when showing the chat history.
+                        bitmapsCache.put(key, bitmap);
                     }
 
                 } catch (FileNotFoundException e) {
@@ -295,6 +366,121 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
         return bitmap;
     }
 
+    /**
+     * Provides the bitmaps cache key.
+     * @param url the media url.
+     * @param width the expected bitmap width.
+     * @param height the expected bitmap height.
+     * @return the key.
+     */
+    private static String bitmapKey(String url, int width, int height) {
+        if ((width > 0) && (height > 0)) {
+            return url + " " + width + "x" + height;
+        }
+
+        return url;
+    }
+
+    /**
+     * Compute the sample size to decode an image.
+     * The decoded bitmap is the smallest one whose sides are larger than the requested ones.
+     * @param imageWidth the image width.
+     * @param imageHeight the image height.
+     * @param width the requested width.
+     * @param height the requested height.
+     * @return the sample size (a power of 2).
+     */
+    static int computeSampleSize(int imageWidth, int imageHeight, int width, int height) {
+        int sampleSize = 1;
+
+        if ((width > 0) && (height > 0)) {
+            while (((imageWidth / (sampleSize * 2)) >= width) && ((imageHeight / (sampleSize * 2)) >= height)) {
+                sampleSize *= 2;
+            }
+        }
+
+        return sampleSize;
+    }
+
+    /**
+     * Decode an image file to fit the requested size.
+     * The image bounds are read first to choose the sample size and the bitmap config.
+     * When there is not enough memory, the image is decoded again with a lower resolution.
+     * @param context the context.
+     * @param file the image file.
+     * @param width the requested width, the screen width when it is not defined.
+     * @param height the requested height, the screen height when it is not defined.
+     * @param bitmapsCache the bitmaps cache which provides the reusable bitmaps.
+     * @return the bitmap, null if it cannot be decoded.
+     * @throws IOException if the file cannot be read.
+     */
+    private static Bitmap decodeFile(Context context, File file, int width, int height, MXBitmapCache bitmapsCache) throws IOException {
+        // the full images are never displayed larger than the screen
+        if ((width <= 0) || (height <= 0)) {
+            DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+            // the screen can be rotated
+            width = height = Math.max(metrics.widthPixels, metrics.heightPixels);
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+
+        FileInputStream fis = new FileInputStream(file);
+
+        try {
+            BitmapFactory.decodeStream(fis, null, options);
+        } finally {
+            close(fis);
+        }
+
+        if ((options.outWidth <= 0) || (options.outHeight <= 0)) {
+            Log.e(LOG_TAG, "decodeFile : cannot decode the bounds of " + file.getName());
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = computeSampleSize(options.outWidth, options.outHeight, width, height);
+
+        // the JPEG images are opaque so the large ones do not need an alpha channel.
+        // the thumbnails keep the best quality.
+        boolean isThumbnail = ((options.outWidth / options.inSampleSize) <= MXBitmapCache.THUMBNAIL_MAX_SIDE) && ((options.outHeight / options.inSampleSize) <= MXBitmapCache.THUMBNAIL_MAX_SIDE);
+        options.inPreferredConfig = ("image/jpeg".equals(options.outMimeType) && !isThumbnail) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+
+        bitmapsCache.addInBitmapOptions(options);
+
+        Bitmap bitmap = null;
+        boolean retry = true;
+
+        // try again with a lower resolution when there is not enough memory
+        for (int attempt = 0; retry && (attempt < 2); attempt++) {
+            // a decoding which returns null cannot succeed with another attempt
+            retry = false;
+            fis = new FileInputStream(file);
+
+            try {
+                bitmap = BitmapFactory.decodeStream(fis, null, options);
+            } catch (OutOfMemoryError error) {
+                Log.e(LOG_TAG, "decodeFile : out of memory with sample size " + options.inSampleSize + " " + error);
+                options.inSampleSize *= 2;
+                options.inBitmap = null;
+                retry = true;
+            } catch (IllegalArgumentException e) {
+                // the reused bitmap is not compatible
+                Log.e(LOG_TAG, "decodeFile : cannot reuse the bitmap " + e.getMessage());
+                options.inBitmap = null;
+                retry = true;
+            } finally {
+                close(fis);
+            }
+        }
+
+        if (null != bitmap) {
+            Log.d(LOG_TAG, "decodeFile : " + options.outWidth + "x" + options.outHeight + " decoded in " + bitmap.getWidth() + "x" + bitmap.getHeight() + " (sample size " + options.inSampleSize + ")");
+        }
+
+        return bitmap;
+    }
+
     private void commonInit(Context appContext,  String url, String mimeType) {
         mApplicationContext = appContext;
         mUrl = url;
@@ -330,9 +516,26 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
      * @param mimeType the mime type.
      */
     public MXMediaWorkerTask(Context appContext, HomeserverConnectionConfig hsConfig, File directoryFile, String url, int rotation, String mimeType) {
+        this(appContext, hsConfig, directoryFile, url, -1, -1, rotation, mimeType);
+    }
+
+    /**
+     * BitmapWorkerTask creator
+     * @param appContext the context
+     * @param hsConfig
+     * @param directoryFile the directry in which the media must be stored
+     * @param url the media url
+     * @param width the expected bitmap width, -1 if it is not defined.
+     * @param height the expected bitmap height, -1 if it is not defined.
+     * @param rotation the rotation
+     * @param mimeType the mime type.
+     */
+    public MXMediaWorkerTask(Context appContext, HomeserverConnectionConfig hsConfig, File directoryFile, String url, int width, int height, int rotation, String mimeType) {
         commonInit(appContext, url, mimeType);
         mImageViewReferences = new ArrayList<WeakReference<ImageView>>();
         mDirectoryFile = directoryFile;
+        mWidth = width;
+        mHeight = height;
         mRotation = rotation;
         mHsConfig = hsConfig;
     }
@@ -344,6 +547,12 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
     public MXMediaWorkerTask(MXMediaWorkerTask task) {
         mApplicationContext = task.mApplicationContext;
         mUrl = task.mUrl;
+        mPriority = task.mPriority;
+        mLane = task.mLane;
+        mIsRequestedByImageViews = task.mIsRequestedByImageViews;
+        mDirectoryFile = task.mDirectoryFile;
+        mWidth = task.mWidth;
+        mHeight = task.mHeight;
         mRotation = task.mRotation;
         synchronized(mPendingDownloadByUrl) {
             mPendingDownloadByUrl.put(mUrl, this);
@@ -359,6 +568,56 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
      */
     public void addImageView(ImageView imageView) {
         mImageViewReferences.add(new WeakReference<ImageView>(imageView));
+        mIsRequestedByImageViews = true;
+    }
+
+    /**
+     * Remove an imageView from the list to refresh.
+     * @param imageView the image view to remove.
+     */
+    void removeImageView(ImageView imageView) {
+        Iterator<WeakReference<ImageView>> iterator = mImageViewReferences.iterator();
+
+        while (iterator.hasNext()) {
+            ImageView view = iterator.next().get();
+
+            if ((null == view) || (view == imageView)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Tells if an image view still waits for this media.
+     * The list rows are recycled so the image views which now display other medias are ignored.
+     * @return true if the media is visible.
+     */
+    boolean isVisible() {
+        for (WeakReference<ImageView> weakRef : mImageViewReferences) {
+            ImageView imageView = weakRef.get();
+
+            if ((null != imageView) && TextUtils.equals(mUrl, (String) imageView.getTag())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return true if the download has been requested to refresh some image views.
+     */
+    boolean isRequestedByImageViews() {
+        return mIsRequestedByImageViews;
+    }
+
+    /**
+     * Tells if the download is useless : it has been requested to refresh some image views
+     * which now display other medias.
+     * @return true if the download is not anymore expected.
+     */
+    boolean isDetached() {
+        return mIsRequestedByImageViews && !isVisible();
     }
 
     /**
@@ -397,21 +656,19 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
             long filelen = -1;
 
             try {
-                URLConnection connection = url.openConnection();
-
-                if (mHsConfig != null && connection instanceof HttpsURLConnection) {
-                    // Add SSL Socket factory.
-                    HttpsURLConnection sslConn = (HttpsURLConnection) connection;
-                    try {
-                        sslConn.setSSLSocketFactory(CertUtil.newPinnedSSLSocketFactory(mHsConfig));
-                        sslConn.setHostnameVerifier(CertUtil.newHostnameVerifier(mHsConfig));
-                    } catch (Exception e) {
-                        Log.e(LOG_TAG, "doInBackground SSL exception " + e.getLocalizedMessage());
-                    }
+                URLConnection connection;
+
+                if (null != mHsConfig) {
+                    // the session http client shares its connections pool and its pinned SSL socket factory.
+                    // the clone only overrides the read timeout.
+                    OkHttpClient okHttpClient = RestClient.getHttpClient(mHsConfig).clone();
+                    okHttpClient.setReadTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                    connection = new OkUrlFactory(okHttpClient).open(url);
+                } else {
+                    connection = url.openConnection();
+                    connection.setReadTimeout(READ_TIMEOUT_MS);
                 }
 
-                // add a timeout to avoid infinite loading display.
-                connection.setReadTimeout(10 * 1000);
                 filelen = connection.getContentLength();
                 stream = connection.getInputStream();
             } catch (FileNotFoundException e) {
@@ -488,8 +745,11 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
                         // Or you could throw here.
                         mApplicationContext.deleteFile(newFileName);
                     }
-                    originalFile.renameTo(newFile);
+                    if (originalFile.renameTo(newFile)) {
+                        MXMediaDiskCacheIndex.onFileAdded(newFile, true);
+                    }
                 } catch (Exception e) {
+                    Log.e(LOG_TAG, "MediaWorkerTask fail to rename the downloaded file " + e.getMessage());
                 }
             }
 
@@ -503,7 +763,7 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
             if (isBitmapDownload()) {
                 // get the bitmap from the filesytem
                 if (null == bitmap) {
-                    bitmap = MXMediaWorkerTask.bitmapForURL(mApplicationContext, mDirectoryFile, key, mRotation, mMimeType);
+                    bitmap = MXMediaWorkerTask.bitmapForURL(mApplicationContext, mDirectoryFile, key, mWidth, mHeight, mRotation, mMimeType);
                 }
             }
 
@@ -564,9 +824,28 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
         sendProgress(progress[0]);
     }
 
+    /**
+     * The task has been dropped from the downloads queue before being started.
+     * The callbacks are not notified : nothing has been downloaded.
+     * The media will be downloaded again by the next request.
+     */
+    void onDropped() {
+        synchronized(mPendingDownloadByUrl) {
+            if (mPendingDownloadByUrl.get(mUrl) == this) {
+                mPendingDownloadByUrl.remove(mUrl);
+            }
+        }
+    }
+
+    @Override
+    protected void onCancelled() {
+        getDownloadQueue().onTaskDone(this);
+    }
+
     // Once complete, see if ImageView is still around and set bitmap.
     @Override
     protected void onPostExecute(Bitmap bitmap) {
+        getDownloadQueue().onTaskDone(this);
         sendDownloadComplete();
 
         // update the imageView image
@@ -582,7 +861,7 @@ class MXMediaWorkerTask extends AsyncTask<Integer, Integer, Bitmap> {
         }
     }
 
-    private void close(InputStream stream) {
+    private static void close(InputStream stream) {
         try {
             stream.close();
         }
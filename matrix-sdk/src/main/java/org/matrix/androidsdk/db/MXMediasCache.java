@@ -21,7 +21,7 @@ import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.media.ExifInterface;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.text.TextUtils;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 import android.widget.ImageView;
@@ -33,8 +33,6 @@ import org.matrix.androidsdk.util.ContentUtils;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.concurrent.RejectedExecutionException;
 
 public class MXMediasCache {
 
@@ -71,6 +69,10 @@ public class MXMediasCache {
     static String MXMEDIA_STORE_IMAGES_FOLDER = "Images";
     static String MXMEDIA_STORE_OTHERS_FOLDER = "Others";
 
+    // the default disk quotas
+    private static final long DEFAULT_MEDIAS_CACHE_MAX_SIZE = 200L * 1024 * 1024;
+    private static final long DEFAULT_THUMBNAILS_CACHE_MAX_SIZE = 20L * 1024 * 1024;
+
     private ContentManager mContentmanager = null;
 
     private String mUserID = null;
@@ -79,6 +81,10 @@ public class MXMediasCache {
     private File mOthersFolderFile = null;
     private File mThumbnailsFolderFile = null;
 
+    // the disk indexes : the thumbnails one is shared by the sessions
+    private MXMediaDiskCacheIndex mMediasIndex = null;
+    private MXMediaDiskCacheIndex mThumbnailsIndex = null;
+
     /**
      * Clear the former medias cache.
      * The dirtree has been updated.
@@ -124,6 +130,9 @@ public class MXMediasCache {
         mOthersFolderFile = new File(mMediasFolderFile, MXMEDIA_STORE_OTHERS_FOLDER);
 
         mThumbnailsFolderFile = new File(mediaBaseFolderFile, MXMEDIA_STORE_MEMBER_THUMBNAILS_FOLDER);
+
+        mMediasIndex = MXMediaDiskCacheIndex.getIndex(mMediasFolderFile, DEFAULT_MEDIAS_CACHE_MAX_SIZE);
+        mThumbnailsIndex = MXMediaDiskCacheIndex.getIndex(mThumbnailsFolderFile, DEFAULT_THUMBNAILS_CACHE_MAX_SIZE);
     }
 
     /**
@@ -179,49 +188,76 @@ public class MXMediasCache {
     }
 
     /**
-     * Recursive method to compute a directory sie
-     * @param directory the directory.
-     * @return the directory size in bytes.
+     * Provides the medias cache size.
+     * It is maintained by the disk index so the folder is not walked.
+     *
+     * @return the medias cache size in bytes
      */
-    private long cacheSize(File directory) {
-        long size = 0;
+    public long cacheSize() {
+        return mMediasIndex.getSize();
+    }
 
-        File[] files = directory.listFiles();
+    /**
+     * Update the medias cache quota.
+     * The least recently used downloaded medias are deleted when the cache exceeds it.
+     * The local medias (e.g. the unsent ones) are never deleted.
+     *
+     * @param maxSize the quota in bytes.
+     */
+    public void setMaxCacheSize(long maxSize) {
+        mMediasIndex.setMaxSize(maxSize);
+    }
 
-        if (null != files) {
-            for(int i=0; i<files.length; i++) {
-                File file = files[i];
+    /**
+     * @return the medias cache quota in bytes.
+     */
+    public long getMaxCacheSize() {
+        return mMediasIndex.getMaxSize();
+    }
 
-                if(!file.isDirectory()) {
-                    size += file.length();
-                } else {
-                    size += cacheSize(file);
-                }
-            }
-        }
+    /**
+     * Update the avatars thumbnails cache quota.
+     * This cache is shared by the sessions.
+     *
+     * @param maxSize the quota in bytes.
+     */
+    public void setMaxThumbnailsCacheSize(long maxSize) {
+        mThumbnailsIndex.setMaxSize(maxSize);
+    }
 
-        return size;
+    /**
+     * @return the avatars thumbnails cache quota in bytes.
+     */
+    public long getMaxThumbnailsCacheSize() {
+        return mThumbnailsIndex.getMaxSize();
     }
 
     /**
-     * Compute the medias cache size
-     *
-     * @return the medias cache size in bytes
+     * @return the avatars thumbnails cache size in bytes.
      */
-    public long cacheSize() {
-        return cacheSize(getMediasFolderFile());
+    public long thumbnailsCacheSize() {
+        return mThumbnailsIndex.getSize();
     }
 
     /**
      * Clear the medias caches.
      */
     public void clearCache() {
-        ContentUtils.deleteDirectory(getMediasFolderFile());
+        mMediasIndex.clear();
 
         // clear the media cache
         MXMediaWorkerTask.clearBitmapsCache();
     }
 
+    /**
+     * Provides the in-memory bitmaps cache shared by the sessions.
+     * It can be used to update the tiers sizes or to read the hits / misses / evictions counters.
+     * @return the bitmaps cache.
+     */
+    public static MXBitmapCache getBitmapsCache() {
+        return MXMediaWorkerTask.getBitmapsCache();
+    }
+
     /**
      * The thumbnails cached is not cleared when logging out a session
      * because many sessions share the same thumbnails.
@@ -229,7 +265,14 @@ public class MXMediasCache {
      * i.e. logging out of all sessions.
      */
     public static void clearThumbnailsCache(Context applicationContext) {
-        ContentUtils.deleteDirectory(new File(new File(applicationContext.getApplicationContext().getFilesDir(), MXMediasCache.MXMEDIA_STORE_FOLDER), MXMEDIA_STORE_MEMBER_THUMBNAILS_FOLDER));
+        File thumbnailsFolderFile = new File(new File(applicationContext.getApplicationContext().getFilesDir(), MXMediasCache.MXMEDIA_STORE_FOLDER), MXMEDIA_STORE_MEMBER_THUMBNAILS_FOLDER);
+        MXMediaDiskCacheIndex index = MXMediaDiskCacheIndex.findIndex(thumbnailsFolderFile);
+
+        if (null != index) {
+            index.clear();
+        } else {
+            ContentUtils.deleteDirectory(thumbnailsFolderFile);
+        }
     }
 
     /**
@@ -265,6 +308,7 @@ public class MXMediasCache {
             File file = new File(getThumbnailsFolderFile(), filename);
 
             if (file.exists()) {
+                MXMediaDiskCacheIndex.onFileRead(file);
                 return file;
             }
 
@@ -303,6 +347,7 @@ public class MXMediasCache {
             File file = new File(getFolderFile(mimeType), filename);
 
             if (file.exists()) {
+                MXMediaDiskCacheIndex.onFileRead(file);
                 return file;
             }
 
@@ -340,6 +385,9 @@ public class MXMediasCache {
             fos.flush();
             fos.close();
 
+            // a local media is not evicted
+            mMediasIndex.add(file, false);
+
             cacheURL = Uri.fromFile(file).toString();
         } catch (Exception e) {
         }
@@ -391,6 +439,9 @@ public class MXMediasCache {
             fos.close();
             stream.close();
 
+            // a local media is not evicted
+            mMediasIndex.add(file, false);
+
             cacheURL = Uri.fromFile(file).toString();
         } catch (Exception e) {
 
@@ -437,7 +488,12 @@ public class MXMediasCache {
 
             Uri uri = Uri.parse(fileUrl);
             File srcFile = new File(uri.getPath());
-            srcFile.renameTo(destFile);
+
+            if (srcFile.renameTo(destFile)) {
+                // the media can now be downloaded again
+                MXMediaDiskCacheIndex.onFileRemoved(srcFile);
+                mMediasIndex.add(destFile, true);
+            }
 
         } catch (Exception e) {
         }
@@ -509,9 +565,6 @@ public class MXMediasCache {
         return loadBitmap(imageView.getContext(), hsConfig, imageView, url, width, height, rotationAngle, orientation, mimeType, getFolderFile(mimeType));
     }
 
-    // some tasks have been stacked because there are too many running ones.
-    ArrayList<MXMediaWorkerTask> mSuspendedTasks = new ArrayList<MXMediaWorkerTask>();
-
     /**
      * Returns the download ID from the media URL.
      *
@@ -549,66 +602,16 @@ public class MXMediasCache {
 
         // download it in background
         MXMediaWorkerTask task = new MXMediaWorkerTask(context, hsConfig, getFolderFile(mimeType), downloadableUrl, mimeType);
-
-        // avoid crash if there are too many running task
-        try {
-            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Integer[])null);
-        } catch (RejectedExecutionException e) {
-            // too many tasks have been launched
-            synchronized (mSuspendedTasks) {
-                task.cancel(true);
-                // create a new task from the existing one
-                task = new MXMediaWorkerTask(task);
-                mSuspendedTasks.add(task);
-                Log.e(LOG_TAG, "Suspend the task " + task.getUrl());
-            }
-
-        } catch (Exception e) {
-
-        }
+        MXMediaWorkerTask.getDownloadQueue().add(task);
 
         return downloadableUrl;
     }
 
-    /**
-     * Start any suspended task
-     */
-    private void launchSuspendedTask() {
-        synchronized (mSuspendedTasks)
-        {
-            // some task have been suspended because there were too many running ones ?
-            if (mSuspendedTasks.size() > 0) {
-
-                if (mSuspendedTasks.size() > 0) {
-                    MXMediaWorkerTask task = mSuspendedTasks.get(0);
-
-                    Log.d(LOG_TAG, "Restart the task " + task.getUrl());
-
-                    // avoid crash if there are too many running task
-                    try {
-                        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Integer[])null);
-                        mSuspendedTasks.remove(task);
-                    } catch (RejectedExecutionException e) {
-                        task.cancel(true);
-
-                        mSuspendedTasks.remove(task);
-                        // create a new task from the existing one
-                        task = new MXMediaWorkerTask(task);
-                        mSuspendedTasks.add(task);
-                        Log.d(LOG_TAG, "Suspend again the task " + task.getUrl() + " - " + task.getStatus());
-
-                    } catch (Exception e) {
-                        Log.d(LOG_TAG, "Try to Restart a task fails " + e.getMessage());
-                    }
-                }
-            }
-        }
-    }
-
     /**
      * Load a bitmap from an url.
      * The imageView image is updated when the bitmap is loaded or downloaded.
      * The width/height parameters are optional. If they are > 0, download a thumbnail.
+     * The bitmap is decoded with the lowest resolution which fills width x height (the screen size when they are not defined).
      *
      * The rotation angle is checked first.
      * If rotationAngle is set to Integer.MAX_VALUE, check the orientation is defined to a valid value.
@@ -638,8 +641,9 @@ public class MXMediasCache {
         }
 
         String downloadableUrl = downloadableUrl(url, width, height);
+        boolean isOrientationRequested = (rotationAngle == Integer.MAX_VALUE) && (orientation != ExifInterface.ORIENTATION_UNDEFINED) && (orientation != ExifInterface.ORIENTATION_NORMAL);
 
-        if ((rotationAngle == Integer.MAX_VALUE) && (orientation != ExifInterface.ORIENTATION_UNDEFINED) && (orientation != ExifInterface.ORIENTATION_NORMAL)) {
+        if (isOrientationRequested) {
             if (downloadableUrl.indexOf("?") != -1) {
                 downloadableUrl += "&apply_orientation=true";
             } else {
@@ -657,7 +661,17 @@ public class MXMediasCache {
         }
 
         // check if the bitmap is already cached
-        Bitmap bitmap = MXMediaWorkerTask.bitmapForURL(context.getApplicationContext(), folderFile, downloadableUrl, rotationAngle, mimeType);
+        Bitmap bitmap = MXMediaWorkerTask.bitmapForURL(context.getApplicationContext(), folderFile, downloadableUrl, width, height, rotationAngle, mimeType);
+
+        // the thumbnail is not downloaded when the full resolution media has already been downloaded :
+        // it is decoded to the thumbnail size.
+        if ((null == bitmap) && (width > 0) && (height > 0) && !isOrientationRequested) {
+            String mediaUrl = downloadableUrl(url, -1, -1);
+
+            if (!TextUtils.equals(mediaUrl, downloadableUrl) && (null == MXMediaWorkerTask.mediaWorkerTaskForUrl(mediaUrl)) && (null != mediaCacheFile(url, mimeType))) {
+                bitmap = MXMediaWorkerTask.bitmapForURL(context.getApplicationContext(), getFolderFile(mimeType), mediaUrl, width, height, rotationAngle, mimeType);
+            }
+        }
 
         if (null != bitmap) {
             if (null != imageView) {
@@ -672,53 +686,43 @@ public class MXMediasCache {
             if (null != currentTask) {
                 if (null != imageView) {
                     currentTask.addImageView(imageView);
+                    MXMediaWorkerTask.getDownloadQueue().onTaskRequested(currentTask);
                 }
             } else {
                 // download it in background
-                MXMediaWorkerTask task = new MXMediaWorkerTask(context, hsConfig, folderFile, downloadableUrl, rotationAngle, mimeType);
+                MXMediaWorkerTask task = new MXMediaWorkerTask(context, hsConfig, folderFile, downloadableUrl, width, height, rotationAngle, mimeType);
+
+                // the avatars are the only medias stored in the thumbnails folder
+                if (mThumbnailsFolderFile.equals(folderFile)) {
+                    task.setLane(MXMediaDownloadQueue.LANE_AVATARS);
+                }
 
                 if (null != imageView) {
                     task.addImageView(imageView);
                 }
 
-                // check at the end of the download, if a suspended task can be launched again.
-                task.addCallback(new DownloadCallback() {
-                    @Override
-                    public void onDownloadStart(String downloadId) {
-                    }
-
-                    @Override
-                    public void onDownloadProgress(String downloadId, int percentageProgress) {
-                    }
-
-                    @Override
-                    public void onDownloadComplete(String downloadId) {
-                        MXMediasCache.this.launchSuspendedTask();
-                    }
-                });
-
-                // avoid crash if there are too many running task
-                try {
-                    task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, (Integer[])null);
-                } catch (RejectedExecutionException e) {
-                    // too many tasks have been launched
-                    synchronized (mSuspendedTasks) {
-                        task.cancel(true);
-                        // create a new task from the existing one
-                        task = new MXMediaWorkerTask(task);
-                        mSuspendedTasks.add(task);
-                        Log.e(LOG_TAG, "Suspend the task " + task.getUrl());
-                    }
-
-                } catch (Exception e) {
-                
+                if ((width > 0) && (height > 0)) {
+                    task.setPriority(MXMediaDownloadQueue.PRIORITY_THUMBNAIL);
                 }
+
+                MXMediaWorkerTask.getDownloadQueue().add(task);
             }
         }
 
         return downloadableUrl;
     }
 
+    /**
+     * Cancel the pending download of an image view (e.g. its list row has been recycled).
+     * The download is cancelled if it is not started and if there is no other image view to refresh.
+     * @param imageView the image view.
+     */
+    public void cancelBitmapLoad(ImageView imageView) {
+        if (null != imageView) {
+            MXMediaWorkerTask.getDownloadQueue().cancel(imageView);
+        }
+    }
+
     /**
      * Returns the download progress (percentage).
      * @param downloadId the downloadId provided by loadBitmap;
@@ -265,6 +265,8 @@ public class MatrixMessageListFragment extends Fragment implements MatrixMessage
             mAdapter.setTypingUsers(mRoom.getTypingUsers());
         }
         mMessageListView.setAdapter(mAdapter);
+        // cancel the pending medias downloads of the recycled rows
+        mMessageListView.setRecyclerListener(mAdapter);
 
         if (-1 != selectionIndex) {
             final int fselectionIndex = selectionIndex;
@@ -54,6 +54,14 @@ public interface IMXEventListener {
      */
     void onLiveEventsChunkProcessed();
 
+    /**
+     * The live events received since the previous chunk have been dispatched with onLiveEvent.
+     * It is called once per chunk, right before onLiveEventsChunkProcessed or onInitialSyncComplete,
+     * so the listeners can refresh their data once instead of for each event.
+     * @param events the live events in their reception order.
+     */
+    void onLiveEventsBatch(List<Event> events);
+
     /**
      * A back room event was received.
      * @param event the event
@@ -51,6 +51,11 @@ public class MXEventListener implements IMXEventListener {
 
     }
 
+    @Override
+    public void onLiveEventsBatch(List<Event> events) {
+
+    }
+
     @Override
     public void onBackEvent(Event event, RoomState roomState) {
 
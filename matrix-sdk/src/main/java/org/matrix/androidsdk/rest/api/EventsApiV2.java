@@ -15,14 +15,21 @@
  */
 package org.matrix.androidsdk.rest.api;
 
+import org.matrix.androidsdk.rest.model.SyncV2.FilterBody;
+import org.matrix.androidsdk.rest.model.SyncV2.FilterResponse;
 import org.matrix.androidsdk.rest.model.SyncV2.SyncResponse;
 
 import java.util.Map;
 
 import retrofit.Callback;
+import retrofit.client.Response;
+import retrofit.http.Body;
 import retrofit.http.GET;
+import retrofit.http.POST;
+import retrofit.http.Path;
 import retrofit.http.Query;
 import retrofit.http.QueryMap;
+import retrofit.http.Streaming;
 
 /**
  * The events API .
@@ -36,4 +43,23 @@ public interface EventsApiV2 {
      */
     @GET("/sync")
     void sync(@QueryMap Map<String, Object> params, Callback<SyncResponse> callback);
+
+    /**
+     * Synchronous sync request which does not read the response body.
+     * The body is parsed by the caller while it is downloaded.
+     * @param params the GET params.
+     * @return the raw response.
+     */
+    @GET("/sync")
+    @Streaming
+    Response syncStream(@QueryMap Map<String, Object> params);
+
+    /**
+     * Register a sync filter.
+     * @param userId the user id
+     * @param body the filter
+     * @param callback The asynchronous callback to call when finished
+     */
+    @POST("/user/{userId}/filter")
+    void createFilter(@Path("userId") String userId, @Body FilterBody body, Callback<FilterResponse> callback);
 }
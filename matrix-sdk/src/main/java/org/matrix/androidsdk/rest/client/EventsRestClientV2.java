@@ -15,17 +15,31 @@
  */
 package org.matrix.androidsdk.rest.client;
 
+import android.os.Handler;
+import android.os.Looper;
 import android.text.TextUtils;
+import android.util.Log;
 
 import org.matrix.androidsdk.HomeserverConnectionConfig;
 import org.matrix.androidsdk.RestClient;
 import org.matrix.androidsdk.rest.api.EventsApiV2;
 import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.callback.RestAdapterCallback;
+import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
+import org.matrix.androidsdk.rest.model.SyncV2.FilterBody;
+import org.matrix.androidsdk.rest.model.SyncV2.FilterResponse;
 import org.matrix.androidsdk.rest.model.SyncV2.SyncResponse;
+import org.matrix.androidsdk.sync.SyncResponseParser;
+import org.matrix.androidsdk.util.JsonUtils;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 
+import retrofit.RestAdapter;
+import retrofit.RetrofitError;
+import retrofit.client.Response;
+
 /**
  * Class used to make requests to the events API.
  */
@@ -38,7 +52,8 @@ public class EventsRestClientV2 extends RestClient<EventsApiV2> {
      * {@inheritDoc}
      */
     public EventsRestClientV2(HomeserverConnectionConfig hsConfig) {
-        super(hsConfig, EventsApiV2.class, RestClient.URI_API_PREFIX_V2_ALPHA, false);
+        // the sync responses are streamed so their bodies are not logged
+        super(hsConfig, EventsApiV2.class, RestClient.URI_API_PREFIX_V2_ALPHA, false, RestAdapter.LogLevel.HEADERS);
     }
 
     protected EventsRestClientV2(EventsApiV2 api) {
@@ -65,6 +80,130 @@ public class EventsRestClientV2 extends RestClient<EventsApiV2> {
      * @param callback The request callback
      */
     public void syncFromToken(final String token, final int serverTimeout, final int clientTimeout, final String setPresence, final String filterId, final ApiCallback<SyncResponse> callback) {
+        HashMap<String, Object> params = getSyncParams(token, serverTimeout, setPresence, filterId);
+
+        final String description = "syncFromToken";
+
+        // Disable retry because it interferes with clientTimeout
+        // Let the client manage retries on events streams
+        mApi.sync(params, new RestAdapterCallback<SyncResponse>(description, null, callback, new RestAdapterCallback.RequestRetryCallBack() {
+            @Override
+            public void onRetry() {
+                syncFromToken(token, serverTimeout, clientTimeout, setPresence, filterId, callback);
+            }
+        }));
+    }
+
+    /**
+     * Synchronise the client's state and receive new messages, the response is parsed while it is downloaded.
+     * The request is performed in the calling thread which must not be the UI thread.
+     * The rooms are provided to the parser listener from the calling thread as soon as they are decoded
+     * and the callback is called from the UI thread once the whole response has been parsed.
+     * The provided SyncResponse only contains the next batch token.
+     * If the connection is lost while reading the response, some rooms could have been provided to the parser listener.
+     *
+     * @param token the token to stream from (nil in case of initial sync).
+     * @param serverTimeout the maximum time in ms to wait for an event.
+     * @param clientTimeout the maximum time in ms the SDK must wait for the server response.
+     * @param setPresence  the optional parameter which controls whether the client is automatically marked as online.
+     * @param filterId the ID of a filter created using the filter API (optional).
+     * @param parserListener the parsed rooms listener.
+     * @param callback The request callback
+     */
+    public void syncFromToken(final String token, final int serverTimeout, final int clientTimeout, final String setPresence, final String filterId, final SyncResponseParser.Listener parserListener, final ApiCallback<SyncResponse> callback) {
+        HashMap<String, Object> params = getSyncParams(token, serverTimeout, setPresence, filterId);
+        final RestAdapterCallback<SyncResponse> restAdapterCallback = new RestAdapterCallback<SyncResponse>("syncFromToken", null, callback, null);
+        final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+        String url = null;
+        InputStream stream = null;
+
+        try {
+            final Response response = mApi.syncStream(params);
+            url = response.getUrl();
+            stream = response.getBody().in();
+
+            final SyncResponse syncResponse = new SyncResponse();
+
+            syncResponse.nextBatch = SyncResponseParser.parse(stream, (null != gson) ? gson : JsonUtils.getGson(false), parserListener);
+
+            uiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    restAdapterCallback.success(syncResponse, response);
+                }
+            });
+        } catch (final RetrofitError error) {
+            uiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    restAdapterCallback.failure(error);
+                }
+            });
+        } catch (Exception e) {
+            Log.e(LOG_TAG, "syncFromToken failed while parsing the response " + e.getMessage());
+
+            final RetrofitError error;
+
+            if (e instanceof IOException) {
+                // the connection has been lost
+                error = RetrofitError.networkError(url, (IOException) e);
+            } else {
+                // malformed response
+                error = RetrofitError.unexpectedError(url, e);
+            }
+
+            uiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    restAdapterCallback.failure(error);
+                }
+            });
+        } finally {
+            if (null != stream) {
+                try {
+                    stream.close();
+                } catch (Exception e) {
+                    Log.e(LOG_TAG, "syncFromToken : fail to close the stream " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Register a sync filter.
+     * The provided filter id can be used as the filterId parameter of the sync requests.
+     * @param userId the user id.
+     * @param filter the filter.
+     * @param callback the callback which provides the filter id.
+     */
+    public void createFilter(final String userId, final FilterBody filter, final ApiCallback<String> callback) {
+        final String description = "createFilter";
+
+        mApi.createFilter(userId, filter, new RestAdapterCallback<FilterResponse>(description, mUnsentEventsManager, new SimpleApiCallback<FilterResponse>(callback) {
+            @Override
+            public void onSuccess(FilterResponse filterResponse) {
+                if (null != callback) {
+                    callback.onSuccess(filterResponse.filterId);
+                }
+            }
+        }, new RestAdapterCallback.RequestRetryCallBack() {
+            @Override
+            public void onRetry() {
+                createFilter(userId, filter, callback);
+            }
+        }));
+    }
+
+    /**
+     * Build the sync request parameters.
+     * @param token the token to stream from (nil in case of initial sync).
+     * @param serverTimeout the maximum time in ms to wait for an event.
+     * @param setPresence  the optional set_presence parameter.
+     * @param filterId the ID of a filter created using the filter API (optional).
+     * @return the parameters.
+     */
+    private HashMap<String, Object> getSyncParams(String token, int serverTimeout, String setPresence, String filterId) {
         HashMap<String, Object> params = new HashMap<String, Object>();
         int timeout = EVENT_STREAM_TIMEOUT_SECONDS;
 
@@ -86,16 +225,6 @@ public class EventsRestClientV2 extends RestClient<EventsApiV2> {
 
         params.put("timeout", timeout);
 
-
-        final String description = "syncFromToken";
-
-        // Disable retry because it interferes with clientTimeout
-        // Let the client manage retries on events streams
-        mApi.sync(params, new RestAdapterCallback<SyncResponse>(description, null, callback, new RestAdapterCallback.RequestRetryCallBack() {
-            @Override
-            public void onRetry() {
-                syncFromToken(token, serverTimeout, clientTimeout, setPresence, filterId, callback);
-            }
-        }));
+        return params;
     }
 }
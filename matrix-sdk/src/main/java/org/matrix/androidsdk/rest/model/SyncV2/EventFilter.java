@@ -0,0 +1,48 @@
+/* 
+ * Copyright 2016 OpenMarket Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.model.SyncV2;
+
+import java.util.List;
+
+// EventFilter represents the events filtering of a sync v2 filter.
+public class EventFilter implements java.io.Serializable {
+    private static final long serialVersionUID = -1874523908461739052L;
+
+    /**
+     * The maximum number of events to return.
+     */
+    public Integer limit;
+
+    /**
+     * A list of event types to include. A '*' can be used as a wildcard.
+     */
+    public List<String> types;
+
+    /**
+     * A list of event types to exclude. A '*' can be used as a wildcard.
+     */
+    public List<String> notTypes;
+
+    /**
+     * A list of senders IDs to include.
+     */
+    public List<String> senders;
+
+    /**
+     * A list of senders IDs to exclude.
+     */
+    public List<String> notSenders;
+}
@@ -0,0 +1,37 @@
+/* 
+ * Copyright 2016 OpenMarket Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.model.SyncV2;
+
+// FilterBody represents a sync v2 filter.
+// It can be sent inline in the sync requests or registered to get a filter id.
+public class FilterBody implements java.io.Serializable {
+    private static final long serialVersionUID = -3512908614281623117L;
+
+    /**
+     * The presence updates to include.
+     */
+    public EventFilter presence;
+
+    /**
+     * The user account data to include.
+     */
+    public EventFilter accountData;
+
+    /**
+     * The rooms data to include.
+     */
+    public RoomFilter room;
+}
@@ -0,0 +1,58 @@
+/* 
+ * Copyright 2016 OpenMarket Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.rest.model.SyncV2;
+
+import java.util.List;
+
+// RoomFilter represents the rooms filtering of a sync v2 filter.
+public class RoomFilter implements java.io.Serializable {
+    private static final long serialVersionUID = 6092374450917342279L;
+
+    /**
+     * A list of room IDs to include.
+     */
+    public List<String> rooms;
+
+    /**
+     * A list of room IDs to exclude.
+     */
+    public List<String> notRooms;
+
+    /**
+     * Include the rooms that the user has left.
+     */
+    public Boolean includeLeave;
+
+    /**
+     * The events that aren't recorded in the room history (e.g. typing, receipts).
+     */
+    public EventFilter ephemeral;
+
+    /**
+     * The state events.
+     */
+    public EventFilter state;
+
+    /**
+     * The messages and state changes of the timeline.
+     */
+    public EventFilter timeline;
+
+    /**
+     * The per user account data.
+     */
+    public EventFilter accountData;
+}
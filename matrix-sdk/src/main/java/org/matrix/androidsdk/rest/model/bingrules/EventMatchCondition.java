@@ -21,10 +21,45 @@ import com.google.gson.JsonObject;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.util.JsonUtils;
 
+import java.util.regex.Pattern;
+
 public class EventMatchCondition extends Condition {
     public String key;
     public String pattern;
 
+    // the compiled key and pattern
+    // they are rebuilt when the public fields are updated.
+    // the conditions are checked from several threads (parallel rooms sync) so each cache
+    // is an immutable object which is replaced at once.
+    private transient volatile CompiledKey mCompiledKey = null;
+    private transient volatile CompiledPattern mCompiledPattern = null;
+
+    /**
+     * A key split into its dot-separated parts.
+     */
+    private static class CompiledKey {
+        final String mKey;
+        final String[] mParts;
+
+        CompiledKey(String key) {
+            mKey = key;
+            mParts = key.split("\\.");
+        }
+    }
+
+    /**
+     * A compiled glob pattern.
+     */
+    private static class CompiledPattern {
+        final String mGlob;
+        final Pattern mPattern;
+
+        CompiledPattern(String glob) {
+            mGlob = glob;
+            mPattern = Pattern.compile(globToRegex(glob), Pattern.DOTALL);
+        }
+    }
+
     public EventMatchCondition() {
         kind = Condition.KIND_EVENT_MATCH;
     }
@@ -35,23 +70,83 @@ public class EventMatchCondition extends Condition {
      * @return true if the event satisfies the condition
      */
     public boolean isSatisfied(Event event) {
-        JsonObject eventJson = JsonUtils.toJson(event);
+        if ((null == event) || (null == key) || (null == pattern)) {
+            return false;
+        }
+
         // Extract the value that we want to match
-        String fieldVal = extractField(eventJson, key);
+        String fieldVal = extractField(event);
         if (fieldVal == null) {
             return false;
         }
-        // Process the pattern
-        String patternRegex = globToRegex(pattern);
 
-        return fieldVal.matches(patternRegex);
+        return getPattern().matcher(fieldVal).matches();
+    }
+
+    /**
+     * @return the compiled glob pattern.
+     */
+    private Pattern getPattern() {
+        CompiledPattern compiledPattern = mCompiledPattern;
+
+        if ((null == compiledPattern) || !pattern.equals(compiledPattern.mGlob)) {
+            compiledPattern = new CompiledPattern(pattern);
+            mCompiledPattern = compiledPattern;
+        }
+
+        return compiledPattern.mPattern;
     }
 
-    private String extractField(JsonObject jsonObject, String fieldPath) {
-        String[] fieldParts = fieldPath.split("\\.");
+    /**
+     * @return the dot-separated key parts.
+     */
+    private String[] getKeyParts() {
+        CompiledKey compiledKey = mCompiledKey;
+
+        if ((null == compiledKey) || !key.equals(compiledKey.mKey)) {
+            compiledKey = new CompiledKey(key);
+            mCompiledKey = compiledKey;
+        }
+
+        return compiledKey.mParts;
+    }
+
+    /**
+     * Extract the key value from an event.
+     * The usual keys are read from the event fields to avoid converting the whole event to JSON.
+     * @param event the event
+     * @return the value, null if the field does not exist.
+     */
+    private String extractField(Event event) {
+        String[] fieldParts = getKeyParts();
+
+        if (1 == fieldParts.length) {
+            if ("type".equals(key)) {
+                return event.type;
+            } else if ("room_id".equals(key)) {
+                return event.roomId;
+            } else if ("user_id".equals(key)) {
+                return (null != event.userId) ? event.userId : event.sender;
+            } else if ("sender".equals(key)) {
+                return (null != event.sender) ? event.sender : event.userId;
+            } else if ("state_key".equals(key)) {
+                return event.stateKey;
+            }
+        } else if ("content".equals(fieldParts[0])) {
+            return extractField(event.getContentAsJsonObject(), fieldParts, 1);
+        }
+
+        return extractField(JsonUtils.toJson(event), fieldParts, 0);
+    }
+
+    private String extractField(JsonObject jsonObject, String[] fieldParts, int startIndex) {
+        if (null == jsonObject) {
+            return null;
+        }
+
         JsonElement jsonElement = null;
-        for (String field : fieldParts) {
-            jsonElement = jsonObject.get(field);
+        for (int index = startIndex; index < fieldParts.length; index++) {
+            jsonElement = jsonObject.get(fieldParts[index]);
             if (jsonElement == null) {
                 return null;
             }
@@ -59,16 +154,51 @@ public class EventMatchCondition extends Condition {
                 jsonObject = (JsonObject) jsonElement;
             }
         }
-        return (jsonElement == null) ? null : jsonElement.getAsString();
+
+        if ((jsonElement == null) || !jsonElement.isJsonPrimitive()) {
+            return null;
+        }
+
+        return jsonElement.getAsString();
     }
 
-    private String globToRegex(String glob) {
-        String res = glob.replace("*", ".*").replace("?", ".");
-        // If no special characters were found (detected here by no replacements having been made),
-        // add asterisks to both sides
-        if (res.equals(glob)) {
-            res = ".*" + res + ".*";
+    /**
+     * Convert a glob pattern to a regex.
+     * The non glob characters are quoted.
+     * @param glob the glob pattern
+     * @return the regex
+     */
+    private static String globToRegex(String glob) {
+        StringBuilder res = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        boolean hasGlobCharacter = false;
+
+        for (int index = 0; index < glob.length(); index++) {
+            char c = glob.charAt(index);
+
+            if ((c == '*') || (c == '?')) {
+                hasGlobCharacter = true;
+
+                if (literal.length() > 0) {
+                    res.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+
+                res.append((c == '*') ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+
+        if (literal.length() > 0) {
+            res.append(Pattern.quote(literal.toString()));
         }
-        return res;
+
+        // If no special characters were found, add asterisks to both sides
+        if (!hasGlobCharacter) {
+            return ".*" + res.toString() + ".*";
+        }
+
+        return res.toString();
     }
 }
@@ -66,6 +66,16 @@ public class DefaultEventsThreadListener implements EventsThreadListener {
         mData.onSyncV2Complete(syncResponse, isInitialSync);
     }
 
+    @Override
+    public SyncResponseParser.Listener getSyncV2ParserListener(Boolean isInitialSync) {
+        return mData.getSyncV2ParserListener(isInitialSync);
+    }
+
+    @Override
+    public void waitForPendingSyncV2Responses() {
+        mData.waitForPendingSyncV2Responses();
+    }
+
     /**
      * Called when getting the users presences.
      * @param presence the users presence
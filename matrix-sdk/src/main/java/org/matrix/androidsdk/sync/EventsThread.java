@@ -17,10 +17,12 @@ package org.matrix.androidsdk.sync;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.text.TextUtils;
 import android.util.Log;
 
 import org.matrix.androidsdk.listeners.IMXNetworkEventListener;
 import org.matrix.androidsdk.network.NetworkConnectivityReceiver;
+import org.matrix.androidsdk.rest.callback.ApiCallback;
 import org.matrix.androidsdk.rest.callback.ApiFailureCallback;
 import org.matrix.androidsdk.rest.callback.RestAdapterCallback;
 import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
@@ -45,9 +47,11 @@ public class EventsThread extends Thread {
 
     private static final int RETRY_WAIT_TIME_MS = 10000;
 
-    private static final int  SERVER_TIMEOUT_MS = 30000;
     private static final int CLIENT_TIMEOUT_MS = 120000;
 
+    // the inline filter used by the incremental syncs when no filter is defined
+    public static final String DEFAULT_FILTER = "{\"room\":{\"timeline\":{\"limit\":250}}}";
+
     private EventsRestClient mEventsRestClientV1 = null;
     private EventsRestClientV2 mEventsRestClientV2 = null;
 
@@ -62,6 +66,29 @@ public class EventsThread extends Thread {
     private boolean mIsGettingPresences = false;
     private int mEventRequestTimeout = EventsRestClient.EVENT_STREAM_TIMEOUT_MS;
 
+    // the sync filter : an inline JSON filter or a server-side filter id
+    private volatile String mFilterOrFilterId = DEFAULT_FILTER;
+    // true when the filter is also applied to the initial sync
+    private volatile boolean mIsInitialSyncFiltered = false;
+    // the inline JSON filter used when the server rejects the filter id
+    private volatile String mInlineFilter = DEFAULT_FILTER;
+    private volatile SyncFilterListener mSyncFilterListener = null;
+
+    /**
+     * Listener of the rejected filter ids.
+     */
+    public interface SyncFilterListener {
+        /**
+         * The server does not know the filter id anymore (e.g. after a server reset or migration).
+         * The inline filter is used until another filter id is provided.
+         * @param filterId the rejected filter id.
+         */
+        void onFilterIdRejected(String filterId);
+    }
+
+    // the sync timeouts and retry delays
+    private SyncPolicy mSyncPolicy = new SyncPolicy();
+
     // Custom Retrofit error callback that will convert Retrofit errors into our own error callback
     private RestAdapterCallback mEventsFailureCallback;
     private ApiFailureCallback mFailureCallback;
@@ -77,6 +104,8 @@ public class EventsThread extends Thread {
                 mbIsConnected = isConnected;
             }
 
+            mSyncPolicy.onConnectivityChange();
+
             // the thread has been suspended and there is an available network
             if (isConnected && !mKilling) {
                 onNetworkAvailable();
@@ -117,6 +146,74 @@ public class EventsThread extends Thread {
         mEventsFailureCallback = new RestAdapterCallback(new SimpleApiCallback(failureCallback));
     }
 
+    /**
+     * Set the sync filter.
+     * The registered filters should be used to avoid the server parsing them at each request.
+     * @param filterOrFilterId an inline JSON filter or a filter id.
+     * @param isInitialSyncFiltered true to apply the filter to the initial sync.
+     */
+    public void setFilterOrFilterId(String filterOrFilterId, boolean isInitialSyncFiltered) {
+        Log.d(LOG_TAG, "setFilterOrFilterId " + filterOrFilterId);
+        mFilterOrFilterId = filterOrFilterId;
+        mIsInitialSyncFiltered = isInitialSyncFiltered;
+    }
+
+    /**
+     * Set the inline JSON filter which replaces a filter id rejected by the server.
+     * @param inlineFilter the inline JSON filter.
+     * @param listener the listener to warn when a filter id is rejected.
+     */
+    public void setInlineFilter(String inlineFilter, SyncFilterListener listener) {
+        mInlineFilter = inlineFilter;
+        mSyncFilterListener = listener;
+    }
+
+    /**
+     * Check if a sync error is triggered by an unknown filter id.
+     * In this case, the inline filter is used for the next requests.
+     * @param error the sync error.
+     * @param filterOrFilterId the filter used by the failed request.
+     */
+    private void checkFilterError(MatrixError error, String filterOrFilterId) {
+        // the inline filters are JSON objects
+        if ((null == filterOrFilterId) || filterOrFilterId.startsWith("{")) {
+            return;
+        }
+
+        if (MatrixError.NOT_FOUND.equals(error.errcode) || MatrixError.UNKNOWN.equals(error.errcode)) {
+            Log.e(LOG_TAG, "the filter id " + filterOrFilterId + " has been rejected (" + error.getLocalizedMessage() + "), use the inline filter");
+
+            // the filter could have been updated in the meantime
+            if (TextUtils.equals(filterOrFilterId, mFilterOrFilterId)) {
+                mFilterOrFilterId = mInlineFilter;
+            }
+
+            SyncFilterListener listener = mSyncFilterListener;
+
+            if (null != listener) {
+                listener.onFilterIdRejected(filterOrFilterId);
+            }
+        }
+    }
+
+    /**
+     * Set the sync policy.
+     * It must be set before starting the thread.
+     * @param syncPolicy the sync policy.
+     */
+    public void setSyncPolicy(SyncPolicy syncPolicy) {
+        if (null != syncPolicy) {
+            mSyncPolicy = syncPolicy;
+        }
+    }
+
+    /**
+     * @return the sync policy.
+     */
+    public SyncPolicy getSyncPolicy() {
+        return mSyncPolicy;
+    }
+
     /**
      * Pause the thread. It will resume where it left off when unpause()d.
      */
@@ -144,6 +241,7 @@ public class EventsThread extends Thread {
                 Log.i(LOG_TAG, "Resume the thread");
                 // request the latest events asap
                 mEventRequestTimeout = 0;
+                mSyncPolicy.requestCatchup();
                 // cancel any catchup process.
                 mIsCatchingUp = false;
 
@@ -170,6 +268,7 @@ public class EventsThread extends Thread {
 
         // request the latest events asap
         mEventRequestTimeout = 0;
+        mSyncPolicy.requestCatchup();
         // cancel any catchup process.
         mIsCatchingUp = false;
     }
@@ -189,6 +288,7 @@ public class EventsThread extends Thread {
         // request the latest events once
         // without any delay.
         mEventRequestTimeout = 0;
+        mSyncPolicy.requestCatchup();
         mIsCatchingUp = true;
     }
 
@@ -230,8 +330,6 @@ public class EventsThread extends Thread {
             Log.d(LOG_TAG, "Requesting initial sync...");
         }
 
-        int serverTimeout = 0;
-
         mPaused = false;
 
         //
@@ -239,7 +337,7 @@ public class EventsThread extends Thread {
 
         if (mInitialSyncDone) {
             // get the latest events asap
-            serverTimeout = 0;
+            mSyncPolicy.requestCatchup();
             // dummy initial sync
             // to hide the splash screen
             mListener.onSyncV2Response(null, true);
@@ -248,12 +346,20 @@ public class EventsThread extends Thread {
             // Start with initial sync
             while (!mInitialSyncDone) {
                 final CountDownLatch latch = new CountDownLatch(1);
+                final SyncResponseParser.Listener parserListener = mListener.getSyncV2ParserListener(true);
+                final String initialSyncFilter = mIsInitialSyncFiltered ? mFilterOrFilterId : null;
 
-                mEventsRestClientV2.syncFromToken(null, 0, CLIENT_TIMEOUT_MS, null, null, new SimpleApiCallback<SyncResponse>(mFailureCallback) {
+                syncFromToken(null, 0, null, initialSyncFilter, parserListener, new SimpleApiCallback<SyncResponse>(mFailureCallback) {
                     @Override
                     public void onSuccess(SyncResponse syncResponse) {
                         Log.d(LOG_TAG, "Received initial sync response.");
-                        mListener.onSyncV2Response(syncResponse, true);
+                        mSyncPolicy.onRequestSuccess();
+
+                        // else the response has been managed while it was parsed
+                        if (null == parserListener) {
+                            mListener.onSyncV2Response(syncResponse, true);
+                        }
+
                         mCurrentToken = syncResponse.nextBatch;
                         mInitialSyncDone = true;
                         // unblock the events thread
@@ -261,12 +367,14 @@ public class EventsThread extends Thread {
                     }
 
                     private void sleepAndUnblock() {
-                        Log.i(LOG_TAG, "Waiting a bit before retrying");
+                        int retryDelay = mSyncPolicy.onRequestFailure();
+
+                        Log.i(LOG_TAG, "Waiting " + retryDelay + " ms before retrying");
                         new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
                             public void run() {
                                 latch.countDown();
                             }
-                        }, RETRY_WAIT_TIME_MS);
+                        }, retryDelay);
                     }
 
                     @Override
@@ -284,6 +392,7 @@ public class EventsThread extends Thread {
                     public void onMatrixError(MatrixError e) {
                         super.onMatrixError(e);
                         Log.e(LOG_TAG, "Sync V2 onMatrixError " + e.getLocalizedMessage());
+                        checkFilterError(e, initialSyncFilter);
                         sleepAndUnblock();
                     }
 
@@ -302,8 +411,6 @@ public class EventsThread extends Thread {
                     Log.e(LOG_TAG, "Interrupted whilst performing initial sync.");
                 }
             }
-
-            serverTimeout = SERVER_TIMEOUT_MS;
         }
 
         Log.d(LOG_TAG, "Starting event stream from token " + mCurrentToken);
@@ -332,7 +439,7 @@ public class EventsThread extends Thread {
                     Log.d(LOG_TAG, "Event stream woken from pause.");
 
                     // perform a catchup asap
-                    serverTimeout = 0;
+                    mSyncPolicy.requestCatchup();
                 } catch (InterruptedException e) {
                     Log.e(LOG_TAG, "Unexpected interruption while paused: " + e.getMessage());
                 }
@@ -340,15 +447,19 @@ public class EventsThread extends Thread {
 
             // the service could have been killed while being paused.
             if (!mKilling) {
-                // *** PATCH SYNC V2 ***
-                String inlineFilter = "{\"room\":{\"timeline\":{\"limit\":250}}}";
-                // *** PATCH SYNC V2 ***
+                // the previous responses are managed while this request is in progress
+                // but the events thread waits when the sync thread falls behind.
+                mListener.waitForPendingSyncV2Responses();
 
                 final CountDownLatch latch = new CountDownLatch(1);
+                int serverTimeout = mSyncPolicy.getServerTimeoutMs();
 
-                Log.d(LOG_TAG, "Get events from token " + mCurrentToken);
+                Log.d(LOG_TAG, "Get events from token " + mCurrentToken + " with timeout " + serverTimeout);
 
-                mEventsRestClientV2.syncFromToken(mCurrentToken, serverTimeout, CLIENT_TIMEOUT_MS, mIsCatchingUp ? "offline" : null, inlineFilter, new SimpleApiCallback<SyncResponse>(mFailureCallback) {
+                final SyncResponseParser.Listener parserListener = mListener.getSyncV2ParserListener(false);
+                final String syncFilter = mFilterOrFilterId;
+
+                syncFromToken(mCurrentToken, serverTimeout, mIsCatchingUp ? "offline" : null, syncFilter, parserListener, new SimpleApiCallback<SyncResponse>(mFailureCallback) {
                     @Override
                     public void onSuccess(SyncResponse syncResponse) {
                         if (!mKilling) {
@@ -361,7 +472,13 @@ public class EventsThread extends Thread {
                             }
 
                             Log.d(LOG_TAG, "Got event response");
-                            mListener.onSyncV2Response(syncResponse, false);
+                            mSyncPolicy.onRequestSuccess();
+
+                            // else the response has been managed while it was parsed
+                            if (null == parserListener) {
+                                mListener.onSyncV2Response(syncResponse, false);
+                            }
+
                             mCurrentToken = syncResponse.nextBatch;
                             Log.d(LOG_TAG, "mCurrentToken is now set to " + mCurrentToken);
                         }
@@ -380,11 +497,14 @@ public class EventsThread extends Thread {
 
                         // detected if the device is connected before trying again
                         if (isConnected) {
+                            int retryDelay = mSyncPolicy.onRequestFailure();
+                            Log.d(LOG_TAG, "Retry in " + retryDelay + " ms (" + mSyncPolicy + ")");
+
                             new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
                                 public void run() {
                                     latch.countDown();
                                 }
-                            }, RETRY_WAIT_TIME_MS);
+                            }, retryDelay);
 
                         } else {
                             // no network -> wait that a network connection comes back.
@@ -400,6 +520,7 @@ public class EventsThread extends Thread {
 
                     @Override
                     public void onMatrixError(MatrixError e) {
+                        checkFilterError(e, syncFilter);
                         onError(e.getLocalizedMessage());
                     }
 
@@ -416,8 +537,6 @@ public class EventsThread extends Thread {
                     Log.e(LOG_TAG, "Interrupted whilst polling message");
                 }
             }
-
-            serverTimeout = SERVER_TIMEOUT_MS;
         }
 
         if (null != mNetworkConnectivityReceiver) {
@@ -426,6 +545,24 @@ public class EventsThread extends Thread {
         Log.d(LOG_TAG, "Event stream terminating.");
     }
 
+    /**
+     * Perform a sync request.
+     * When a parser listener is provided, the response is parsed and managed while it is downloaded.
+     * @param token the token to stream from (nil in case of initial sync).
+     * @param serverTimeout the maximum time in ms to wait for an event.
+     * @param setPresence the optional set_presence parameter.
+     * @param filterId the optional filter.
+     * @param parserListener the parser listener, null to get the whole response.
+     * @param callback the callback.
+     */
+    private void syncFromToken(String token, int serverTimeout, String setPresence, String filterId, SyncResponseParser.Listener parserListener, ApiCallback<SyncResponse> callback) {
+        if (null != parserListener) {
+            mEventsRestClientV2.syncFromToken(token, serverTimeout, CLIENT_TIMEOUT_MS, setPresence, filterId, parserListener, callback);
+        } else {
+            mEventsRestClientV2.syncFromToken(token, serverTimeout, CLIENT_TIMEOUT_MS, setPresence, filterId, callback);
+        }
+    }
+
     /**
      * Use the API sync V1 to get the events
      */
@@ -25,6 +25,22 @@ public interface EventsThreadListener {
      */
     void onSyncV2Response(SyncResponse response, Boolean isInitialSync);
 
+    /**
+     * API V2 support.
+     * Provides a listener to manage a sync response while it is parsed.
+     * onSyncV2Response is not called for the responses managed by this listener.
+     * @param isInitialSync true if the response is triggered by an initial sync
+     * @return the listener, null to receive the whole responses with onSyncV2Response.
+     */
+    SyncResponseParser.Listener getSyncV2ParserListener(Boolean isInitialSync);
+
+    /**
+     * API V2 support.
+     * Called before each sync request.
+     * It blocks the events thread while too many sync responses are waiting to be managed.
+     */
+    void waitForPendingSyncV2Responses();
+
     /**
      * Called when getting the users presences.
      * @param presence the users presence
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.sync;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * Define the sync requests timeouts and the retry delays of the events thread.
+ * <ul>
+ * <li>The retry delay grows exponentially with the failures streak, with a random jitter
+ * to avoid the clients reconnecting at the same time.</li>
+ * <li>The server timeout is shortened when the connectivity is flaky so a long-poll is less likely to be lost.</li>
+ * <li>The first request after a resume is not long-polled to get the latest events asap.</li>
+ * </ul>
+ * The counters can be used to tune the battery use vs the latency.
+ */
+public class SyncPolicy {
+    public static final int DEFAULT_SERVER_TIMEOUT_MS = 30000;
+    public static final int DEFAULT_FLAKY_SERVER_TIMEOUT_MS = 10000;
+
+    public static final int DEFAULT_MIN_RETRY_DELAY_MS = 2000;
+    public static final int DEFAULT_MAX_RETRY_DELAY_MS = 5 * 60 * 1000;
+
+    // the connectivity is flaky when it has changed FLAKY_CONNECTIVITY_CHANGES times during FLAKY_CONNECTIVITY_PERIOD_MS
+    private static final int FLAKY_CONNECTIVITY_CHANGES = 3;
+    private static final long FLAKY_CONNECTIVITY_PERIOD_MS = 5 * 60 * 1000;
+
+    private int mServerTimeoutMs = DEFAULT_SERVER_TIMEOUT_MS;
+    private int mFlakyServerTimeoutMs = DEFAULT_FLAKY_SERVER_TIMEOUT_MS;
+    private int mMinRetryDelayMs = DEFAULT_MIN_RETRY_DELAY_MS;
+    private int mMaxRetryDelayMs = DEFAULT_MAX_RETRY_DELAY_MS;
+
+    private final Random mRandom;
+
+    // the consecutive failures count
+    private int mFailuresStreak = 0;
+    // true when the next request must not be long-polled
+    private boolean mIsCatchupRequested = false;
+    // the latest connectivity changes times
+    private final LinkedList<Long> mConnectivityChangeTimes = new LinkedList<Long>();
+
+    // counters
+    private int mRequestsCount = 0;
+    private int mFailuresCount = 0;
+    private int mCatchupRequestsCount = 0;
+    private int mShortenedRequestsCount = 0;
+    private long mTotalRetryDelayMs = 0;
+
+    public SyncPolicy() {
+        this(new Random());
+    }
+
+    /**
+     * Constructor with a custom random generator.
+     * @param random the random generator used to compute the retry delay jitter.
+     */
+    SyncPolicy(Random random) {
+        mRandom = random;
+    }
+
+    /**
+     * Update the server timeouts.
+     * A longer timeout saves some battery, a shorter one detects the lost connections sooner.
+     * @param serverTimeoutMs the long-poll server timeout.
+     * @param flakyServerTimeoutMs the long-poll server timeout when the connectivity is flaky.
+     */
+    public synchronized void setServerTimeouts(int serverTimeoutMs, int flakyServerTimeoutMs) {
+        mServerTimeoutMs = serverTimeoutMs;
+        mFlakyServerTimeoutMs = flakyServerTimeoutMs;
+    }
+
+    /**
+     * Update the retry delays bounds.
+     * @param minRetryDelayMs the delay after the first failure.
+     * @param maxRetryDelayMs the max delay.
+     */
+    public synchronized void setRetryDelays(int minRetryDelayMs, int maxRetryDelayMs) {
+        mMinRetryDelayMs = minRetryDelayMs;
+        mMaxRetryDelayMs = Math.max(minRetryDelayMs, maxRetryDelayMs);
+    }
+
+    /**
+     * The next request must provide the latest events asap.
+     */
+    public synchronized void requestCatchup() {
+        mIsCatchupRequested = true;
+    }
+
+    /**
+     * Provides the server timeout of the next sync request.
+     * The catchup request is consumed.
+     * @return the server timeout in ms.
+     */
+    public synchronized int getServerTimeoutMs() {
+        return getServerTimeoutMs(System.currentTimeMillis());
+    }
+
+    synchronized int getServerTimeoutMs(long now) {
+        mRequestsCount++;
+
+        if (mIsCatchupRequested) {
+            mIsCatchupRequested = false;
+            mCatchupRequestsCount++;
+            return 0;
+        }
+
+        if ((mFailuresStreak > 0) || isConnectivityFlaky(now)) {
+            mShortenedRequestsCount++;
+            return Math.min(mServerTimeoutMs, mFlakyServerTimeoutMs);
+        }
+
+        return mServerTimeoutMs;
+    }
+
+    /**
+     * A sync request succeeded.
+     */
+    public synchronized void onRequestSuccess() {
+        mFailuresStreak = 0;
+    }
+
+    /**
+     * A sync request failed.
+     * @return the delay in ms before retrying.
+     */
+    public synchronized int onRequestFailure() {
+        mFailuresCount++;
+        mFailuresStreak++;
+
+        // mMinRetryDelayMs * 2 ^ (streak - 1), without overflow
+        long delay = mMinRetryDelayMs;
+
+        for (int i = 1; (i < mFailuresStreak) && (delay < mMaxRetryDelayMs); i++) {
+            delay *= 2;
+        }
+
+        delay = Math.min(delay, mMaxRetryDelayMs);
+
+        // keep at least half of the delay
+        int retryDelay = (int) (delay / 2 + (long) (mRandom.nextDouble() * (delay - delay / 2)));
+
+        mTotalRetryDelayMs += retryDelay;
+        return retryDelay;
+    }
+
+    /**
+     * The network connectivity has changed.
+     */
+    public synchronized void onConnectivityChange() {
+        onConnectivityChange(System.currentTimeMillis());
+    }
+
+    synchronized void onConnectivityChange(long now) {
+        mConnectivityChangeTimes.addLast(now);
+
+        while (mConnectivityChangeTimes.size() > FLAKY_CONNECTIVITY_CHANGES) {
+            mConnectivityChangeTimes.removeFirst();
+        }
+    }
+
+    /**
+     * Tells if the connectivity has been flaky during the latest minutes.
+     * @param now the current time.
+     * @return true if the connectivity is flaky.
+     */
+    private boolean isConnectivityFlaky(long now) {
+        return (mConnectivityChangeTimes.size() >= FLAKY_CONNECTIVITY_CHANGES) && ((now - mConnectivityChangeTimes.getFirst()) < FLAKY_CONNECTIVITY_PERIOD_MS);
+    }
+
+    /**
+     * @return the consecutive failures count.
+     */
+    public synchronized int getFailuresStreak() {
+        return mFailuresStreak;
+    }
+
+    /**
+     * @return the sync requests count.
+     */
+    public synchronized int getRequestsCount() {
+        return mRequestsCount;
+    }
+
+    /**
+     * @return the failed sync requests count.
+     */
+    public synchronized int getFailuresCount() {
+        return mFailuresCount;
+    }
+
+    /**
+     * @return the requests count which have not been long-polled to catch up.
+     */
+    public synchronized int getCatchupRequestsCount() {
+        return mCatchupRequestsCount;
+    }
+
+    /**
+     * @return the requests count with a shortened server timeout.
+     */
+    public synchronized int getShortenedRequestsCount() {
+        return mShortenedRequestsCount;
+    }
+
+    /**
+     * @return the sum of the retry delays in ms.
+     */
+    public synchronized long getTotalRetryDelayMs() {
+        return mTotalRetryDelayMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "requests " + mRequestsCount + " failures " + mFailuresCount + " streak " + mFailuresStreak
+                + " catchups " + mCatchupRequestsCount + " shortened " + mShortenedRequestsCount + " retry delay " + mTotalRetryDelayMs + "ms";
+    }
+}
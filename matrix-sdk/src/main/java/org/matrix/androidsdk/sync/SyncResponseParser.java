@@ -0,0 +1,185 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.matrix.androidsdk.sync;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import org.matrix.androidsdk.rest.model.SyncV2.InvitedRoomSync;
+import org.matrix.androidsdk.rest.model.SyncV2.PresenceSyncResponse;
+import org.matrix.androidsdk.rest.model.SyncV2.RoomSync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Parse a server sync v2 response while it is downloaded.
+ * Each room is provided to the listener as soon as it is decoded
+ * so the whole SyncResponse tree is never built.
+ */
+public class SyncResponseParser {
+
+    /**
+     * The parsed items listener.
+     * The rooms are provided in the response order.
+     */
+    public interface Listener {
+        /**
+         * A left room has been parsed.
+         * @param roomId the room id
+         * @param roomSync the room sync
+         */
+        void onLeftRoom(String roomId, RoomSync roomSync);
+
+        /**
+         * A joined room has been parsed.
+         * @param roomId the room id
+         * @param roomSync the room sync
+         */
+        void onJoinedRoom(String roomId, RoomSync roomSync);
+
+        /**
+         * An invited room has been parsed.
+         * @param roomId the room id
+         * @param invitedRoomSync the invited room sync
+         */
+        void onInvitedRoom(String roomId, InvitedRoomSync invitedRoomSync);
+
+        /**
+         * The presence updates have been parsed.
+         * @param presence the presence updates.
+         */
+        void onPresence(PresenceSyncResponse presence);
+
+        /**
+         * The whole response has been parsed.
+         * @param nextBatch the opaque token for the end.
+         */
+        void onSyncResponseParsed(String nextBatch);
+    }
+
+    /**
+     * Parse a sync response.
+     * @param stream the response body.
+     * @param gson the gson used to decode the rooms.
+     * @param listener the listener.
+     * @return the opaque token for the end.
+     * @throws IOException if the stream cannot be read or if the response is malformed.
+     */
+    public static String parse(InputStream stream, Gson gson, Listener listener) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(stream, "UTF-8"));
+        String nextBatch = null;
+
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if ("next_batch".equals(name) && (reader.peek() == JsonToken.STRING)) {
+                nextBatch = reader.nextString();
+            } else if ("presence".equals(name) && (reader.peek() == JsonToken.BEGIN_OBJECT)) {
+                listener.onPresence(fromJson(reader, gson, PresenceSyncResponse.class));
+            } else if ("rooms".equals(name) && (reader.peek() == JsonToken.BEGIN_OBJECT)) {
+                parseRooms(reader, gson, listener);
+            } else {
+                reader.skipValue();
+            }
+        }
+
+        reader.endObject();
+
+        listener.onSyncResponseParsed(nextBatch);
+
+        return nextBatch;
+    }
+
+    /**
+     * Decode the next value.
+     * Gson wraps the stream errors so they are extracted to be reported as network errors.
+     * @param reader the reader.
+     * @param gson the gson.
+     * @param type the value class.
+     * @return the value.
+     * @throws IOException if the stream cannot be read.
+     */
+    private static <T> T fromJson(JsonReader reader, Gson gson, Class<T> type) throws IOException {
+        try {
+            return gson.fromJson(reader, type);
+        } catch (JsonParseException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Parse the rooms lists.
+     * @param reader the reader.
+     * @param gson the gson used to decode the rooms.
+     * @param listener the listener.
+     * @throws IOException if the response is malformed.
+     */
+    private static void parseRooms(JsonReader reader, Gson gson, Listener listener) throws IOException {
+        reader.beginObject();
+
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+
+            if ("join".equals(name) || "leave".equals(name)) {
+                boolean isJoin = "join".equals(name);
+
+                reader.beginObject();
+
+                while (reader.hasNext()) {
+                    String roomId = reader.nextName();
+                    RoomSync roomSync = fromJson(reader, gson, RoomSync.class);
+
+                    if (isJoin) {
+                        listener.onJoinedRoom(roomId, roomSync);
+                    } else {
+                        listener.onLeftRoom(roomId, roomSync);
+                    }
+                }
+
+                reader.endObject();
+            } else if ("invite".equals(name)) {
+                reader.beginObject();
+
+                while (reader.hasNext()) {
+                    String roomId = reader.nextName();
+                    listener.onInvitedRoom(roomId, fromJson(reader, gson, InvitedRoomSync.class));
+                }
+
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+
+        reader.endObject();
+    }
+}
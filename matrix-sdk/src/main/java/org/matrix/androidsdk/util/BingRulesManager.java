@@ -18,6 +18,7 @@ package org.matrix.androidsdk.util;
 import android.text.TextUtils;
 
 import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 
 import org.matrix.androidsdk.MXDataHandler;
 import org.matrix.androidsdk.MXSession;
@@ -28,7 +29,6 @@ import org.matrix.androidsdk.rest.callback.SimpleApiCallback;
 import org.matrix.androidsdk.rest.client.BingRulesRestClient;
 import org.matrix.androidsdk.rest.model.Event;
 import org.matrix.androidsdk.rest.model.MatrixError;
-import org.matrix.androidsdk.rest.model.Message;
 import org.matrix.androidsdk.rest.model.bingrules.BingRule;
 import org.matrix.androidsdk.rest.model.bingrules.BingRuleSet;
 import org.matrix.androidsdk.rest.model.bingrules.BingRulesResponse;
@@ -40,6 +40,7 @@ import org.matrix.androidsdk.rest.model.bingrules.RoomMemberCountCondition;
 import org.w3c.dom.Text;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -61,6 +62,36 @@ public class BingRulesManager {
     private BingRuleSet mRulesSet = null;
     private List<BingRule> mRules = new ArrayList<BingRule>();
 
+    // the compiled rules : they are built by updateRules and only contain the enabled rules.
+    // the rules order is kept i.e. override, content, room, sender and underride.
+    // the override and content rules
+    private List<BingRule> mPrecedingRules = new ArrayList<BingRule>();
+    // the room rules indexed by room id
+    private HashMap<String, BingRule> mRoomRulesByRoomId = new HashMap<String, BingRule>();
+    // the sender rules indexed by user id
+    private HashMap<String, BingRule> mSenderRulesByUserId = new HashMap<String, BingRule>();
+    // the underride rules
+    private List<BingRule> mUnderrideRules = new ArrayList<BingRule>();
+
+    // the user name pattern (RULE_ID_CONTAIN_USER_NAME), it is built once.
+    private final Pattern mUserNamePattern;
+    // the display name pattern (RULE_ID_CONTAIN_DISPLAY_NAME), it is rebuilt when the display name is updated.
+    // the rules are checked from several threads (parallel rooms sync) so it is replaced at once.
+    private volatile WordPattern mDisplayNamePattern = null;
+
+    /**
+     * A compiled standalone word pattern.
+     */
+    private static class WordPattern {
+        final String mWord;
+        final Pattern mPattern;
+
+        WordPattern(String word) {
+            mWord = word;
+            mPattern = buildWordPattern(word);
+        }
+    }
+
     private BingRule mDefaultBingRule = new BingRule(true);
 
     private boolean isReady = false;
@@ -70,6 +101,7 @@ public class BingRulesManager {
         mApiClient = session.getBingRulesApiClient();
         mMyUserId = session.getCredentials().userId;
         mDataHandler = session.getDataHandler();
+        mUserNamePattern = buildUserNamePattern(mMyUserId);
     }
 
     public boolean isReady() {
@@ -106,19 +138,104 @@ public class BingRulesManager {
     }
 
     /**
-     * Returns whether a string contains an occurrence of another, as a standalone word, regardless of case.
-     * @param subString the string to search for
-     * @param longString the string to search in
-     * @return whether a match was found
+     * Build a pattern to search a standalone word, regardless of case.
+     * @param word the word to search for
+     * @return the pattern
      */
-    private static boolean caseInsensitiveFind(String subString, String longString) {
-        // sanity check
-        if (TextUtils.isEmpty(subString) || TextUtils.isEmpty(longString)) {
+    private static Pattern buildWordPattern(String word) {
+        return Pattern.compile("(\\W|^)" + Pattern.quote(word) + "(\\W|$)", Pattern.CASE_INSENSITIVE);
+    }
+
+    /**
+     * @return the pattern to search the user display name, null if it is not defined.
+     */
+    private Pattern getDisplayNamePattern() {
+        MyUser myUser = mSession.getMyUser();
+        String displayName = (null != myUser) ? myUser.displayname : null;
+
+        if (TextUtils.isEmpty(displayName)) {
+            return null;
+        }
+
+        WordPattern displayNamePattern = mDisplayNamePattern;
+
+        if ((null == displayNamePattern) || !displayName.equals(displayNamePattern.mWord)) {
+            displayNamePattern = new WordPattern(displayName);
+            mDisplayNamePattern = displayNamePattern;
+        }
+
+        return displayNamePattern.mPattern;
+    }
+
+    /**
+     * Build the pattern to search the user name i.e. the user id local part.
+     * @param userId the user id
+     * @return the pattern, null if the user name is not defined.
+     */
+    private static Pattern buildUserNamePattern(String userId) {
+        if (null == userId) {
+            return null;
+        }
+
+        String userName;
+
+        if (userId.indexOf(":") >= 0) {
+            userName = userId.substring(1, userId.indexOf(":"));
+        } else {
+            userName = userId;
+        }
+
+        return TextUtils.isEmpty(userName) ? null : buildWordPattern(userName);
+    }
+
+    /**
+     * Extract the message body of an event.
+     * @param event the event
+     * @return the body, null if it is not a message.
+     */
+    private static String getMessageBody(Event event) {
+        if (Event.EVENT_TYPE_MESSAGE.equals(event.type)) {
+            JsonObject content = event.getContentAsJsonObject();
+
+            if ((null != content) && content.has("body")) {
+                JsonElement body = content.get("body");
+
+                if (body.isJsonPrimitive()) {
+                    return body.getAsString();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Tells if a rule is fulfilled by an event.
+     * @param bingRule the rule
+     * @param event the event
+     * @param body the message body (null if it is not a message)
+     * @return true if the rule is fulfilled.
+     */
+    private boolean isFulfilled(BingRule bingRule, Event event, String body) {
+        // some rules have no condition
+        // so their ruleId defines the method
+        if (BingRule.RULE_ID_CONTAIN_USER_NAME.equals(bingRule.ruleId) || BingRule.RULE_ID_CONTAIN_DISPLAY_NAME.equals(bingRule.ruleId)) {
+            if (!TextUtils.isEmpty(body)) {
+                Pattern pattern = BingRule.RULE_ID_CONTAIN_USER_NAME.equals(bingRule.ruleId) ? mUserNamePattern : getDisplayNamePattern();
+
+                return (null != pattern) && pattern.matcher(body).find();
+            }
+
             return false;
+        }  else if (BingRule.RULE_ID_FALLBACK.equals(bingRule.ruleId)) {
+            return true;
         }
 
-        Pattern pattern = Pattern.compile("(\\W|^)" + subString + "(\\W|$)", Pattern.CASE_INSENSITIVE);
-        return pattern.matcher(longString).find();
+        // some default rules define conditions
+        // so use them instead of doing a custom treatment
+        // RULE_ID_ONE_TO_ONE_ROOM
+        // RULE_ID_SUPPRESS_BOTS_NOTIFICATIONS
+        return eventMatchesConditions(event, bingRule.conditions);
     }
 
     /**
@@ -141,54 +258,49 @@ public class BingRulesManager {
             return null;
         }
 
-        if (mRules != null) {
-            // Go down the rule list until we find a match
-            for (BingRule bingRule : mRules) {
-                if (bingRule.isEnabled) {
-                    Boolean isFullfilled = false;
-
-                    // some rules have no condition
-                    // so their ruleId defines the method
-                    if (BingRule.RULE_ID_CONTAIN_USER_NAME.equals(bingRule.ruleId) || BingRule.RULE_ID_CONTAIN_DISPLAY_NAME.equals(bingRule.ruleId)) {
-                        if (Event.EVENT_TYPE_MESSAGE.equals(event.type)) {
-                            Message message = JsonUtils.toMessage(event.content);
-                            MyUser myUser =  mSession.getMyUser();
-                            String pattern = myUser.displayname;
-
-                            if (BingRule.RULE_ID_CONTAIN_USER_NAME.equals(bingRule.ruleId)) {
-                                if (mMyUserId.indexOf(":") >= 0) {
-                                    pattern = mMyUserId.substring(1, mMyUserId.indexOf(":"));
-                                } else {
-                                    pattern = mMyUserId;
-                                }
-                            }
+        List<BingRule> precedingRules;
+        HashMap<String, BingRule> roomRulesByRoomId;
+        HashMap<String, BingRule> senderRulesByUserId;
+        List<BingRule> underrideRules;
 
-                            if (!TextUtils.isEmpty(pattern)) {
-                                isFullfilled = caseInsensitiveFind(pattern, message.body);
-                            }
-                        }
-                    }  else if (BingRule.RULE_ID_FALLBACK.equals(bingRule.ruleId)) {
-                        isFullfilled = true;
-                    } else {
-                        // some default rules define conditions
-                        // so use them instead of doing a custom treatment
-                        // RULE_ID_ONE_TO_ONE_ROOM
-                        // RULE_ID_SUPPRESS_BOTS_NOTIFICATIONS
-                        isFullfilled = eventMatchesConditions(event, bingRule.conditions);
-                    }
+        synchronized (this) {
+            precedingRules = mPrecedingRules;
+            roomRulesByRoomId = mRoomRulesByRoomId;
+            senderRulesByUserId = mSenderRulesByUserId;
+            underrideRules = mUnderrideRules;
+        }
 
-                    if (isFullfilled) {
-                        return bingRule;
-                    }
-                }
+        // the body is extracted once for every rule
+        String body = getMessageBody(event);
+
+        // Go down the rule list until we find a match
+        for (BingRule bingRule : precedingRules) {
+            if (isFulfilled(bingRule, event, body)) {
+                return bingRule;
             }
+        }
 
-            // no rules are fulfilled
-            return null;
-        } else {
-            // The default is to bing
-            return mDefaultBingRule;
+        // the room and sender rules are identified by their room id / user id
+        BingRule roomRule = (null != event.roomId) ? roomRulesByRoomId.get(event.roomId) : null;
+
+        if ((null != roomRule) && isFulfilled(roomRule, event, body)) {
+            return roomRule;
         }
+
+        BingRule senderRule = (null != event.getSender()) ? senderRulesByUserId.get(event.getSender()) : null;
+
+        if ((null != senderRule) && isFulfilled(senderRule, event, body)) {
+            return senderRule;
+        }
+
+        for (BingRule bingRule : underrideRules) {
+            if (isFulfilled(bingRule, event, body)) {
+                return bingRule;
+            }
+        }
+
+        // no rules are fulfilled
+        return null;
     }
 
     private boolean eventMatchesConditions(Event event, List<Condition> conditions) {
@@ -252,7 +364,7 @@ public class BingRulesManager {
                 }
                 mRules.addAll(ruleSet.override);
             } else {
-                ruleSet.override = new ArrayList<BingRule>(ruleSet.override);
+                ruleSet.override = new ArrayList<BingRule>();
             }
 
             if (ruleSet.content != null) {
@@ -298,7 +410,57 @@ public class BingRulesManager {
             }
 
             mRulesSet = ruleSet;
+
+            compileRules(ruleSet);
+        }
+    }
+
+    /**
+     * Build the rules lookup tables used by fulfilledBingRule.
+     * New tables are created so a pending fulfilledBingRule call is not disturbed.
+     * @param ruleSet the rule set.
+     */
+    private void compileRules(BingRuleSet ruleSet) {
+        ArrayList<BingRule> precedingRules = new ArrayList<BingRule>();
+        HashMap<String, BingRule> roomRulesByRoomId = new HashMap<String, BingRule>();
+        HashMap<String, BingRule> senderRulesByUserId = new HashMap<String, BingRule>();
+        ArrayList<BingRule> underrideRules = new ArrayList<BingRule>();
+
+        for (BingRule rule : ruleSet.override) {
+            if (rule.isEnabled) {
+                precedingRules.add(rule);
+            }
+        }
+
+        for (BingRule rule : ruleSet.content) {
+            if (rule.isEnabled) {
+                precedingRules.add(rule);
+            }
+        }
+
+        // the first enabled rule wins
+        for (BingRule rule : ruleSet.room) {
+            if (rule.isEnabled && (null != rule.ruleId) && !roomRulesByRoomId.containsKey(rule.ruleId)) {
+                roomRulesByRoomId.put(rule.ruleId, rule);
+            }
         }
+
+        for (BingRule rule : ruleSet.sender) {
+            if (rule.isEnabled && (null != rule.ruleId) && !senderRulesByUserId.containsKey(rule.ruleId)) {
+                senderRulesByUserId.put(rule.ruleId, rule);
+            }
+        }
+
+        for (BingRule rule : ruleSet.underride) {
+            if (rule.isEnabled) {
+                underrideRules.add(rule);
+            }
+        }
+
+        mPrecedingRules = precedingRules;
+        mRoomRulesByRoomId = roomRulesByRoomId;
+        mSenderRulesByUserId = senderRulesByUserId;
+        mUnderrideRules = underrideRules;
     }
 
     private void addContentRules(List<ContentRule> rules) {
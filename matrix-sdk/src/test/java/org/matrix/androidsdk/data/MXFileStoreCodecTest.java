@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import com.google.gson.JsonParser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Event;
+import org.matrix.androidsdk.rest.model.ReceiptData;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class MXFileStoreCodecTest {
+
+    private static final String TEST_ROOM_ID = "!testroomid:matrix.org";
+    private static final String TEST_USER_ID = "@testuserid:matrix.org";
+
+    private Event createEvent(String eventId) {
+        Event event = new Event();
+        event.type = Event.EVENT_TYPE_MESSAGE;
+        event.eventId = eventId;
+        event.roomId = TEST_ROOM_ID;
+        event.sender = TEST_USER_ID;
+        event.originServerTs = 1234;
+        event.content = new JsonParser().parse("{'msgtype': 'm.text', 'body': 'Nice body!'}");
+        return event;
+    }
+
+    private byte[] encode(Event... events) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        MXFileStoreCodec.Writer writer = new MXFileStoreCodec.Writer(bos);
+        writer.writeEvents(Arrays.asList(events));
+
+        Map<String, ReceiptData> receipts = new HashMap<String, ReceiptData>();
+        receipts.put(TEST_USER_ID, new ReceiptData(TEST_USER_ID, "$event1", 5678));
+        writer.writeReceipts(receipts);
+
+        writer.close();
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Event event = createEvent("$event1");
+        event.mToken = "token";
+
+        InputStream stream = new ByteArrayInputStream(encode(event, createEvent("$event2")));
+        MXFileStoreCodec.Reader reader = new MXFileStoreCodec.Reader(stream);
+
+        ArrayList<Event> events = reader.readEvents();
+        Map<String, ReceiptData> receipts = reader.readReceipts();
+        reader.checkChecksum();
+
+        assertEquals(2, events.size());
+        assertEquals("$event1", events.get(0).eventId);
+        assertEquals("$event2", events.get(1).eventId);
+        assertEquals(TEST_ROOM_ID, events.get(1).roomId);
+        assertEquals(TEST_USER_ID, events.get(1).getSender());
+        assertEquals(1234, events.get(0).getOriginServerTs());
+        assertEquals("token", events.get(0).mToken);
+        assertEquals(event.content, events.get(0).content);
+
+        assertEquals("$event1", receipts.get(TEST_USER_ID).eventId);
+        assertEquals(5678, receipts.get(TEST_USER_ID).originServerTs);
+    }
+
+    @Test
+    public void testCorruptedData() throws IOException {
+        byte[] data = encode(createEvent("$event1"));
+
+        // alter the message body
+        data[data.length / 2] ^= 0x01;
+
+        try {
+            MXFileStoreCodec.Reader reader = new MXFileStoreCodec.Reader(new ByteArrayInputStream(data));
+            reader.readEvents();
+            reader.readReceipts();
+            reader.checkChecksum();
+            fail("the corrupted data must be detected");
+        } catch (Exception e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIsEncoded() throws IOException {
+        assertTrue(MXFileStoreCodec.isEncoded(new BufferedInputStream(new ByteArrayInputStream(encode()))));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(createEvent("$event1"));
+        out.close();
+
+        assertFalse(MXFileStoreCodec.isEncoded(new BufferedInputStream(new ByteArrayInputStream(bos.toByteArray()))));
+        assertFalse(MXFileStoreCodec.isEncoded(new BufferedInputStream(new ByteArrayInputStream(new byte[2]))));
+    }
+}
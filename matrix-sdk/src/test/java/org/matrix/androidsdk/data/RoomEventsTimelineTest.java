@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.Event;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class RoomEventsTimelineTest {
+
+    private Event createEvent(String eventId) {
+        Event event = new Event();
+        event.eventId = eventId;
+        return event;
+    }
+
+    private void checkOrder(RoomEventsTimeline timeline, String... eventIds) {
+        assertEquals(eventIds.length, timeline.size());
+
+        for (int position = 0; position < eventIds.length; position++) {
+            assertEquals(eventIds[position], timeline.get(position).eventId);
+            assertEquals(position, timeline.indexOf(eventIds[position]));
+        }
+    }
+
+    @Test
+    public void testInsertions() {
+        RoomEventsTimeline timeline = new RoomEventsTimeline();
+
+        for (int i = 10; i < 40; i++) {
+            timeline.put(createEvent("$" + i));
+        }
+
+        for (int i = 9; i >= 0; i--) {
+            timeline.prepend(createEvent("$0" + i));
+        }
+
+        // already stored
+        timeline.prepend(createEvent("$20"));
+        timeline.put(createEvent("$05"));
+
+        assertEquals(40, timeline.size());
+        assertEquals("$00", timeline.getFirst().eventId);
+        assertEquals("$39", timeline.getLast().eventId);
+        assertEquals(5, timeline.indexOf("$05"));
+        assertEquals(15, timeline.indexOf("$15"));
+        assertEquals(-1, timeline.indexOf("$unknown"));
+    }
+
+    @Test
+    public void testRemovals() {
+        RoomEventsTimeline timeline = new RoomEventsTimeline();
+
+        for (int i = 0; i < 6; i++) {
+            timeline.put(createEvent("$" + i));
+        }
+
+        assertNotNull(timeline.remove("$1"));
+        assertNotNull(timeline.remove("$4"));
+        assertNull(timeline.remove("$4"));
+
+        checkOrder(timeline, "$0", "$2", "$3", "$5");
+
+        timeline.prepend(createEvent("$first"));
+        timeline.put(createEvent("$last"));
+
+        checkOrder(timeline, "$first", "$0", "$2", "$3", "$5", "$last");
+    }
+
+    @Test
+    public void testTokens() {
+        RoomEventsTimeline timeline = new RoomEventsTimeline();
+
+        Event event = createEvent("$1");
+        event.mToken = "token1";
+        timeline.put(createEvent("$0"));
+        timeline.put(event);
+        timeline.put(createEvent("$2"));
+
+        assertEquals(1, timeline.indexOfToken("token1"));
+
+        // the token is set after the insertion
+        timeline.get(2).mToken = "token2";
+        assertEquals(2, timeline.indexOfToken("token2"));
+
+        timeline.prepend(createEvent("$-1"));
+        assertEquals(2, timeline.indexOfToken("token1"));
+        assertEquals(3, timeline.indexOfToken("token2"));
+
+        event.mToken = null;
+        assertEquals(-1, timeline.indexOfToken("token1"));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.RoomMember;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class RoomMembersTableTest {
+
+    private RoomMember createMember(String userId, String displayName) {
+        RoomMember member = new RoomMember();
+        member.setUserId(userId);
+        member.displayname = displayName;
+        member.membership = RoomMember.MEMBERSHIP_JOIN;
+        return member;
+    }
+
+    private void checkMembers(RoomState state, Map<String, String> displayNames) {
+        ArrayList<RoomMember> members = new ArrayList<RoomMember>(state.getMembers());
+        HashSet<String> userIds = new HashSet<String>();
+
+        assertEquals(displayNames.size(), members.size());
+
+        for (RoomMember member : members) {
+            assertTrue(userIds.add(member.getUserId()));
+            assertTrue(displayNames.containsKey(member.getUserId()));
+            assertEquals(displayNames.get(member.getUserId()), member.displayname);
+            assertSame(member, state.getMember(member.getUserId()));
+        }
+    }
+
+    @Test
+    public void testSnapshotIsolation() {
+        RoomState state = new RoomState();
+        HashMap<String, String> displayNames = new HashMap<String, String>();
+
+        for (int i = 0; i < 100; i++) {
+            state.setMember("@user" + i + ":matrix.org", createMember("@user" + i + ":matrix.org", "user " + i));
+            displayNames.put("@user" + i + ":matrix.org", "user " + i);
+        }
+
+        // every bucket is shared with the snapshot
+        RoomState snapshot = state.deepCopy();
+        HashMap<String, String> snapshotDisplayNames = new HashMap<String, String>(displayNames);
+
+        state.setMember("@user5:matrix.org", createMember("@user5:matrix.org", "renamed"));
+        displayNames.put("@user5:matrix.org", "renamed");
+        state.removeMember("@user6:matrix.org");
+        displayNames.remove("@user6:matrix.org");
+        state.setMember("@new:matrix.org", createMember("@new:matrix.org", "new"));
+        displayNames.put("@new:matrix.org", "new");
+
+        // the snapshot updates do not alter the source either
+        snapshot.removeMember("@user7:matrix.org");
+        snapshotDisplayNames.remove("@user7:matrix.org");
+
+        checkMembers(snapshot, snapshotDisplayNames);
+        checkMembers(state, displayNames);
+
+        assertEquals("user 5", snapshot.getMember("@user5:matrix.org").displayname);
+        assertNotNull(snapshot.getMember("@user6:matrix.org"));
+        assertNull(snapshot.getMember("@new:matrix.org"));
+        assertNotNull(state.getMember("@user7:matrix.org"));
+    }
+
+    @Test
+    public void testMutations() {
+        Random random = new Random(42);
+        RoomState state = new RoomState();
+        HashMap<String, String> displayNames = new HashMap<String, String>();
+
+        ArrayList<RoomState> snapshots = new ArrayList<RoomState>();
+        ArrayList<HashMap<String, String>> snapshotsDisplayNames = new ArrayList<HashMap<String, String>>();
+
+        for (int i = 0; i < 5000; i++) {
+            String userId = "@user" + random.nextInt(500) + ":matrix.org";
+
+            if (random.nextInt(4) == 0) {
+                state.removeMember(userId);
+                displayNames.remove(userId);
+            } else {
+                state.setMember(userId, createMember(userId, "name " + i));
+                displayNames.put(userId, "name " + i);
+            }
+
+            if ((i % 250) == 0) {
+                snapshots.add(state.deepCopy());
+                snapshotsDisplayNames.add(new HashMap<String, String>(displayNames));
+            }
+        }
+
+        checkMembers(state, displayNames);
+
+        for (int i = 0; i < snapshots.size(); i++) {
+            checkMembers(snapshots.get(i), snapshotsDisplayNames.get(i));
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.data;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.net.Uri;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.HomeserverConnectionConfig;
+import org.matrix.androidsdk.MXDataHandler;
+import org.matrix.androidsdk.listeners.MXEventListener;
+import org.matrix.androidsdk.rest.model.ReceiptData;
+import org.matrix.androidsdk.rest.model.SyncV2.SyncResponse;
+import org.matrix.androidsdk.rest.model.login.Credentials;
+import org.matrix.androidsdk.test.SyncResponseGenerator;
+import org.matrix.androidsdk.util.ContentUtils;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replay synthetic sync responses through the data handler and the store.
+ * The durations of each step are logged so the sync pipeline regressions can be spotted.
+ */
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class SyncReplayTest {
+    private static final String LOG_TAG = "SyncReplayTest";
+
+    private static final int ROOMS_COUNT = 50;
+    private static final int MEMBERS_COUNT = 20;
+    private static final int MESSAGES_COUNT = 30;
+
+    private static final int INCREMENTAL_SYNCS_COUNT = 20;
+    private static final int INCREMENTAL_ROOMS_COUNT = 10;
+    private static final int INCREMENTAL_MESSAGES_COUNT = 5;
+
+    private Credentials mCredentials;
+    private MXMemoryStore mStore;
+    private MXDataHandler mDataHandler;
+
+    private CountDownLatch mSyncLatch;
+
+    /**
+     * A context whose files folder is a temporary one.
+     */
+    private static class TmpFilesContext extends ContextWrapper {
+        private final File mFilesDir;
+
+        TmpFilesContext(Context base, File filesDir) {
+            super(base);
+            mFilesDir = filesDir;
+        }
+
+        @Override
+        public File getFilesDir() {
+            return mFilesDir;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mCredentials = new Credentials();
+        mCredentials.userId = "@me:matrix.org";
+        mCredentials.accessToken = "token";
+
+        setStore(new MXMemoryStore(mCredentials));
+    }
+
+    /**
+     * Replay the sync responses in a store.
+     * @param store the store.
+     */
+    private void setStore(MXMemoryStore store) {
+        mStore = store;
+        mDataHandler = new MXDataHandler(mStore, mCredentials);
+
+        mDataHandler.addListener(new MXEventListener() {
+            @Override
+            public void onInitialSyncComplete() {
+                countDown();
+            }
+
+            @Override
+            public void onLiveEventsChunkProcessed() {
+                countDown();
+            }
+        });
+    }
+
+    private void countDown() {
+        if (null != mSyncLatch) {
+            mSyncLatch.countDown();
+        }
+    }
+
+    private void logDuration(String step, long startTime) {
+        Log.d(LOG_TAG, step + " : " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * Manage a sync response and wait until it has been processed.
+     * @param json the response.
+     * @param isInitialSync true for an initial sync.
+     */
+    private void replay(String json, boolean isInitialSync) throws InterruptedException {
+        SyncResponse syncResponse = JsonUtils.getGson(false).fromJson(json, SyncResponse.class);
+
+        mSyncLatch = new CountDownLatch(1);
+        mDataHandler.onSyncV2Complete(syncResponse, isInitialSync);
+
+        long timeout = System.currentTimeMillis() + 60000;
+
+        while ((mSyncLatch.getCount() > 0) && (System.currentTimeMillis() < timeout)) {
+            Robolectric.runBackgroundTasks();
+            Robolectric.runUiThreadTasksIncludingDelayedTasks();
+            mSyncLatch.await(10, TimeUnit.MILLISECONDS);
+        }
+
+        assertEquals("the sync response has not been processed", 0, mSyncLatch.getCount());
+    }
+
+    private void replayInitialSync() throws InterruptedException {
+        String json = SyncResponseGenerator.createSyncResponse(ROOMS_COUNT, MEMBERS_COUNT, MESSAGES_COUNT, 0);
+
+        long startTime = System.currentTimeMillis();
+        replay(json, true);
+        logDuration("initial sync " + ROOMS_COUNT + " rooms x " + MEMBERS_COUNT + " members x " + MESSAGES_COUNT + " events", startTime);
+    }
+
+    @Test
+    public void testInitialSync() throws InterruptedException {
+        replayInitialSync();
+
+        assertEquals(ROOMS_COUNT, mStore.getRooms().size());
+
+        for (int roomIndex = 0; roomIndex < ROOMS_COUNT; roomIndex++) {
+            String roomId = SyncResponseGenerator.roomId(roomIndex);
+
+            assertEquals(MESSAGES_COUNT, mStore.getRoomMessages(roomId).size());
+            assertEquals(MEMBERS_COUNT, mStore.getRoom(roomId).getMembers().size());
+            assertEquals(SyncResponseGenerator.eventId(roomIndex, MESSAGES_COUNT - 1, 0), mStore.getLatestEvent(roomId).eventId);
+        }
+    }
+
+    @Test
+    public void testIncrementalSyncs() throws InterruptedException {
+        replayInitialSync();
+
+        ArrayList<String> responses = new ArrayList<String>();
+
+        for (int batch = 1; batch <= INCREMENTAL_SYNCS_COUNT; batch++) {
+            responses.add(SyncResponseGenerator.createSyncResponse(INCREMENTAL_ROOMS_COUNT, 0, INCREMENTAL_MESSAGES_COUNT, batch));
+        }
+
+        long startTime = System.currentTimeMillis();
+
+        for (String json : responses) {
+            replay(json, false);
+        }
+
+        logDuration(INCREMENTAL_SYNCS_COUNT + " incremental syncs " + INCREMENTAL_ROOMS_COUNT + " rooms x " + INCREMENTAL_MESSAGES_COUNT + " events", startTime);
+
+        int expectedCount = MESSAGES_COUNT + INCREMENTAL_SYNCS_COUNT * INCREMENTAL_MESSAGES_COUNT;
+
+        for (int roomIndex = 0; roomIndex < INCREMENTAL_ROOMS_COUNT; roomIndex++) {
+            String roomId = SyncResponseGenerator.roomId(roomIndex);
+
+            assertEquals(expectedCount, mStore.getRoomMessages(roomId).size());
+            assertEquals(SyncResponseGenerator.eventId(roomIndex, INCREMENTAL_MESSAGES_COUNT - 1, INCREMENTAL_SYNCS_COUNT), mStore.getLatestEvent(roomId).eventId);
+        }
+
+        // the duplicated responses are ignored
+        replay(responses.get(0), false);
+        assertEquals(expectedCount, mStore.getRoomMessages(SyncResponseGenerator.roomId(0)).size());
+    }
+
+    /**
+     * Open a MXFileStore and wait until it is ready.
+     * @param hsConfig the home server config.
+     * @param context the context.
+     * @return the opened store.
+     */
+    private MXFileStore openFileStore(HomeserverConnectionConfig hsConfig, Context context) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<String> errors = new ArrayList<String>();
+
+        MXFileStore store = new MXFileStore(hsConfig, context);
+        store.setMXStoreListener(new IMXStore.MXStoreListener() {
+            @Override
+            public void onStoreReady(String accountId) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onStoreCorrupted(String accountId, String description) {
+                errors.add(description);
+                latch.countDown();
+            }
+        });
+        store.open();
+
+        long timeout = System.currentTimeMillis() + 60000;
+
+        while ((latch.getCount() > 0) && (System.currentTimeMillis() < timeout)) {
+            Robolectric.runBackgroundTasks();
+            Robolectric.runUiThreadTasksIncludingDelayedTasks();
+            latch.await(10, TimeUnit.MILLISECONDS);
+        }
+
+        assertEquals("the store has not been opened", 0, latch.getCount());
+        assertTrue("the store is corrupted " + errors, errors.isEmpty());
+
+        return store;
+    }
+
+    @Test
+    public void testStoreReload() throws InterruptedException, IOException {
+        File filesDir = File.createTempFile(LOG_TAG, "");
+        filesDir.delete();
+        filesDir.mkdirs();
+
+        try {
+            Context context = new TmpFilesContext(Robolectric.application, filesDir);
+            HomeserverConnectionConfig hsConfig = new HomeserverConnectionConfig(Uri.parse("https://matrix.org"), mCredentials);
+
+            MXFileStore fileStore = new MXFileStore(hsConfig, context);
+            setStore(fileStore);
+            replayInitialSync();
+
+            // the sync responses have no receipts
+            for (int roomIndex = 0; roomIndex < ROOMS_COUNT; roomIndex++) {
+                String eventId = SyncResponseGenerator.eventId(roomIndex, MESSAGES_COUNT - 1, 0);
+                fileStore.storeReceipt(new ReceiptData(SyncResponseGenerator.userId(1), eventId, 2000000L), SyncResponseGenerator.roomId(roomIndex));
+            }
+
+            // the pending updates are written when the store is closed
+            long startTime = System.currentTimeMillis();
+            fileStore.commit();
+            fileStore.close();
+            logDuration("save " + ROOMS_COUNT + " rooms", startTime);
+
+            startTime = System.currentTimeMillis();
+            MXFileStore reloadedStore = openFileStore(hsConfig, context);
+            logDuration("reload " + ROOMS_COUNT + " rooms", startTime);
+
+            assertEquals("batch_0", reloadedStore.getEventStreamToken());
+            assertEquals(ROOMS_COUNT, reloadedStore.getRooms().size());
+            assertTrue(reloadedStore.getCorruptedRoomIds().isEmpty());
+
+            for (int roomIndex = 0; roomIndex < ROOMS_COUNT; roomIndex++) {
+                String roomId = SyncResponseGenerator.roomId(roomIndex);
+                String lastEventId = SyncResponseGenerator.eventId(roomIndex, MESSAGES_COUNT - 1, 0);
+
+                assertEquals(MESSAGES_COUNT, reloadedStore.getRoomMessages(roomId).size());
+                assertEquals(MEMBERS_COUNT, reloadedStore.getRoom(roomId).getMembers().size());
+                assertEquals(lastEventId, reloadedStore.getLatestEvent(roomId).eventId);
+
+                List<ReceiptData> receipts = reloadedStore.getEventReceipts(roomId, lastEventId, false, false);
+                assertEquals(1, receipts.size());
+                assertEquals(SyncResponseGenerator.userId(1), receipts.get(0).userId);
+            }
+
+            reloadedStore.close();
+        } finally {
+            ContentUtils.deleteDirectory(filesDir);
+        }
+    }
+}
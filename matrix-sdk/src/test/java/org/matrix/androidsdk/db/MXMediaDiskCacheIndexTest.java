@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class MXMediaDiskCacheIndexTest {
+
+    private static final int FILE_SIZE = 1000;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("MXMediaDiskCacheIndexTest", "");
+        mDirectory.delete();
+        new File(mDirectory, MXMediasCache.MXMEDIA_STORE_IMAGES_FOLDER).mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        new MXMediaDiskCacheIndex(mDirectory, 0).clear();
+        new File(mDirectory, MXMediaDiskCacheIndex.JOURNAL_FILE_NAME).delete();
+        mDirectory.delete();
+    }
+
+    private File createFile(String name) throws IOException {
+        File file = new File(new File(mDirectory, MXMediasCache.MXMEDIA_STORE_IMAGES_FOLDER), name);
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(new byte[FILE_SIZE]);
+        fos.close();
+        return file;
+    }
+
+    @Test
+    public void testLruEviction() throws IOException {
+        MXMediaDiskCacheIndex index = new MXMediaDiskCacheIndex(mDirectory, 3 * FILE_SIZE);
+
+        File localFile = createFile("file123.jpg");
+        index.add(localFile, false);
+
+        File file1 = createFile(MXMediaWorkerTask.DOWNLOADED_FILE_PREFIX + "1.jpg");
+        index.add(file1, true);
+        File file2 = createFile(MXMediaWorkerTask.DOWNLOADED_FILE_PREFIX + "2.jpg");
+        index.add(file2, true);
+
+        assertEquals(3 * FILE_SIZE, index.getSize());
+
+        // file1 becomes the most recently used downloaded file
+        index.touch(file1);
+
+        File file3 = createFile(MXMediaWorkerTask.DOWNLOADED_FILE_PREFIX + "3.jpg");
+        index.add(file3, true);
+
+        // the least recently used downloaded file is evicted, the local one is kept
+        assertEquals(3 * FILE_SIZE, index.getSize());
+        assertEquals(1, index.getEvictionsCount());
+        assertFalse(file2.exists());
+        assertTrue(file1.exists());
+        assertTrue(file3.exists());
+        assertTrue(localFile.exists());
+    }
+
+    @Test
+    public void testReload() throws IOException {
+        MXMediaDiskCacheIndex index = new MXMediaDiskCacheIndex(mDirectory, 10 * FILE_SIZE);
+
+        File file1 = createFile(MXMediaWorkerTask.DOWNLOADED_FILE_PREFIX + "1.jpg");
+        index.add(file1, true);
+        File file2 = createFile(MXMediaWorkerTask.DOWNLOADED_FILE_PREFIX + "2.jpg");
+        index.add(file2, true);
+        index.remove(file2);
+        file2.delete();
+        index.touch(file1);
+
+        // the journal is replayed
+        MXMediaDiskCacheIndex reloadedIndex = new MXMediaDiskCacheIndex(mDirectory, 10 * FILE_SIZE);
+        assertEquals(FILE_SIZE, reloadedIndex.getSize());
+        assertEquals(1, reloadedIndex.getFilesCount());
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+        createFile(MXMediaWorkerTask.DOWNLOADED_FILE_PREFIX + "1.jpg");
+        createFile(MXMediaWorkerTask.DOWNLOADED_FILE_PREFIX + "2.jpg");
+        createFile(MXMediaWorkerTask.DOWNLOADED_FILE_PREFIX + "3.jpg.tmp");
+
+        FileOutputStream fos = new FileOutputStream(new File(mDirectory, MXMediaDiskCacheIndex.JOURNAL_FILE_NAME));
+        fos.write("corrupted".getBytes());
+        fos.close();
+
+        // the index is rebuilt from the folder content, the temporary files are ignored
+        MXMediaDiskCacheIndex index = new MXMediaDiskCacheIndex(mDirectory, 10 * FILE_SIZE);
+        assertEquals(2 * FILE_SIZE, index.getSize());
+        assertEquals(2, index.getFilesCount());
+
+        // the new journal can be replayed
+        assertEquals(2, new MXMediaDiskCacheIndex(mDirectory, 10 * FILE_SIZE).getFilesCount());
+    }
+}
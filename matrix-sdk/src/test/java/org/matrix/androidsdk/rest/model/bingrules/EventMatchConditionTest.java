@@ -101,6 +101,45 @@ public class EventMatchConditionTest {
         assertFalse(condition.isSatisfied(event));
     }
 
+    @Test
+    public void testSenderV2() {
+        condition.key = "user_id";
+        condition.pattern = TEST_USER_ID;
+
+        event.userId = null;
+        event.sender = TEST_USER_ID;
+
+        assertTrue(condition.isSatisfied(event));
+    }
+
+    @Test
+    public void testRegexCharacters() {
+        condition.key = "content.body";
+        condition.pattern = "body!";
+        assertTrue(condition.isSatisfied(event));
+
+        // the regex characters are not interpreted
+        condition.pattern = "N.ce";
+        assertFalse(condition.isSatisfied(event));
+
+        condition.pattern = "(Nice";
+        assertFalse(condition.isSatisfied(event));
+
+        // the pattern can be updated after a first check
+        condition.pattern = "Nice*";
+        assertTrue(condition.isSatisfied(event));
+    }
+
+    @Test
+    public void testUnknownField() {
+        condition.key = "content.unknown_field";
+        condition.pattern = "*";
+        assertFalse(condition.isSatisfied(event));
+
+        condition.key = "content";
+        assertFalse(condition.isSatisfied(event));
+    }
+
     @Test
     public void testRandomField() {
         condition.key = "content.other_field";
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class SyncPolicyTest {
+
+    @Test
+    public void testRetryDelays() {
+        SyncPolicy policy = new SyncPolicy(new Random(42));
+        policy.setRetryDelays(1000, 10000);
+
+        int[] maxDelays = {1000, 2000, 4000, 8000, 10000, 10000};
+
+        for (int maxDelay : maxDelays) {
+            int delay = policy.onRequestFailure();
+            assertTrue(delay >= maxDelay / 2);
+            assertTrue(delay <= maxDelay);
+        }
+
+        assertEquals(6, policy.getFailuresStreak());
+
+        policy.onRequestSuccess();
+        assertEquals(0, policy.getFailuresStreak());
+        assertEquals(6, policy.getFailuresCount());
+        assertTrue(policy.onRequestFailure() <= 1000);
+    }
+
+    @Test
+    public void testServerTimeouts() {
+        SyncPolicy policy = new SyncPolicy();
+        long now = 1000000;
+
+        assertEquals(SyncPolicy.DEFAULT_SERVER_TIMEOUT_MS, policy.getServerTimeoutMs(now));
+
+        // the catchup request is consumed
+        policy.requestCatchup();
+        assertEquals(0, policy.getServerTimeoutMs(now));
+        assertEquals(SyncPolicy.DEFAULT_SERVER_TIMEOUT_MS, policy.getServerTimeoutMs(now));
+
+        // flaky connectivity
+        policy.onConnectivityChange(now);
+        policy.onConnectivityChange(now + 1000);
+        policy.onConnectivityChange(now + 2000);
+        assertEquals(SyncPolicy.DEFAULT_FLAKY_SERVER_TIMEOUT_MS, policy.getServerTimeoutMs(now + 3000));
+
+        // the connectivity is stable again
+        assertEquals(SyncPolicy.DEFAULT_SERVER_TIMEOUT_MS, policy.getServerTimeoutMs(now + 60 * 60 * 1000));
+
+        // failures streak
+        policy.onRequestFailure();
+        assertEquals(SyncPolicy.DEFAULT_FLAKY_SERVER_TIMEOUT_MS, policy.getServerTimeoutMs(now + 60 * 60 * 1000));
+
+        assertEquals(6, policy.getRequestsCount());
+        assertEquals(1, policy.getCatchupRequestsCount());
+        assertEquals(2, policy.getShortenedRequestsCount());
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.sync;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.matrix.androidsdk.rest.model.SyncV2.InvitedRoomSync;
+import org.matrix.androidsdk.rest.model.SyncV2.PresenceSyncResponse;
+import org.matrix.androidsdk.rest.model.SyncV2.RoomSync;
+import org.matrix.androidsdk.util.JsonUtils;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+@Config(emulateSdk = 18)
+@RunWith(RobolectricTestRunner.class)
+public class SyncResponseParserTest {
+
+    private static final String SYNC_RESPONSE = "{" +
+            "'account_data': {'events': []}," +
+            "'rooms': {" +
+                "'leave': {'!left:matrix.org': {}}," +
+                "'join': {" +
+                    "'!joined1:matrix.org': {'timeline': {'events': [{'type': 'm.room.message', 'event_id': '$event1', 'content': {'body': 'Nice body!'}}], 'limited': true, 'prev_batch': 'prev'}}," +
+                    "'!joined2:matrix.org': {}" +
+                "}," +
+                "'invite': {'!invited:matrix.org': {'invite_state': {'events': []}}}" +
+            "}," +
+            "'presence': {'events': [{'type': 'm.presence'}]}," +
+            "'next_batch': 'next'" +
+            "}";
+
+    @Test
+    public void testParse() throws IOException {
+        final ArrayList<String> items = new ArrayList<String>();
+        final RoomSync[] joinedRoomSync = new RoomSync[1];
+
+        String nextBatch = SyncResponseParser.parse(new ByteArrayInputStream(SYNC_RESPONSE.replace('\'', '"').getBytes("UTF-8")), JsonUtils.getGson(false), new SyncResponseParser.Listener() {
+            @Override
+            public void onLeftRoom(String roomId, RoomSync roomSync) {
+                items.add("leave " + roomId);
+            }
+
+            @Override
+            public void onJoinedRoom(String roomId, RoomSync roomSync) {
+                items.add("join " + roomId);
+
+                if (null == joinedRoomSync[0]) {
+                    joinedRoomSync[0] = roomSync;
+                }
+            }
+
+            @Override
+            public void onInvitedRoom(String roomId, InvitedRoomSync invitedRoomSync) {
+                items.add("invite " + roomId);
+            }
+
+            @Override
+            public void onPresence(PresenceSyncResponse presence) {
+                items.add("presence " + presence.events.size());
+            }
+
+            @Override
+            public void onSyncResponseParsed(String nextBatch) {
+                items.add("parsed " + nextBatch);
+            }
+        });
+
+        assertEquals("next", nextBatch);
+
+        // the items are provided in the response order
+        assertEquals(6, items.size());
+        assertEquals("leave !left:matrix.org", items.get(0));
+        assertEquals("join !joined1:matrix.org", items.get(1));
+        assertEquals("join !joined2:matrix.org", items.get(2));
+        assertEquals("invite !invited:matrix.org", items.get(3));
+        assertEquals("presence 1", items.get(4));
+        assertEquals("parsed next", items.get(5));
+
+        assertEquals("$event1", joinedRoomSync[0].timeline.events.get(0).eventId);
+        assertTrue(joinedRoomSync[0].timeline.limited);
+        assertEquals("prev", joinedRoomSync[0].timeline.prevBatch);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedResponse() throws IOException {
+        String truncated = SYNC_RESPONSE.replace('\'', '"').substring(0, SYNC_RESPONSE.length() / 2);
+        SyncResponseParser.parse(new ByteArrayInputStream(truncated.getBytes("UTF-8")), JsonUtils.getGson(false), new SyncResponseParser.Listener() {
+            @Override
+            public void onLeftRoom(String roomId, RoomSync roomSync) {
+            }
+
+            @Override
+            public void onJoinedRoom(String roomId, RoomSync roomSync) {
+            }
+
+            @Override
+            public void onInvitedRoom(String roomId, InvitedRoomSync invitedRoomSync) {
+            }
+
+            @Override
+            public void onPresence(PresenceSyncResponse presence) {
+            }
+
+            @Override
+            public void onSyncResponseParsed(String nextBatch) {
+                fail("a truncated response must not be parsed");
+            }
+        });
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 OpenMarket Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.matrix.androidsdk.test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Utility class for making synthetic sync v2 responses.
+ * A response contains N rooms with M members and K messages per room.
+ */
+public class SyncResponseGenerator {
+
+    public static final String ROOM_ID_PREFIX = "!room";
+    public static final String USER_ID_PREFIX = "@user";
+    public static final String SERVER = ":matrix.org";
+
+    /**
+     * @param roomIndex the room index.
+     * @return the room id.
+     */
+    public static String roomId(int roomIndex) {
+        return ROOM_ID_PREFIX + roomIndex + SERVER;
+    }
+
+    /**
+     * @param userIndex the user index.
+     * @return the user id.
+     */
+    public static String userId(int userIndex) {
+        return USER_ID_PREFIX + userIndex + SERVER;
+    }
+
+    /**
+     * Build a sync response.
+     * @param roomsCount the rooms count.
+     * @param membersCount the members count per room, their member events are sent in the state.
+     * @param messagesCount the messages count per room.
+     * @param batch the response index, used to build unique events ids and the next batch token.
+     * @return the JSON response.
+     */
+    public static String createSyncResponse(int roomsCount, int membersCount, int messagesCount, int batch) {
+        JsonObject join = new JsonObject();
+        long ts = 1000000L + batch * 1000L;
+
+        for (int roomIndex = 0; roomIndex < roomsCount; roomIndex++) {
+            String roomId = roomId(roomIndex);
+
+            JsonArray stateEvents = new JsonArray();
+
+            for (int memberIndex = 0; memberIndex < membersCount; memberIndex++) {
+                JsonObject content = new JsonObject();
+                content.addProperty("membership", "join");
+                content.addProperty("displayname", "User " + memberIndex);
+
+                stateEvents.add(createEvent("m.room.member", "$member" + memberIndex + "_" + batch + roomId, userId(memberIndex), userId(memberIndex), ts++, content));
+            }
+
+            JsonArray timelineEvents = new JsonArray();
+
+            for (int messageIndex = 0; messageIndex < messagesCount; messageIndex++) {
+                JsonObject content = new JsonObject();
+                content.addProperty("msgtype", "m.text");
+                content.addProperty("body", "Message " + messageIndex + " of batch " + batch);
+
+                String sender = userId((membersCount > 0) ? (messageIndex % membersCount) : 0);
+                timelineEvents.add(createEvent("m.room.message", eventId(roomIndex, messageIndex, batch), sender, null, ts++, content));
+            }
+
+            JsonObject state = new JsonObject();
+            state.add("events", stateEvents);
+
+            JsonObject timeline = new JsonObject();
+            timeline.add("events", timelineEvents);
+            timeline.addProperty("limited", false);
+            timeline.addProperty("prev_batch", "prev_" + batch);
+
+            JsonObject roomSync = new JsonObject();
+            roomSync.add("state", state);
+            roomSync.add("timeline", timeline);
+
+            join.add(roomId, roomSync);
+        }
+
+        JsonObject rooms = new JsonObject();
+        rooms.add("join", join);
+        rooms.add("invite", new JsonObject());
+        rooms.add("leave", new JsonObject());
+
+        JsonObject response = new JsonObject();
+        response.add("rooms", rooms);
+        response.addProperty("next_batch", "batch_" + batch);
+
+        return response.toString();
+    }
+
+    /**
+     * @param roomIndex the room index.
+     * @param messageIndex the message index.
+     * @param batch the response index.
+     * @return the message event id.
+     */
+    public static String eventId(int roomIndex, int messageIndex, int batch) {
+        return "$message" + messageIndex + "_" + batch + "_" + roomIndex + SERVER;
+    }
+
+    private static JsonObject createEvent(String type, String eventId, String sender, String stateKey, long ts, JsonObject content) {
+        JsonObject event = new JsonObject();
+        event.addProperty("type", type);
+        event.addProperty("event_id", eventId);
+        event.addProperty("sender", sender);
+        event.addProperty("origin_server_ts", ts);
+
+        if (null != stateKey) {
+            event.addProperty("state_key", stateKey);
+        }
+
+        event.add("content", content);
+        return event;
+    }
+}